@@ -0,0 +1,106 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * @class	CryptoBenchmark
+ * @brief	鍵・MAC計算
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+	private static final int BATCH = 1024;
+
+	private final byte[] mMasterKey = new byte[24];
+	private final byte[] mId = new byte[16];
+	private final byte[] mRc = new byte[16];
+	private final byte[] mData = new byte[16 * 3];
+	private final byte[] mCardKey = new byte[16];
+	private final byte[] mSessionKey = new byte[16];
+	private final byte[] mMac = new byte[8];
+	private final byte[] mBlock = new byte[8];
+	private TripleDes mDes;
+	private CardKeyDiversifier mDiversifier;
+	private final byte[] mIds = new byte[16 * BATCH];
+	private final byte[] mKeys = new byte[16 * BATCH];
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		Random r = new Random(1);
+		r.nextBytes(mMasterKey);
+		r.nextBytes(mId);
+		r.nextBytes(mRc);
+		r.nextBytes(mData);
+		FelicaLiteIssuance.calcPersonalCardKey(mCardKey, mMasterKey, mId);
+		FelicaLiteIssuance.calcSessionKey(mSessionKey, mCardKey, mRc);
+		mDes = new TripleDes();
+		mDes.setKey(mMasterKey);
+		mDiversifier = new CardKeyDiversifier(mMasterKey);
+		r.nextBytes(mIds);
+		FelicaLog.setSink(null);
+	}
+
+	@Benchmark
+	public byte[] calcPersonalCardKey() {
+		FelicaLiteIssuance.calcPersonalCardKey(mCardKey, mMasterKey, mId);
+		return mCardKey;
+	}
+
+	/** {@link CardKeyDiversifier}による一括作成(1件あたり) */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public byte[] diversifyBatch() {
+		mDiversifier.diversify(mKeys, mIds, BATCH);
+		return mKeys;
+	}
+
+	@Benchmark
+	public byte[] calcMac() {
+		FelicaLiteIssuance.calcMac(mMac, mCardKey, mId, mRc);
+		return mMac;
+	}
+
+	@Benchmark
+	public byte[] calcMac3Blocks() {
+		FelicaLiteIssuance.calcMac(mMac, mCardKey, mData, 0, 3, mRc);
+		return mMac;
+	}
+
+	@Benchmark
+	public byte[] calcSessionKey() {
+		FelicaLiteIssuance.calcSessionKey(mSessionKey, mCardKey, mRc);
+		return mSessionKey;
+	}
+
+	@Benchmark
+	public byte[] calcMacWithSessionKey() {
+		FelicaLiteIssuance.calcMacWithSessionKey(mMac, mSessionKey, mRc, mId, 0, 1);
+		return mMac;
+	}
+
+	/** FelicaLiteIssuance内部のenc83()が1回ごとに使う3DES */
+	@Benchmark
+	public byte[] enc83() throws GeneralSecurityException {
+		mDes.enc83(mBlock, 0, mId, 0, mRc, 0);
+		return mBlock;
+	}
+}
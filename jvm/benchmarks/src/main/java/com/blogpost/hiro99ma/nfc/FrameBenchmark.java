@@ -0,0 +1,94 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * @class	FrameBenchmark
+ * @brief	コマンドフレームの組立とレスポンスの解析
+ *
+ * 決まったレスポンスを返すtransceiverを使い、{@link FelicaLite}側の処理だけを計る。<br>
+ * (エミュレータのMAC計算や応答時間は含まない)<br>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+	private static final int[] BLOCKS4 = { 0, 1, 2, 3 };
+
+	private FelicaLite mFelica;
+	private final byte[] mOut = new byte[16 * 4];
+	private final byte[] mData = new byte[16];
+
+	/**
+	 * 送信フレームの長さごとに、最初に{@link FelicaLiteEmulator}が返したレスポンスを返し続ける
+	 */
+	private static final class CannedTransceiver implements FelicaTransceiver {
+		private final FelicaLiteEmulator mCard = new FelicaLiteEmulator();
+		private final byte[][] mResponse = new byte[256][];
+
+		byte[] getIdm() {
+			return mCard.getIdm();
+		}
+
+		@Override
+		public byte[] transceive(byte[] data) throws IOException {
+			int len = data[0] & 0xff;
+			if(mResponse[len] == null) {
+				mResponse[len] = mCard.transceive(data);
+			}
+			return mResponse[len];
+		}
+
+		@Override
+		public void setTimeout(int timeout) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		FelicaLog.setSink(null);
+		CannedTransceiver canned = new CannedTransceiver();
+		mFelica = FelicaLite.connect(canned, canned.getIdm());
+		mFelica.setRetryPolicy(0, 0);
+	}
+
+	@Benchmark
+	public boolean polling() throws IOException {
+		return mFelica.polling(FelicaLite.SC_BROADCAST);
+	}
+
+	@Benchmark
+	public boolean readBlock() throws IOException {
+		return mFelica.readBlock(FelicaLite.PAD0, mOut, 0);
+	}
+
+	@Benchmark
+	public boolean readBlocks4() throws IOException {
+		return mFelica.readBlocks(BLOCKS4, mOut, 0, null);
+	}
+
+	@Benchmark
+	public boolean writeBlock() throws IOException {
+		return mFelica.writeBlock(FelicaLite.PAD1, mData, 0);
+	}
+}
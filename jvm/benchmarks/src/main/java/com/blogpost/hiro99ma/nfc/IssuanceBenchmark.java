@@ -0,0 +1,69 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * @class	IssuanceBenchmark
+ * @brief	{@link FelicaLiteEmulator}に対する1次発行とMAC確認(応答時間は0)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IssuanceBenchmark {
+	private static final short DFD = 0x1234;
+	private static final short KEY_VERSION = 1;
+	private static final byte[] MASTER_KEY = {
+		1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24
+	};
+
+	/** 毎回未発行のカード */
+	private FelicaLite mBlank;
+	/** 発行済みのカード */
+	private FelicaLite mIssued;
+
+	@Setup(Level.Trial)
+	public void setupIssued() throws IOException {
+		FelicaLog.setSink(null);
+		FelicaLiteEmulator card = new FelicaLiteEmulator();
+		mIssued = FelicaLite.connect(card, card.getIdm());
+		FelicaLiteIssuance.issuance1(mIssued, DFD, MASTER_KEY, KEY_VERSION);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupBlank() {
+		FelicaLiteEmulator card = new FelicaLiteEmulator();
+		mBlank = FelicaLite.connect(card, card.getIdm());
+	}
+
+	@Benchmark
+	public FelicaLiteIssuance.Result issuance1() throws IOException {
+		return FelicaLiteIssuance.issuance1(mBlank, DFD, MASTER_KEY, KEY_VERSION);
+	}
+
+	@Benchmark
+	public FelicaLiteIssuance.Result issuance1Fast() throws IOException {
+		return FelicaLiteIssuance.issuance1Fast(mBlank, DFD, MASTER_KEY, KEY_VERSION, null);
+	}
+
+	@Benchmark
+	public boolean macCheck() throws IOException {
+		return FelicaLiteIssuance.macCheck(mIssued, MASTER_KEY);
+	}
+}
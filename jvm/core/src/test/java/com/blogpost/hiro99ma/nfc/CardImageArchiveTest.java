@@ -0,0 +1,63 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * CardImageArchiveWriter.dump()の有効ブロック判定
+ */
+public class CardImageArchiveTest {
+	@Rule
+	public final TemporaryFolder mTmp = new TemporaryFolder();
+
+
+	@Test
+	public void dumpShadowPartialFail() throws IOException {
+		File file = mTmp.newFile("cards.bin");
+		file.delete();
+		CardImageArchiveWriter writer = new CardImageArchiveWriter(file);
+
+		//1枚目は全部読める
+		FelicaLiteEmulator card1 = new FelicaLiteEmulator(new byte[] { 1, 1, 1, 1, 1, 1, 1, 1 });
+		int all = writer.dump(FelicaLite.connect(card1, card1.getIdm()));
+		for(int blk : CardImageArchive.DUMP_BLOCKS) {
+			assertTrue((all & (1 << CardImageArchive.blockIndex(blk))) != 0);
+		}
+
+		//2枚目はPAD0～2がシャドウにあり、残りを詰めた4フレーム目(ID, D_ID, SER_C, SYS_C)が失敗する
+		FelicaLiteEmulator card2 = new FelicaLiteEmulator(new byte[] { 2, 2, 2, 2, 2, 2, 2, 2 });
+		FelicaLite felica = FelicaLite.connect(new StatusErrorTransceiver(card2, FelicaLite.D_ID), card2.getIdm());
+		felica.setShadowEnabled(true);
+		assertNotNull(felica.readBlocks(FelicaLite.PAD0, 3));
+		int valid = writer.dump(felica);
+		writer.close();
+
+		int expected = all;
+		for(int blk : new int[] { FelicaLite.ID, FelicaLite.D_ID, FelicaLite.SER_C, FelicaLite.SYS_C }) {
+			expected &= ~(1 << CardImageArchive.blockIndex(blk));
+		}
+		assertEquals(expected, valid);
+
+		CardImageArchiveReader reader = new CardImageArchiveReader(file);
+		int record = reader.find(card2.getIdm());
+		assertEquals(expected, reader.getValidMask(record));
+		byte[] blk = new byte[FelicaLite.SIZE_BLOCK];
+		for(int blockNo : CardImageArchive.DUMP_BLOCKS) {
+			assertTrue(reader.getBlock(record, blockNo, blk, 0) == ((valid & (1 << CardImageArchive.blockIndex(blockNo))) != 0));
+			if((valid & (1 << CardImageArchive.blockIndex(blockNo))) != 0) {
+				assertArrayEquals(card2.getBlock(blockNo), blk);
+			}
+		}
+		reader.close();
+	}
+}
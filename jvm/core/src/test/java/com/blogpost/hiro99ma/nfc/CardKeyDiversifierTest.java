@@ -0,0 +1,94 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * CardKeyDiversifierがFelicaLiteIssuance.calcPersonalCardKeyと同じ結果になること
+ */
+public class CardKeyDiversifierTest {
+
+	private static byte[] expected(byte[] masterKey, byte[] ids, int i) {
+		byte[] id = Arrays.copyOfRange(ids, i * FelicaLite.SIZE_BLOCK, (i + 1) * FelicaLite.SIZE_BLOCK);
+		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
+		assertTrue(FelicaLiteIssuance.calcPersonalCardKey(ck, masterKey, id));
+		return ck;
+	}
+
+
+	@Test
+	public void single() {
+		Random r = new Random(1);
+		byte[] masterKey = new byte[24];
+		byte[] id = new byte[FelicaLite.SIZE_BLOCK];
+		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
+		for(int k=0; k<100; k++) {
+			r.nextBytes(masterKey);
+			r.nextBytes(id);
+			CardKeyDiversifier d = new CardKeyDiversifier(masterKey);
+			assertTrue(d.diversify(ck, id));
+			assertArrayEquals(expected(masterKey, id, 0), ck);
+		}
+	}
+
+
+	@Test
+	public void batch() {
+		Random r = new Random(2);
+		byte[] masterKey = new byte[24];
+		int count = 50;
+		byte[] ids = new byte[count * FelicaLite.SIZE_BLOCK];
+		byte[] keys = new byte[count * FelicaLite.SIZE_BLOCK];
+		for(int k=0; k<20; k++) {
+			r.nextBytes(masterKey);
+			r.nextBytes(ids);
+			CardKeyDiversifier d = new CardKeyDiversifier(masterKey);
+			assertTrue(d.diversify(keys, ids, count));
+			for(int i=0; i<count; i++) {
+				assertArrayEquals(expected(masterKey, ids, i),
+						Arrays.copyOfRange(keys, i * FelicaLite.SIZE_BLOCK, (i + 1) * FelicaLite.SIZE_BLOCK));
+			}
+		}
+	}
+
+
+	@Test
+	public void threads() throws InterruptedException {
+		Random r = new Random(3);
+		byte[] masterKey = new byte[24];
+		r.nextBytes(masterKey);
+		//1スレッドあたりの最小件数(1024)を超えるようにして、実際に分割させる
+		int count = 4096 + 7;
+		byte[] ids = new byte[count * FelicaLite.SIZE_BLOCK];
+		r.nextBytes(ids);
+		byte[] keys = new byte[count * FelicaLite.SIZE_BLOCK];
+
+		CardKeyDiversifier d = new CardKeyDiversifier(masterKey);
+		assertTrue(d.diversify(keys, ids, count, 4));
+		for(int i=0; i<count; i++) {
+			assertArrayEquals(expected(masterKey, ids, i),
+					Arrays.copyOfRange(keys, i * FelicaLite.SIZE_BLOCK, (i + 1) * FelicaLite.SIZE_BLOCK));
+		}
+	}
+
+
+	@Test
+	public void badParam() {
+		CardKeyDiversifier d = new CardKeyDiversifier(new byte[24]);
+		assertFalse(d.diversify(new byte[FelicaLite.SIZE_BLOCK - 1], new byte[FelicaLite.SIZE_BLOCK]));
+		assertFalse(d.diversify(new byte[FelicaLite.SIZE_BLOCK], new byte[FelicaLite.SIZE_BLOCK], 2));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortMasterKey() {
+		new CardKeyDiversifier(new byte[16]);
+	}
+}
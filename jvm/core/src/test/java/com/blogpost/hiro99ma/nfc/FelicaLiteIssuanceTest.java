@@ -0,0 +1,250 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blogpost.hiro99ma.nfc.FelicaLiteIssuance.Result;
+
+
+/**
+ * FelicaLiteEmulatorを相手にした発行・MAC確認とフレーム数
+ */
+public class FelicaLiteIssuanceTest {
+	private static final short DFD = 0x1234;
+	private static final short KEY_VERSION = 1;
+
+	private final byte[] mMasterKey = new byte[24];
+	private FelicaLiteEmulator mCard;
+	private FelicaLite mFelica;
+
+
+	@Before
+	public void setUp() {
+		for(int i=0; i<mMasterKey.length; i++) {
+			mMasterKey[i] = (byte)(i + 1);
+		}
+		mCard = new FelicaLiteEmulator();
+		mFelica = FelicaLite.connect(mCard, mCard.getIdm());
+	}
+
+
+	/** パリティビットではないビットを変えた別の鍵 */
+	private byte[] badKey() {
+		byte[] bad = mMasterKey.clone();
+		bad[0] ^= (byte)0x80;
+		return bad;
+	}
+
+
+	private void assertIssued() {
+		IdBlock id = new IdBlock().wrap(mCard.getBlock(FelicaLite.ID), 0);
+		assertTrue(id.equalsIdm(mCard.getIdm()));
+		assertEquals(DFD, id.getDfd());
+		assertEquals(KEY_VERSION, new KeyVersion().wrap(mCard.getBlock(FelicaLite.CKV), 0).getKeyVersion());
+	}
+
+
+	@Test
+	public void issuance1() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		assertEquals(12, mFelica.getFrameCount());
+		assertEquals(12, mCard.getCommandCount());
+		assertIssued();
+	}
+
+
+	@Test
+	public void issuance1Shadow() throws IOException {
+		mFelica.setShadowEnabled(true);
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		assertEquals(9, mFelica.getFrameCount());
+		assertIssued();
+	}
+
+
+	@Test
+	public void issuance1Fast() throws IOException {
+		int[] frames = new int[1];
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1Fast(mFelica, DFD, mMasterKey, KEY_VERSION, frames));
+		assertEquals(7, frames[0]);
+		assertEquals(7, mFelica.getFrameCount());
+		assertIssued();
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+	}
+
+
+	@Test
+	public void issuance1Issued() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1Fast(mFelica, DFD, mMasterKey, KEY_VERSION, null));
+		assertTrue(FelicaLiteIssuance.writeIssuance1(mFelica));
+		assertEquals(Result.EISSUED, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		assertEquals(Result.EISSUED, FelicaLiteIssuance.issuance1Fast(mFelica, DFD, mMasterKey, KEY_VERSION, null));
+	}
+
+
+	@Test
+	public void sysReadFault() throws IOException {
+		//SYS_Cが読めない場合、どちらも同じ結果になる
+		FelicaLite felica = FelicaLite.connect(new StatusErrorTransceiver(mCard, FelicaLite.SYS_C), mCard.getIdm());
+		assertEquals(Result.EBADSYSCODE, FelicaLiteIssuance.issuance1(felica, DFD, mMasterKey, KEY_VERSION));
+		assertEquals(Result.EBADSYSCODE, FelicaLiteIssuance.issuance1Fast(felica, DFD, mMasterKey, KEY_VERSION, null));
+	}
+
+
+	@Test
+	public void macCheck() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+		assertFalse(FelicaLiteIssuance.macCheck(mFelica, badKey()));
+	}
+
+
+	@Test
+	public void clearKeys() throws IOException {
+		//鍵スケジュールを残したまま鍵を切り替えても、消した後でも同じ結果になる
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		for(int i=0; i<3; i++) {
+			assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+			assertFalse(FelicaLiteIssuance.macCheck(mFelica, badKey()));
+		}
+		FelicaLiteIssuance.clearKeys();
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+		FelicaLiteIssuance.clearKeys();
+		FelicaLiteIssuance.clearKeys();
+	}
+
+
+	@Test
+	public void macCheckCache() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		CardKeyCache cache = new CardKeyCache(4, 60 * 1000);
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey, cache));
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey, cache));
+		assertEquals(1, cache.getHitCount());
+		assertFalse(FelicaLiteIssuance.macCheck(mFelica, badKey(), cache));
+	}
+
+
+	@Test
+	public void challengeSource() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		final int[] count = new int[1];
+		mFelica.setChallengeSource(new ChallengeSource() {
+			@Override
+			public void take(byte[] rc, int offset) {
+				Arrays.fill(rc, offset, offset + FelicaLite.SIZE_BLOCK, (byte)count[0]);
+				count[0]++;
+			}
+		});
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+		assertEquals(1, count[0]);
+		assertArrayEquals(new byte[FelicaLite.SIZE_BLOCK], mCard.getBlock(FelicaLite.RC));
+
+		MacSession session = MacSession.open(mFelica, mMasterKey, null);
+		assertTrue(session.check());
+		assertEquals(2, count[0]);
+		session.close();
+
+		//nullで共通のプールに戻る
+		mFelica.setChallengeSource(null);
+		assertTrue(mFelica.getChallengeSource() == ChallengePool.getDefault());
+	}
+
+
+	@Test
+	public void readWithMac() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		byte[] pad = new byte[FelicaLite.SIZE_BLOCK];
+		Arrays.fill(pad, (byte)0x5a);
+		assertTrue(mFelica.writeBlock(FelicaLite.PAD0 + 2, pad));
+
+		int[] blockNo = { FelicaLite.PAD0, FelicaLite.ID, FelicaLite.PAD0 + 2 };
+		byte[] out = new byte[blockNo.length * FelicaLite.SIZE_BLOCK];
+		int start = mFelica.getFrameCount();
+		assertTrue(FelicaLiteIssuance.readWithMac(mFelica, mMasterKey, null, blockNo, out, 0));
+		//RCの書込み + 指定ブロックとMACの読み込み
+		assertEquals(2, mFelica.getFrameCount() - start);
+		for(int i=0; i<blockNo.length; i++) {
+			assertArrayEquals(mCard.getBlock(blockNo[i]),
+					Arrays.copyOfRange(out, i * FelicaLite.SIZE_BLOCK, (i + 1) * FelicaLite.SIZE_BLOCK));
+		}
+
+		byte[] bad = new byte[out.length];
+		assertFalse(FelicaLiteIssuance.readWithMac(mFelica, badKey(), null, blockNo, bad, 0));
+		assertArrayEquals(new byte[out.length], bad);
+	}
+
+
+	@Test
+	public void readWithMacNoId() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		byte[] pad = new byte[FelicaLite.SIZE_BLOCK];
+		Arrays.fill(pad, (byte)0x5a);
+		assertTrue(mFelica.writeBlock(FelicaLite.PAD0 + 2, pad));
+
+		//IDは同じフレームで読み、outには書かない
+		int[] blockNo = { FelicaLite.PAD0, FelicaLite.PAD0 + 2 };
+		byte[] out = new byte[(blockNo.length + 1) * FelicaLite.SIZE_BLOCK];
+		int start = mFelica.getFrameCount();
+		assertTrue(FelicaLiteIssuance.readWithMac(mFelica, mMasterKey, null, blockNo, out, 0));
+		assertEquals(2, mFelica.getFrameCount() - start);
+		for(int i=0; i<blockNo.length; i++) {
+			assertArrayEquals(mCard.getBlock(blockNo[i]),
+					Arrays.copyOfRange(out, i * FelicaLite.SIZE_BLOCK, (i + 1) * FelicaLite.SIZE_BLOCK));
+		}
+		assertArrayEquals(new byte[FelicaLite.SIZE_BLOCK],
+				Arrays.copyOfRange(out, blockNo.length * FelicaLite.SIZE_BLOCK, out.length));
+		assertFalse(FelicaLiteIssuance.readWithMac(mFelica, badKey(), null, blockNo, out, 0));
+
+		//IDを含めずに3ブロックは読めない
+		int[] full = { FelicaLite.PAD0, FelicaLite.PAD0 + 1, FelicaLite.PAD0 + 2 };
+		start = mFelica.getFrameCount();
+		assertFalse(FelicaLiteIssuance.readWithMac(mFelica, mMasterKey, null, full, new byte[full.length * FelicaLite.SIZE_BLOCK], 0));
+		assertEquals(0, mFelica.getFrameCount() - start);
+	}
+
+
+	@Test
+	public void macSession() throws IOException {
+		assertEquals(Result.SUCCESS, FelicaLiteIssuance.issuance1(mFelica, DFD, mMasterKey, KEY_VERSION));
+		MacSession session = MacSession.open(mFelica, mMasterKey, null);
+		assertNotNull(session);
+
+		//最初だけRCを書き込み、以降は読み込み1フレーム
+		int start = mFelica.getFrameCount();
+		assertTrue(session.check());
+		assertEquals(2, mFelica.getFrameCount() - start);
+		start = mFelica.getFrameCount();
+		assertTrue(session.check());
+		assertEquals(1, mFelica.getFrameCount() - start);
+		assertEquals(1, session.getRefreshCount());
+
+		//デフォルトの回数で使い切るとRCを書き換える
+		for(int i=2; i<MacSession.DEFAULT_MAX_USES; i++) {
+			assertTrue(session.check());
+		}
+		assertEquals(1, session.getRefreshCount());
+		assertTrue(session.check());
+		assertEquals(2, session.getRefreshCount());
+
+		//別のところでRCが変わったらMACが合わなくなり、refresh()で戻る
+		assertTrue(FelicaLiteIssuance.macCheck(mFelica, mMasterKey));
+		assertFalse(session.check());
+		session.refresh();
+		assertTrue(session.check());
+		session.close();
+
+		MacSession bad = MacSession.open(mFelica, badKey(), null);
+		assertNotNull(bad);
+		assertFalse(bad.check());
+	}
+}
@@ -0,0 +1,99 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * FelicaLiteEmulatorを相手にしたFelicaLiteの読み込み
+ */
+public class FelicaLiteTest {
+	/** 存在しないブロック(カードがエラーを返す) */
+	private static final int BAD_BLOCK = 0x40;
+
+	private FelicaLiteEmulator mCard;
+	private FelicaLite mFelica;
+
+
+	@Before
+	public void setUp() {
+		mCard = new FelicaLiteEmulator();
+		mFelica = FelicaLite.connect(mCard, mCard.getIdm());
+		byte[] blk = new byte[FelicaLite.SIZE_BLOCK];
+		for(int i=FelicaLite.PAD0; i<=FelicaLite.PAD13; i++) {
+			Arrays.fill(blk, (byte)(i + 1));
+			mCard.setBlock(i, blk);
+		}
+	}
+
+
+	private void assertBlock(int blockNo, byte[] buf, int index) {
+		assertArrayEquals(mCard.getBlock(blockNo),
+				Arrays.copyOfRange(buf, index * FelicaLite.SIZE_BLOCK, (index + 1) * FelicaLite.SIZE_BLOCK));
+	}
+
+
+	@Test
+	public void readBlocksStatus() throws IOException {
+		int[] blockNo = { 0, 1, 2, BAD_BLOCK, 4, 5, 6, 7 };
+		byte[] out = new byte[blockNo.length * FelicaLite.SIZE_BLOCK];
+		int[] frameStatus = new int[2];
+		int[] blockStatus = new int[blockNo.length];
+		assertFalse(mFelica.readBlocks(blockNo, out, 0, frameStatus, blockStatus));
+		assertTrue(frameStatus[0] != FelicaLite.FRAME_OK);
+		assertEquals(FelicaLite.FRAME_OK, frameStatus[1]);
+		for(int i=0; i<blockNo.length; i++) {
+			assertEquals(frameStatus[i / FelicaLite.MAX_READ_BLOCKS], blockStatus[i]);
+		}
+		for(int i=4; i<blockNo.length; i++) {
+			assertBlock(blockNo[i], out, i);
+		}
+	}
+
+
+	@Test
+	public void readBlocksShadowStatus() throws IOException {
+		mFelica.setShadowEnabled(true);
+		assertNotNull(mFelica.readBlocks(0, 3));
+
+		//0～2はキャッシュにあるので、カードには[BAD,4,5,6]と[7]の2フレームを送る
+		int[] blockNo = { 0, 1, 2, BAD_BLOCK, 4, 5, 6, 7 };
+		byte[] out = new byte[blockNo.length * FelicaLite.SIZE_BLOCK];
+		int[] frameStatus = new int[2];
+		int[] blockStatus = new int[blockNo.length];
+		int start = mFelica.getFrameCount();
+		assertFalse(mFelica.readBlocks(blockNo, out, 0, frameStatus, blockStatus));
+		assertEquals(2, mFelica.getFrameCount() - start);
+
+		//失敗したフレームの結果は、元の位置(3～6)のフレームに付く
+		assertTrue(frameStatus[0] != FelicaLite.FRAME_OK);
+		assertTrue(frameStatus[1] != FelicaLite.FRAME_OK);
+		for(int i=0; i<3; i++) {
+			assertEquals(FelicaLite.FRAME_OK, blockStatus[i]);
+			assertBlock(blockNo[i], out, i);
+		}
+		for(int i=3; i<7; i++) {
+			assertTrue(blockStatus[i] != FelicaLite.FRAME_OK);
+		}
+		assertEquals(FelicaLite.FRAME_OK, blockStatus[7]);
+		assertBlock(7, out, 7);
+	}
+
+
+	@Test
+	public void readEmpty() throws IOException {
+		assertNull(mFelica.readBlock(new int[0]));
+		assertNull(mFelica.readBlocks(new int[0]));
+		assertNull(mFelica.readBlocks(0, 0));
+	}
+}
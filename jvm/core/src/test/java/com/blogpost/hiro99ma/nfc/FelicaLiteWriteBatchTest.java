@@ -0,0 +1,57 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * FelicaLiteWriteBatchの書込み確認
+ */
+public class FelicaLiteWriteBatchTest {
+
+	private static byte[] random(int blocks) {
+		byte[] data = new byte[blocks * FelicaLite.SIZE_BLOCK];
+		new Random(blocks).nextBytes(data);
+		return data;
+	}
+
+
+	@Test
+	public void execute() throws IOException {
+		FelicaLiteEmulator card = new FelicaLiteEmulator();
+		FelicaLite felica = FelicaLite.connect(card, card.getIdm());
+		int[] blockNo = { 1, 2, 3, 4, 5, 6 };
+		byte[] data = random(blockNo.length);
+		FelicaLiteWriteBatch batch = FelicaLiteIssuance.writeUserBlocks(felica, blockNo, data);
+		assertEquals(0, batch.getFailedBlocks().length);
+		//6ブロック書込み + 2フレームで読み戻し
+		assertEquals(8, batch.getFrameCount());
+		for(int i=0; i<blockNo.length; i++) {
+			byte[] blk = new byte[FelicaLite.SIZE_BLOCK];
+			System.arraycopy(data, i * FelicaLite.SIZE_BLOCK, blk, 0, FelicaLite.SIZE_BLOCK);
+			assertArrayEquals(blk, card.getBlock(blockNo[i]));
+		}
+	}
+
+
+	@Test
+	public void readbackFail() throws IOException {
+		FelicaLiteEmulator card = new FelicaLiteEmulator();
+		FelicaLite felica = FelicaLite.connect(new StatusErrorTransceiver(card, 5), card.getIdm());
+		int[] blockNo = { 1, 2, 3, 4, 5, 6 };
+		FelicaLiteWriteBatch batch = FelicaLiteIssuance.writeUserBlocks(felica, blockNo, random(blockNo.length));
+
+		//読み戻しの2フレーム目([5, 6])だけが失敗になる
+		assertArrayEquals(new int[] { 5, 6 }, batch.getFailedBlocks());
+		for(int i=0; i<4; i++) {
+			assertEquals(FelicaLiteWriteBatch.STATUS_OK, batch.getStatus(i));
+		}
+		assertEquals(FelicaLiteWriteBatch.STATUS_READ_FAILED, batch.getStatus(4));
+		assertEquals(FelicaLiteWriteBatch.STATUS_READ_FAILED, batch.getStatus(5));
+	}
+}
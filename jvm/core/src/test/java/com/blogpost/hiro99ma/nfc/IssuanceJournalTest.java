@@ -0,0 +1,59 @@
+package com.blogpost.hiro99ma.nfc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * IssuanceJournalのfsync
+ */
+public class IssuanceJournalTest {
+	@Rule
+	public final TemporaryFolder mTmp = new TemporaryFolder();
+
+
+	private static IssuanceJournal.Record record(int seq) {
+		return new IssuanceJournal.Record(seq, "0102030405060708", "SUCCESS", 0, 10, 7);
+	}
+
+
+	@Test
+	public void syncAfterBurst() throws IOException, InterruptedException {
+		File file = new File(mTmp.getRoot(), "journal.txt");
+		IssuanceJournal journal = new IssuanceJournal(file, "test", 100, 100);
+		for(int i=0; i<3; i++) {
+			journal.append(record(i));
+		}
+		assertEquals(3, journal.getUnsyncedCount());
+
+		//追記が途切れても、間隔が過ぎればfsyncされる
+		long limit = System.currentTimeMillis() + 5000;
+		while((journal.getUnsyncedCount() != 0) && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, journal.getUnsyncedCount());
+
+		journal.append(record(3));
+		journal.close();
+		assertEquals(0, journal.getUnsyncedCount());
+		assertEquals(4, new IssuanceJournal(file, "test", 100, 100).getRecords().size());
+	}
+
+
+	@Test
+	public void syncEvery() throws IOException {
+		File file = new File(mTmp.getRoot(), "journal.txt");
+		IssuanceJournal journal = new IssuanceJournal(file, "test", 2, 60 * 1000);
+		journal.append(record(0));
+		assertEquals(1, journal.getUnsyncedCount());
+		journal.append(record(1));
+		assertEquals(0, journal.getUnsyncedCount());
+		journal.close();
+	}
+}
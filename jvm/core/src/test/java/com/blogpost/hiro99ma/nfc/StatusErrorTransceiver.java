@@ -0,0 +1,45 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+
+/**
+ * 指定したブロックを含む読み込みフレームだけ、ステータスフラグをエラーにして返す
+ */
+class StatusErrorTransceiver implements FelicaTransceiver {
+	private final FelicaLiteEmulator mCard;
+	private final int mFailBlock;
+
+
+	/**
+	 * @param card			[in]応答するカード
+	 * @param failBlock	[in]読み込みをエラーにするブロック
+	 */
+	StatusErrorTransceiver(FelicaLiteEmulator card, int failBlock) {
+		mCard = card;
+		mFailBlock = failBlock;
+	}
+
+
+	@Override
+	public byte[] transceive(byte[] data) throws IOException {
+		byte[] res = mCard.transceive(data);
+		if(data[1] == 0x06) {
+			for(int i=0; i<data[13]; i++) {
+				if((data[14 + i * 2 + 1] & 0xff) == mFailBlock) {
+					res[10] = 1;
+					res[11] = (byte)FelicaLiteEmulator.STATUS_BLOCK;
+				}
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public void setTimeout(int timeout) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,330 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.blogpost.hiro99ma.nfc.FelicaLiteIssuance.Result;
+
+
+/**
+ * @class	BatchIssuance
+ * @brief	ジャーナル付きの連続１次発行
+ *
+ * {@link Job}で指定した枚数になるまで、かざされたカードを順に１次発行する。<br>
+ * 1枚ごとにIDm、結果、所要時間を{@link IssuanceJournal}に記録し、
+ * 同じジョブのジャーナルで作り直すと続きから再開する。<br>
+ * <br>
+ * - 発行には{@link FelicaLiteIssuance#issuance1Fast}を使う。<br>
+ * - 成功記録のあるIDmのカードは、カードにアクセスせずに{@link Result#EISSUED}とする。<br>
+ */
+public class BatchIssuance {
+
+	/**
+	 * 発行ジョブ
+	 */
+	public static final class Job {
+		private final short mDfd;
+		private final String mMasterKeyRef;
+		private final short mKeyVersion;
+		private final int mCount;
+
+		/**
+		 * @param dfd				[in]DFD
+		 * @param masterKeyRef		[in]個別化マスター鍵の参照名({@link MasterKeyProvider}に渡す)
+		 * @param keyVersion		[in]鍵バージョン
+		 * @param count			[in]発行枚数
+		 */
+		public Job(short dfd, String masterKeyRef, short keyVersion, int count) {
+			mDfd = dfd;
+			mMasterKeyRef = masterKeyRef;
+			mKeyVersion = keyVersion;
+			mCount = count;
+		}
+
+		public short getDfd() {
+			return mDfd;
+		}
+
+		public String getMasterKeyRef() {
+			return mMasterKeyRef;
+		}
+
+		public short getKeyVersion() {
+			return mKeyVersion;
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		/** ジャーナルのヘッダ */
+		String describe() {
+			return "dfd=" + (mDfd & 0xffff) + "\tkey=" + mMasterKeyRef
+					+ "\tkv=" + (mKeyVersion & 0xffff) + "\tcount=" + mCount;
+		}
+	}
+
+
+	/**
+	 * 個別化マスター鍵の取得
+	 */
+	public interface MasterKeyProvider {
+		/**
+		 * @param ref		[in]参照名
+		 * @return			個別化マスター鍵(24byte)。呼び出し側で使用後に0クリアする。
+		 */
+		byte[] getMasterKey(String ref);
+	}
+
+
+	/**
+	 * 進捗の通知(カード処理を行ったスレッドで呼ばれる)
+	 */
+	public interface Listener {
+		void onProgress(Stats stats);
+	}
+
+
+	/**
+	 * 進捗のスナップショット
+	 */
+	public static final class Stats {
+		private final int mCount;
+		private final int mIssued;
+		private final int mProcessed;
+		private final Map<Result, Integer> mResults;
+		private final int mIoErrors;
+		private final long mElapsedMillis;
+		private final long mCardMillis;
+
+		Stats(int count, int issued, int processed, Map<Result, Integer> results,
+				int ioErrors, long elapsedMillis, long cardMillis) {
+			mCount = count;
+			mIssued = issued;
+			mProcessed = processed;
+			mResults = results;
+			mIoErrors = ioErrors;
+			mElapsedMillis = elapsedMillis;
+			mCardMillis = cardMillis;
+		}
+
+		/** ジョブの発行枚数 */
+		public int getCount() {
+			return mCount;
+		}
+
+		/** 発行済み枚数(再開前の分を含む) */
+		public int getIssued() {
+			return mIssued;
+		}
+
+		/** 今回処理したカード数(失敗を含む) */
+		public int getProcessed() {
+			return mProcessed;
+		}
+
+		/** 今回の結果ごとの件数 */
+		public int getResultCount(Result result) {
+			Integer n = mResults.get(result);
+			return (n != null) ? n : 0;
+		}
+
+		/** 今回のIOException件数 */
+		public int getIoErrorCount() {
+			return mIoErrors;
+		}
+
+		/** 今回の最初のカードからの経過時間(ms) */
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		/** 1枚あたりの平均カード処理時間(ms) */
+		public long getAverageCardMillis() {
+			return (mProcessed > 0) ? mCardMillis / mProcessed : 0;
+		}
+
+		/** 今回の発行成功ペース(枚/時) */
+		public double getCardsPerHour() {
+			int ok = getResultCount(Result.SUCCESS);
+			return (mElapsedMillis > 0) ? ok * 3600000.0 / mElapsedMillis : 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(mIssued).append('/').append(mCount);
+			sb.append(String.format(" %.0f/h avg %dms", getCardsPerHour(), getAverageCardMillis()));
+			for(Map.Entry<Result, Integer> e : mResults.entrySet()) {
+				if(e.getKey() != Result.SUCCESS) {
+					sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+				}
+			}
+			if(mIoErrors > 0) {
+				sb.append(" EIO=").append(mIoErrors);
+			}
+			return sb.toString();
+		}
+	}
+
+
+	private static final String TAG = "BatchIssuance";
+	private static final String RESULT_IOERROR = "EIO";
+	private static final String RESULT_DUPLICATE = "DUP";
+
+	private final Job mJob;
+	private final byte[] mMasterKey;
+	private final IssuanceJournal mJournal;
+	private final Set<String> mIssuedIdm = new HashSet<String>();
+	private final Map<Result, Integer> mResults = new EnumMap<Result, Integer>(Result.class);
+	private Listener mListener;
+	private int mSeq;
+	private int mProcessed;
+	private int mIoErrors;
+	private long mFirstMillis;
+	private long mCardMillis;
+
+
+	/**
+	 * バッチ発行の開始または再開
+	 *
+	 * @param job			[in]発行ジョブ
+	 * @param keys			[in]個別化マスター鍵の取得元
+	 * @param journal		[in]ジャーナルファイル。同じジョブのものがあれば再開する。
+	 * @throws IOException		ジャーナルの読み書き失敗、または別ジョブのジャーナル
+	 */
+	public BatchIssuance(Job job, MasterKeyProvider keys, File journal) throws IOException {
+		mJob = job;
+		mJournal = new IssuanceJournal(journal, job.describe(), 16, 1000);
+		for(IssuanceJournal.Record rec : mJournal.getRecords()) {
+			if(Result.SUCCESS.name().equals(rec.getResult())) {
+				mIssuedIdm.add(rec.getIdm());
+			}
+			mSeq = rec.getSeq() + 1;
+		}
+		mMasterKey = keys.getMasterKey(job.getMasterKeyRef());
+		if(mIssuedIdm.size() > 0) {
+			FelicaLog.i(TAG, "resume : " + mIssuedIdm.size() + "/" + job.getCount());
+		}
+	}
+
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+
+	/**
+	 * @return		true	ジョブの枚数を発行済み
+	 */
+	public synchronized boolean isFinished() {
+		return mIssuedIdm.size() >= mJob.getCount();
+	}
+
+
+	/**
+	 * かざされたカードの１次発行<br>
+	 * <br>
+	 * 結果はジャーナルに記録してから返す。IOExceptionも記録してから投げ直す。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @return		発行結果。ジョブが終わっている場合はnull。
+	 * @throws IOException
+	 */
+	public synchronized Result issue(FelicaLite felica) throws IOException {
+		if(isFinished()) {
+			return null;
+		}
+		String idm = toHex(felica.getIdm());
+		long start = System.currentTimeMillis();
+		if(mFirstMillis == 0) {
+			mFirstMillis = start;
+		}
+		if(mIssuedIdm.contains(idm)) {
+			//再開前に発行済み、または同じカードを2回かざした
+			record(idm, RESULT_DUPLICATE, start, 0);
+			count(Result.EISSUED, start);
+			return Result.EISSUED;
+		}
+
+		int[] frames = new int[1];
+		Result res;
+		try {
+			res = FelicaLiteIssuance.issuance1Fast(felica, mJob.getDfd(), mMasterKey, mJob.getKeyVersion(), frames);
+		} catch(IOException e) {
+			record(idm, RESULT_IOERROR, start, felica.getFrameCount());
+			mIoErrors++;
+			count(null, start);
+			throw e;
+		}
+		record(idm, res.name(), start, frames[0]);
+		if(res == Result.SUCCESS) {
+			mIssuedIdm.add(idm);
+			if(isFinished()) {
+				mJournal.sync();
+				FelicaLiteIssuance.clearKeys();
+			}
+		}
+		count(res, start);
+		return res;
+	}
+
+
+	/**
+	 * @return		現在の進捗
+	 */
+	public synchronized Stats getStats() {
+		long elapsed = (mFirstMillis != 0) ? System.currentTimeMillis() - mFirstMillis : 0;
+		return new Stats(mJob.getCount(), mIssuedIdm.size(), mProcessed,
+				new EnumMap<Result, Integer>(mResults), mIoErrors, elapsed, mCardMillis);
+	}
+
+
+	/**
+	 * 終了<br>
+	 * <br>
+	 * ジャーナルをfsyncして閉じ、個別化マスター鍵を0クリアする。<br>
+	 * 鍵スケジュールは呼んだスレッドの分だけ消えるので、{@link #issue}と同じスレッドで呼ぶこと。<br>
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		for(int i=0; i<mMasterKey.length; i++) {
+			mMasterKey[i] = 0;
+		}
+		FelicaLiteIssuance.clearKeys();
+		mJournal.close();
+	}
+
+
+	private void record(String idm, String result, long start, int frames) throws IOException {
+		mJournal.append(new IssuanceJournal.Record(mSeq++, idm, result, start,
+				System.currentTimeMillis() - start, frames));
+	}
+
+
+	private void count(Result res, long start) {
+		mProcessed++;
+		mCardMillis += System.currentTimeMillis() - start;
+		if(res != null) {
+			Integer n = mResults.get(res);
+			mResults.put(res, (n != null) ? n + 1 : 1);
+		}
+		if(mListener != null) {
+			mListener.onProgress(getStats());
+		}
+	}
+
+
+	private static String toHex(byte[] data) {
+		StringBuilder sb = new StringBuilder(data.length * 2);
+		for(int i=0; i<data.length; i++) {
+			sb.append(String.format("%02x", data[i]));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	BlockView
+ * @brief	バッファ上の1ブロック(16byte)を指すビューの基底
+ *
+ * バッファはコピーせずに参照し、値は取得・設定のたびにバッファから読み書きする。<br>
+ * wrap()で指す先を変えられるので、1つのインスタンスを複数のカード・複数ブロックの読込結果に使い回せる。<br>
+ * スレッドセーフではない。<br>
+ */
+public abstract class BlockView {
+	protected byte[] mBuf;
+	protected int mOffset;
+
+
+	/**
+	 * 指す先の変更
+	 *
+	 * @param buf		[in]ブロックを含むバッファ
+	 * @param offset	[in]ブロックの位置(ここから16byte)
+	 * @throws IllegalArgumentException	bufが短い
+	 */
+	protected void setBuffer(byte[] buf, int offset) {
+		if((buf == null) || (offset < 0) || (buf.length < offset + FelicaLite.SIZE_BLOCK)) {
+			throw new IllegalArgumentException(getClass().getSimpleName() + " : offset=" + offset);
+		}
+		mBuf = buf;
+		mOffset = offset;
+	}
+
+
+	/**
+	 * @return		参照しているバッファ
+	 */
+	public byte[] getBuffer() {
+		return mBuf;
+	}
+
+
+	/**
+	 * @return		参照しているブロックの位置
+	 */
+	public int getOffset() {
+		return mOffset;
+	}
+
+
+	/**
+	 * ブロックを0で埋める
+	 */
+	public void clear() {
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			mBuf[mOffset + i] = 0;
+		}
+	}
+
+
+	/**
+	 * ブロックの比較
+	 *
+	 * @param buf		[in]比較対象のバッファ
+	 * @param offset	[in]比較対象の位置(ここから16byte)
+	 * @return	true	一致
+	 */
+	public boolean equalsBlock(byte[] buf, int offset) {
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			if(mBuf[mOffset + i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * 2byte値(ビッグエンディアン)
+	 */
+	protected int getU16(int pos) {
+		return ((mBuf[mOffset + pos] & 0xff) << 8) | (mBuf[mOffset + pos + 1] & 0xff);
+	}
+
+	protected void setU16(int pos, int value) {
+		mBuf[mOffset + pos] = (byte)(value >> 8);
+		mBuf[mOffset + pos + 1] = (byte)value;
+	}
+
+
+	/**
+	 * [from, to)が全て0かどうか
+	 */
+	protected boolean isZero(int from, int to) {
+		for(int i=from; i<to; i++) {
+			if(mBuf[mOffset + i] != 0x00) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,68 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	CardImageArchive
+ * @brief	カードイメージアーカイブのファイル形式
+ *
+ * 固定長レコードを追記していく形式(ビッグエンディアン)。<br>
+ * 書き込みは{@link CardImageArchiveWriter}、読み込みは{@link CardImageArchiveReader}で行う。<br>
+ * <pre>
+ * ヘッダ(16byte)
+ *   0- 3 : magic "FLCI"
+ *   4- 5 : version
+ *   6- 7 : レコード長
+ *   8-15 : 予約(0)
+ * レコード(416byte)
+ *   0- 7 : IDm
+ *   8-15 : ダンプ時刻(ms)
+ *  16-19 : 有効ブロックのビットマップ(bit n : ブロックインデックスn)
+ *  20-31 : 予約(0)
+ *  32-   : ブロックデータ(16byte x 24)
+ * </pre>
+ * ブロックインデックスは、0～14がS_PAD0～REG、15～23がRC～MC。<br>
+ * RCとCKは書込専用、MACは単独では意味がないので、ダンプでは読まない(ビットは0)。<br>
+ */
+public final class CardImageArchive {
+	static final int MAGIC = 0x464c4349;		//"FLCI"
+	static final int VERSION = 1;
+
+	public static final int SIZE_HEADER = 16;
+	public static final int NUM_BLOCKS = (FelicaLite.REG + 1) + (FelicaLite.MC - FelicaLite.RC + 1);
+	public static final int OFFSET_IDM = 0;
+	public static final int OFFSET_TIME = 8;
+	public static final int OFFSET_VALID = 16;
+	public static final int OFFSET_BLOCKS = 32;
+	public static final int SIZE_RECORD = OFFSET_BLOCKS + NUM_BLOCKS * FelicaLite.SIZE_BLOCK;
+
+	/** ダンプで読み込むブロック(書込専用のRC, CKと、単独では意味のないMACを除く) */
+	static final int[] DUMP_BLOCKS = {
+		FelicaLite.PAD0, FelicaLite.PAD1, FelicaLite.PAD2, FelicaLite.PAD3,
+		FelicaLite.PAD4, FelicaLite.PAD5, FelicaLite.PAD6, FelicaLite.PAD7,
+		FelicaLite.PAD8, FelicaLite.PAD9, FelicaLite.PAD10, FelicaLite.PAD11,
+		FelicaLite.PAD12, FelicaLite.PAD13, FelicaLite.REG,
+		FelicaLite.ID, FelicaLite.D_ID, FelicaLite.SER_C, FelicaLite.SYS_C,
+		FelicaLite.CKV, FelicaLite.MC,
+	};
+
+
+	private CardImageArchive() {
+	}
+
+
+	/**
+	 * ブロック番号からブロックインデックスへの変換
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @return				ブロックインデックス / (-1)アーカイブ対象外
+	 */
+	public static int blockIndex(int blockNo) {
+		if((0 <= blockNo) && (blockNo <= FelicaLite.REG)) {
+			return blockNo;
+		}
+		if((FelicaLite.RC <= blockNo) && (blockNo <= FelicaLite.MC)) {
+			return FelicaLite.REG + 1 + blockNo - FelicaLite.RC;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,242 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * @class	CardImageArchiveReader
+ * @brief	カードイメージアーカイブの読み込み
+ *
+ * 形式は{@link CardImageArchive}を参照。<br>
+ * ファイルはメモリマップで読み、ヒープにはIDmのハッシュ表(int配列)だけを持つ。<br>
+ * - IDmからのレコード検索はO(1)。同じIDmが複数ある場合は最後のレコード。<br>
+ * - ブロックデータはコピーせず、マップしたバッファのビューとして返す。<br>
+ * <br>
+ * 開いた後に追記されたレコードは見えない。<br>
+ * 読み込みだけならスレッドセーフ。<br>
+ */
+public class CardImageArchiveReader {
+	/** 1つのマップに入れるレコード数(マップは2GBまで) */
+	private static final int RECORDS_PER_SEGMENT = Integer.MAX_VALUE / CardImageArchive.SIZE_RECORD;
+
+	private final RandomAccessFile mFile;
+	private final MappedByteBuffer[] mSegments;
+	private final int mRecords;
+	private final int[] mTable;		//レコード番号+1 (0は空き)
+	private final int mMask;
+
+
+	/**
+	 * アーカイブを開き、IDmの索引を作る
+	 *
+	 * @param file		[in]アーカイブファイル
+	 * @throws IOException		読み込み失敗、または形式不正
+	 */
+	public CardImageArchiveReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = mFile.getChannel();
+			checkHeader(ch);
+			long records = (ch.size() - CardImageArchive.SIZE_HEADER) / CardImageArchive.SIZE_RECORD;
+			if(records > (1 << 29)) {
+				throw new IOException("CardImageArchive : too many records");
+			}
+			mRecords = (int)records;
+
+			int segs = (mRecords + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT;
+			mSegments = new MappedByteBuffer[segs];
+			for(int i=0; i<segs; i++) {
+				int num = Math.min(RECORDS_PER_SEGMENT, mRecords - i * RECORDS_PER_SEGMENT);
+				long pos = CardImageArchive.SIZE_HEADER + (long)i * RECORDS_PER_SEGMENT * CardImageArchive.SIZE_RECORD;
+				mSegments[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, (long)num * CardImageArchive.SIZE_RECORD);
+			}
+		} catch(IOException e) {
+			mFile.close();
+			throw e;
+		}
+
+		//索引(オープンアドレス法、負荷率0.5以下)
+		int cap = 16;
+		while(cap < mRecords * 2) {
+			cap <<= 1;
+		}
+		mTable = new int[cap];
+		mMask = cap - 1;
+		for(int rec=0; rec<mRecords; rec++) {
+			long idm = idmOf(rec);
+			int slot = hash(idm) & mMask;
+			while(true) {
+				int cur = mTable[slot];
+				if(cur == 0) {
+					mTable[slot] = rec + 1;
+					break;
+				}
+				if(idmOf(cur - 1) == idm) {
+					mTable[slot] = rec + 1;		//新しい方で上書き
+					break;
+				}
+				slot = (slot + 1) & mMask;
+			}
+		}
+	}
+
+
+	/**
+	 * @return		レコード数
+	 */
+	public int size() {
+		return mRecords;
+	}
+
+
+	/**
+	 * IDmによるレコード検索
+	 *
+	 * @param idm		[in]IDm(8byte)
+	 * @return			レコード番号 / (-1)なし
+	 */
+	public int find(byte[] idm) {
+		long key = 0;
+		for(int i=0; i<8; i++) {
+			key = (key << 8) | (idm[i] & 0xff);
+		}
+		int slot = hash(key) & mMask;
+		while(true) {
+			int cur = mTable[slot];
+			if(cur == 0) {
+				return -1;
+			}
+			if(idmOf(cur - 1) == key) {
+				return cur - 1;
+			}
+			slot = (slot + 1) & mMask;
+		}
+	}
+
+
+	/**
+	 * IDmの取得
+	 *
+	 * @param record	[in]レコード番号
+	 * @param out		[out]IDm(8byte)
+	 */
+	public void getIdm(int record, byte[] out) {
+		long idm = idmOf(record);
+		for(int i=7; i>=0; i--) {
+			out[i] = (byte)idm;
+			idm >>>= 8;
+		}
+	}
+
+
+	/**
+	 * @param record	[in]レコード番号
+	 * @return			ダンプ時刻(ms)
+	 */
+	public long getTime(int record) {
+		return segment(record).getLong(offset(record) + CardImageArchive.OFFSET_TIME);
+	}
+
+
+	/**
+	 * @param record	[in]レコード番号
+	 * @return			有効ブロックのビットマップ
+	 */
+	public int getValidMask(int record) {
+		return segment(record).getInt(offset(record) + CardImageArchive.OFFSET_VALID);
+	}
+
+
+	/**
+	 * ブロックデータの取得(コピーなし)<br>
+	 * <br>
+	 * 返すバッファは読み込み専用で、position=0, limit=16のビュー。<br>
+	 *
+	 * @param record	[in]レコード番号
+	 * @param blockNo	[in]ブロック番号
+	 * @return			ブロックデータ / (null)アーカイブ対象外のブロック
+	 */
+	public ByteBuffer getBlock(int record, int blockNo) {
+		int idx = CardImageArchive.blockIndex(blockNo);
+		if(idx < 0) {
+			return null;
+		}
+		ByteBuffer buf = segment(record).duplicate();
+		int pos = offset(record) + CardImageArchive.OFFSET_BLOCKS + idx * FelicaLite.SIZE_BLOCK;
+		buf.limit(pos + FelicaLite.SIZE_BLOCK);
+		buf.position(pos);
+		return buf.slice();
+	}
+
+
+	/**
+	 * ブロックデータの取得(呼び出し元バッファへのコピー)
+	 *
+	 * @param record	[in]レコード番号
+	 * @param blockNo	[in]ブロック番号
+	 * @param out		[out]ブロックデータ
+	 * @param outOffset	[in]outへの書き込み開始位置
+	 * @return	true	有効なブロック
+	 */
+	public boolean getBlock(int record, int blockNo, byte[] out, int outOffset) {
+		int idx = CardImageArchive.blockIndex(blockNo);
+		if((idx < 0) || ((getValidMask(record) & (1 << idx)) == 0)) {
+			return false;
+		}
+		MappedByteBuffer seg = segment(record);
+		int pos = offset(record) + CardImageArchive.OFFSET_BLOCKS + idx * FelicaLite.SIZE_BLOCK;
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			out[outOffset + i] = seg.get(pos + i);
+		}
+		return true;
+	}
+
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+
+	/**
+	 * ヘッダの確認
+	 */
+	static void checkHeader(FileChannel ch) throws IOException {
+		ByteBuffer hdr = ByteBuffer.allocate(CardImageArchive.SIZE_HEADER);
+		while(hdr.hasRemaining()) {
+			if(ch.read(hdr, hdr.position()) < 0) {
+				throw new IOException("CardImageArchive : short header");
+			}
+		}
+		hdr.flip();
+		if((hdr.getInt() != CardImageArchive.MAGIC)
+		  || (hdr.getShort() != CardImageArchive.VERSION)
+		  || (hdr.getShort() != CardImageArchive.SIZE_RECORD)) {
+			throw new IOException("CardImageArchive : bad header");
+		}
+	}
+
+
+	private MappedByteBuffer segment(int record) {
+		return mSegments[record / RECORDS_PER_SEGMENT];
+	}
+
+	private static int offset(int record) {
+		return (record % RECORDS_PER_SEGMENT) * CardImageArchive.SIZE_RECORD;
+	}
+
+	private long idmOf(int record) {
+		return segment(record).getLong(offset(record) + CardImageArchive.OFFSET_IDM);
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
@@ -0,0 +1,143 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * @class	CardImageArchiveWriter
+ * @brief	カードイメージアーカイブへの追記
+ *
+ * 形式は{@link CardImageArchive}を参照。<br>
+ * 開くときに、途中で切れた最終レコードは捨てる。<br>
+ * スレッドセーフではない。<br>
+ */
+public class CardImageArchiveWriter {
+	private static final String TAG = "CardImageArchiveWriter";
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final ByteBuffer mRecord = ByteBuffer.allocate(CardImageArchive.SIZE_RECORD);
+	private final byte[] mDump = new byte[CardImageArchive.DUMP_BLOCKS.length * FelicaLite.SIZE_BLOCK];
+	private final byte[] mImage = new byte[CardImageArchive.NUM_BLOCKS * FelicaLite.SIZE_BLOCK];
+	private final int[] mBlockStatus = new int[CardImageArchive.DUMP_BLOCKS.length];
+	private long mPosition;
+
+
+	/**
+	 * アーカイブを開く(なければ作る)
+	 *
+	 * @param file		[in]アーカイブファイル
+	 * @throws IOException		読み書き失敗、または形式不正
+	 */
+	public CardImageArchiveWriter(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "rw");
+		mChannel = mFile.getChannel();
+		try {
+			long len = mChannel.size();
+			if(len < CardImageArchive.SIZE_HEADER) {
+				ByteBuffer hdr = ByteBuffer.allocate(CardImageArchive.SIZE_HEADER);
+				hdr.putInt(CardImageArchive.MAGIC);
+				hdr.putShort((short)CardImageArchive.VERSION);
+				hdr.putShort((short)CardImageArchive.SIZE_RECORD);
+				hdr.flip();
+				mChannel.truncate(0);
+				mChannel.write(hdr, 0);
+				len = CardImageArchive.SIZE_HEADER;
+			} else {
+				CardImageArchiveReader.checkHeader(mChannel);
+			}
+			long records = (len - CardImageArchive.SIZE_HEADER) / CardImageArchive.SIZE_RECORD;
+			mPosition = CardImageArchive.SIZE_HEADER + records * CardImageArchive.SIZE_RECORD;
+			if(mPosition != len) {
+				mChannel.truncate(mPosition);
+			}
+		} catch(IOException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * 1カード分の追記
+	 *
+	 * @param idm			[in]IDm(8byte)
+	 * @param time			[in]ダンプ時刻(ms)
+	 * @param validMask	[in]有効ブロックのビットマップ
+	 * @param blocks		[in]ブロックデータ(ブロックインデックス順に24ブロック)
+	 * @param offset		[in]blocksの読み込み開始位置
+	 * @throws IOException
+	 */
+	public void append(byte[] idm, long time, int validMask, byte[] blocks, int offset) throws IOException {
+		mRecord.clear();
+		mRecord.put(idm, 0, 8);
+		mRecord.putLong(time);
+		mRecord.putInt(validMask);
+		while(mRecord.position() < CardImageArchive.OFFSET_BLOCKS) {
+			mRecord.put((byte)0);
+		}
+		mRecord.put(blocks, offset, CardImageArchive.NUM_BLOCKS * FelicaLite.SIZE_BLOCK);
+		mRecord.flip();
+		while(mRecord.hasRemaining()) {
+			mPosition += mChannel.write(mRecord, mPosition);
+		}
+	}
+
+
+	/**
+	 * カードを読み込んで追記する<br>
+	 * <br>
+	 * {@link CardImageArchive#DUMP_BLOCKS}を{@link FelicaLite#readBlocks(int[], byte[], int, int[], int[])}で読み込む。
+	 * 読めなかったブロックは無効(内容は0)として記録する。
+	 * シャドウ有効時も、ブロックごとの結果で判断する。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @return				有効ブロックのビットマップ
+	 * @throws IOException
+	 */
+	public int dump(FelicaLite felica) throws IOException {
+		//前のカードの内容が残らないよう、読み込み前に消しておく
+		Arrays.fill(mDump, (byte)0);
+		Arrays.fill(mBlockStatus, FelicaLite.FRAME_ERR_RESPONSE);
+		if(!felica.readBlocks(CardImageArchive.DUMP_BLOCKS, mDump, 0, null, mBlockStatus)) {
+			FelicaLog.v(TAG, "dump : read fail");
+		}
+
+		Arrays.fill(mImage, (byte)0);
+		int valid = 0;
+		for(int i=0; i<CardImageArchive.DUMP_BLOCKS.length; i++) {
+			if(mBlockStatus[i] != FelicaLite.FRAME_OK) {
+				continue;
+			}
+			int idx = CardImageArchive.blockIndex(CardImageArchive.DUMP_BLOCKS[i]);
+			System.arraycopy(mDump, i * FelicaLite.SIZE_BLOCK, mImage, idx * FelicaLite.SIZE_BLOCK, FelicaLite.SIZE_BLOCK);
+			valid |= 1 << idx;
+		}
+		append(felica.getIdm(), System.currentTimeMillis(), valid, mImage, 0);
+		return valid;
+	}
+
+
+	/**
+	 * ストレージへの書き出し
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		mChannel.force(false);
+	}
+
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			mFile.close();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @class	CardKeyCache
+ * @brief	個別化カード鍵のキャッシュ
+ *
+ * IDブロックと個別化マスター鍵のフィンガープリント(SHA-256の先頭8byte)をキーにして、
+ * 計算済みの個別化カード鍵を保持する。マスター鍵そのものは保持しない。<br>
+ * <br>
+ * - 最大件数を超えると、LRU(またはFIFO)で追い出す。<br>
+ * - 登録から最大保持時間を過ぎたカード鍵は使わずに破棄する。<br>
+ * - 破棄するカード鍵は0クリアする。<br>
+ * <br>
+ * 期限切れのカード鍵は、get/put/sizeのたびに掃除するのに加え、
+ * 登録があればバックグラウンドで期限に合わせて破棄する。
+ * アクセスが途絶えても、カード鍵が最大保持時間を大きく超えて残ることはない。<br>
+ * <br>
+ * フィンガープリントはget/putのたびに計算する(24byteのSHA-256を1回。メモリ確保はしない)。<br>
+ */
+public class CardKeyCache {
+	private static final int SIZE_FINGERPRINT = 8;
+
+	private static final class CachedKey {
+		final byte[] mCardKey;
+		final long mCreated;
+
+		CachedKey(byte[] cardKey, long created) {
+			mCardKey = cardKey;
+			mCreated = created;
+		}
+
+		void wipe() {
+			Arrays.fill(mCardKey, (byte)0);
+		}
+	}
+
+	/** IDブロック + マスター鍵フィンガープリント */
+	private static final class Key {
+		final byte[] mData;
+		int mHash;
+
+		Key(byte[] data) {
+			mData = data;
+			mHash = Arrays.hashCode(data);
+		}
+
+		/** ハッシュ値計算済みのデータから作る */
+		Key(byte[] data, int hash) {
+			mData = data;
+			mHash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof Key) && Arrays.equals(mData, ((Key)o).mData);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+	}
+
+	/** 期限切れの掃除(全キャッシュで1スレッドを共有する) */
+	private static final ScheduledExecutorService sPurger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "card-key-purge");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final int mMaxEntries;
+	private final long mMaxAgeMillis;
+	private final LinkedHashMap<Key, CachedKey> mMap;
+	private int mHit;
+	private int mMiss;
+
+	/** 登録中で最も古いmCreated(空ならLong.MAX_VALUE) */
+	private long mOldest = Long.MAX_VALUE;
+	private boolean mPurgeScheduled;
+	private final Runnable mPurgeTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(CardKeyCache.this) {
+				mPurgeScheduled = false;
+				purge();
+				schedulePurge();
+			}
+		}
+	};
+
+	private final MessageDigest mDigest;
+	private final byte[] mDigestOut = new byte[32];
+	private final Key mProbe = new Key(new byte[FelicaLite.SIZE_BLOCK + SIZE_FINGERPRINT], 0);
+
+
+	/**
+	 * LRUのキャッシュを作る
+	 *
+	 * @param maxEntries		[in]最大件数
+	 * @param maxAgeMillis		[in]カード鍵の最大保持時間(ms)
+	 */
+	public CardKeyCache(int maxEntries, long maxAgeMillis) {
+		this(maxEntries, maxAgeMillis, true);
+	}
+
+
+	/**
+	 * @param maxEntries		[in]最大件数
+	 * @param maxAgeMillis		[in]カード鍵の最大保持時間(ms)
+	 * @param lru				[in]true:最後に使ってから最も古いものを追い出す / false:登録が最も古いものを追い出す
+	 */
+	public CardKeyCache(int maxEntries, long maxAgeMillis, boolean lru) {
+		mMaxEntries = maxEntries;
+		mMaxAgeMillis = maxAgeMillis;
+		try {
+			mDigest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		mMap = new LinkedHashMap<Key, CachedKey>(16, 0.75f, lru) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedKey> eldest) {
+				if(size() > mMaxEntries) {
+					eldest.getValue().wipe();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+
+	/**
+	 * キャッシュからの取得
+	 *
+	 * @param cardKey		[out]個別化カード鍵(16byte)
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param id			[in]IDブロック(16byte)
+	 * @return		true	キャッシュにあった
+	 */
+	public synchronized boolean get(byte[] cardKey, byte[] masterKey, byte[] id) {
+		expire(System.currentTimeMillis());
+		CachedKey e = mMap.get(probe(masterKey, id));
+		if(e == null) {
+			mMiss++;
+			return false;
+		}
+		System.arraycopy(e.mCardKey, 0, cardKey, 0, FelicaLite.SIZE_BLOCK);
+		mHit++;
+		return true;
+	}
+
+
+	/**
+	 * キャッシュへの登録
+	 *
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param id			[in]IDブロック(16byte)
+	 * @param cardKey		[in]個別化カード鍵(16byte)。コピーして保持する。
+	 */
+	public synchronized void put(byte[] masterKey, byte[] id, byte[] cardKey) {
+		long now = System.currentTimeMillis();
+		expire(now);
+		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
+		System.arraycopy(cardKey, 0, ck, 0, FelicaLite.SIZE_BLOCK);
+		Key probe = probe(masterKey, id);
+		CachedKey old = mMap.put(new Key(probe.mData.clone(), probe.mHash), new CachedKey(ck, now));
+		if(old != null) {
+			old.wipe();
+		}
+		if(now < mOldest) {
+			mOldest = now;
+		}
+		schedulePurge();
+	}
+
+
+	/**
+	 * 最大保持時間を過ぎたカード鍵の破棄
+	 */
+	public synchronized void purge() {
+		long now = System.currentTimeMillis();
+		long oldest = Long.MAX_VALUE;
+		Iterator<CachedKey> it = mMap.values().iterator();
+		while(it.hasNext()) {
+			CachedKey e = it.next();
+			if(now - e.mCreated >= mMaxAgeMillis) {
+				e.wipe();
+				it.remove();
+			} else if(e.mCreated < oldest) {
+				oldest = e.mCreated;
+			}
+		}
+		mOldest = oldest;
+		if(mMap.isEmpty()) {
+			wipeProbe();
+		}
+	}
+
+
+	/**
+	 * 全カード鍵の破棄
+	 */
+	public synchronized void clear() {
+		for(CachedKey e : mMap.values()) {
+			e.wipe();
+		}
+		mMap.clear();
+		mOldest = Long.MAX_VALUE;
+		wipeProbe();
+	}
+
+
+	public synchronized int size() {
+		expire(System.currentTimeMillis());
+		return mMap.size();
+	}
+
+	public synchronized int getHitCount() {
+		return mHit;
+	}
+
+	public synchronized int getMissCount() {
+		return mMiss;
+	}
+
+
+	/**
+	 * 最も古いカード鍵が期限切れなら掃除する(lock中に呼ぶ)
+	 */
+	private void expire(long now) {
+		if((mOldest != Long.MAX_VALUE) && (now - mOldest >= mMaxAgeMillis)) {
+			purge();
+		}
+	}
+
+
+	/**
+	 * 最も古いカード鍵の期限に合わせて掃除を予約する(lock中に呼ぶ)
+	 */
+	private void schedulePurge() {
+		if(mPurgeScheduled || (mOldest == Long.MAX_VALUE)) {
+			return;
+		}
+		long delay = mOldest + mMaxAgeMillis - System.currentTimeMillis();
+		sPurger.schedule(mPurgeTask, (delay > 0) ? delay : 0, TimeUnit.MILLISECONDS);
+		mPurgeScheduled = true;
+	}
+
+
+	/**
+	 * 検索用キーの作成(lock中に呼ぶ)<br>
+	 * <br>
+	 * 返すのは使い回しのインスタンスなので、mapに登録する場合はコピーすること。<br>
+	 */
+	private Key probe(byte[] masterKey, byte[] id) {
+		mDigest.update(masterKey, 0, 24);
+		try {
+			mDigest.digest(mDigestOut, 0, mDigestOut.length);
+		} catch(DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] data = mProbe.mData;
+		System.arraycopy(id, 0, data, 0, FelicaLite.SIZE_BLOCK);
+		System.arraycopy(mDigestOut, 0, data, FelicaLite.SIZE_BLOCK, SIZE_FINGERPRINT);
+		Arrays.fill(mDigestOut, (byte)0);
+		mProbe.mHash = Arrays.hashCode(data);
+		return mProbe;
+	}
+
+
+	/**
+	 * 検索用キーに残ったIDとフィンガープリントの0クリア(lock中に呼ぶ)
+	 */
+	private void wipeProbe() {
+		Arrays.fill(mProbe.mData, (byte)0);
+		mProbe.mHash = 0;
+	}
+}
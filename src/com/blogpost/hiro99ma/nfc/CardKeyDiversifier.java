@@ -0,0 +1,415 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @class	CardKeyDiversifier
+ * @brief	1つの個別化マスター鍵による個別化カード鍵の一括作成
+ *
+ * {@link FelicaLiteIssuance#calcPersonalCardKey}と同じ結果(FeliCaのバイト並び替えを含む)を、
+ * JCEを使わずにテーブル引きのDESで計算する。<br>
+ * <br>
+ * - 鍵スケジュールと、IDに依存しないK1(0を暗号化したLから作る)は生成時に1回だけ計算する。<br>
+ * - 1カードあたりの3DESは4回(calcPersonalCardKeyは5回)で、呼び出し中にメモリ確保はしない。<br>
+ * - 生成後は状態を変えないので、複数スレッドから同時に呼び出してよい({@link #clear()}を除く)。<br>
+ * <br>
+ * IDブロックとカード鍵は、どちらも16byteずつ詰めて並べる。<br>
+ */
+public final class CardKeyDiversifier {
+
+	private static final String TAG = "CardKeyDiversifier";
+
+	/** {@link #diversify(byte[], byte[], int, int)}で1スレッドに渡す最小件数 */
+	private static final int MIN_CHUNK = 1024;
+
+	// FIPS 46-3のテーブル(ビット番号は上位から1始まり)
+	private static final byte[] IP = {
+		58, 50, 42, 34, 26, 18, 10, 2,
+		60, 52, 44, 36, 28, 20, 12, 4,
+		62, 54, 46, 38, 30, 22, 14, 6,
+		64, 56, 48, 40, 32, 24, 16, 8,
+		57, 49, 41, 33, 25, 17, 9, 1,
+		59, 51, 43, 35, 27, 19, 11, 3,
+		61, 53, 45, 37, 29, 21, 13, 5,
+		63, 55, 47, 39, 31, 23, 15, 7,
+	};
+	private static final byte[] P = {
+		16, 7, 20, 21, 29, 12, 28, 17,
+		1, 15, 23, 26, 5, 18, 31, 10,
+		2, 8, 24, 14, 32, 27, 3, 9,
+		19, 13, 30, 6, 22, 11, 4, 25,
+	};
+	private static final byte[] PC1 = {
+		57, 49, 41, 33, 25, 17, 9,
+		1, 58, 50, 42, 34, 26, 18,
+		10, 2, 59, 51, 43, 35, 27,
+		19, 11, 3, 60, 52, 44, 36,
+		63, 55, 47, 39, 31, 23, 15,
+		7, 62, 54, 46, 38, 30, 22,
+		14, 6, 61, 53, 45, 37, 29,
+		21, 13, 5, 28, 20, 12, 4,
+	};
+	private static final byte[] PC2 = {
+		14, 17, 11, 24, 1, 5,
+		3, 28, 15, 6, 21, 10,
+		23, 19, 12, 4, 26, 8,
+		16, 7, 27, 20, 13, 2,
+		41, 52, 31, 37, 47, 55,
+		30, 40, 51, 45, 33, 48,
+		44, 49, 39, 56, 34, 53,
+		46, 42, 50, 36, 29, 32,
+	};
+	private static final byte[] SHIFTS = { 1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1 };
+	private static final byte[][] S = {
+		{
+			14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+			0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+			4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+			15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13,
+		},
+		{
+			15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+			3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+			0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+			13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9,
+		},
+		{
+			10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+			13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+			13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+			1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12,
+		},
+		{
+			7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+			13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+			10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+			3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14,
+		},
+		{
+			2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+			14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+			4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+			11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3,
+		},
+		{
+			12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+			10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+			9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+			4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13,
+		},
+		{
+			4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+			13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+			1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+			6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12,
+		},
+		{
+			13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+			1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+			7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+			2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11,
+		},
+	};
+
+	// 上のテーブルから作る引き表
+	private static final long[][] IP_TABLE = new long[8][256];		///!< 初期転置(入力1byteごと)
+	private static final long[][] FP_TABLE = new long[8][256];		///!< 最終転置(入力1byteごと)
+	private static final int[] SP_TABLE = new int[8 * 64];		///!< S-box + P転置(S-boxごとに64個)
+
+	static {
+		byte[] fp = new byte[64];
+		for(int i=0; i<64; i++) {
+			fp[IP[i] - 1] = (byte)(i + 1);
+		}
+		for(int b=0; b<8; b++) {
+			for(int v=0; v<256; v++) {
+				long in = (long)v << (56 - 8 * b);
+				IP_TABLE[b][v] = permute(in, 64, IP);
+				FP_TABLE[b][v] = permute(in, 64, fp);
+			}
+		}
+		for(int s=0; s<8; s++) {
+			for(int v=0; v<64; v++) {
+				//外側の2bitが行、内側の4bitが列
+				int row = ((v >> 4) & 0x02) | (v & 0x01);
+				int col = (v >> 1) & 0x0f;
+				long out = (long)S[s][row * 16 + col] << (28 - 4 * s);
+				SP_TABLE[s * 64 + v] = (int)permute(out, 32, P);
+			}
+		}
+	}
+
+	/**
+	 * 3DES(EDE)のラウンド鍵。1ラウンドあたり8個(S-boxごとの6bit)。<br>
+	 * [0-15]KEY1暗号化, [16-31]KEY2復号, [32-47]KEY3暗号化
+	 */
+	private final int[] mSubKeys = new int[48 * 8];
+	/** K1(calcPersonalCardKeyの手順3) */
+	private long mK1;
+
+
+	/**
+	 * @param masterKey	[in]個別化マスター鍵K(24byte)
+	 * @throws IllegalArgumentException	鍵の長さが足りない
+	 */
+	public CardKeyDiversifier(byte[] masterKey) {
+		if((masterKey == null) || (masterKey.length < 24)) {
+			throw new IllegalArgumentException("CardKeyDiversifier : masterKey");
+		}
+		long[] ks = new long[16];
+		for(int k=0; k<3; k++) {
+			keySchedule(ks, readLong(masterKey, k * 8));
+			for(int i=0; i<16; i++) {
+				//KEY2は復号なので逆順
+				long sk = (k == 1) ? ks[15 - i] : ks[i];
+				for(int j=0; j<8; j++) {
+					mSubKeys[(k * 16 + i) * 8 + j] = (int)(sk >>> (42 - 6 * j)) & 0x3f;
+				}
+			}
+		}
+		for(int i=0; i<16; i++) {
+			ks[i] = 0;
+		}
+
+		//2. 8byte分の0x00を平文、Kを鍵として3DES→結果L
+		//3. L → K1
+		long l = encrypt(0);
+		mK1 = (l << 1) ^ ((l >> 63) & 0x1b);
+	}
+
+
+	/**
+	 * 個別化カード鍵作成(1件)
+	 *
+	 * @param personalKey	[out]生成した個別化カード鍵(16byte)
+	 * @param id			[in]IDブロックM(16byte)
+	 * @return		true	作成成功
+	 */
+	public boolean diversify(byte[] personalKey, byte[] id) {
+		return diversify(personalKey, id, 1);
+	}
+
+
+	/**
+	 * 個別化カード鍵作成(一括)
+	 *
+	 * @param keys		[out]生成した個別化カード鍵(16byte × count)
+	 * @param ids		[in]IDブロック(16byte × count)
+	 * @param count	[in]件数
+	 * @return		true	作成成功
+	 */
+	public boolean diversify(byte[] keys, byte[] ids, int count) {
+		if(!checkParam(keys, ids, count)) {
+			return false;
+		}
+		diversifyRange(keys, ids, 0, count);
+		return true;
+	}
+
+
+	/**
+	 * 個別化カード鍵作成(一括、複数スレッド)<br>
+	 * <br>
+	 * 件数を最大threads個に分けて並列に計算する。
+	 * 件数が少ない場合は、呼び出したスレッドだけで計算する。<br>
+	 *
+	 * @param keys		[out]生成した個別化カード鍵(16byte × count)
+	 * @param ids		[in]IDブロック(16byte × count)
+	 * @param count	[in]件数
+	 * @param threads	[in]スレッド数
+	 * @return		true	作成成功
+	 * @throws InterruptedException
+	 */
+	public boolean diversify(final byte[] keys, final byte[] ids, int count, int threads) throws InterruptedException {
+		if(!checkParam(keys, ids, count)) {
+			return false;
+		}
+		int chunk = Math.max(MIN_CHUNK, (count + threads - 1) / Math.max(threads, 1));
+		if((threads <= 1) || (count <= chunk)) {
+			diversifyRange(keys, ids, 0, count);
+			return true;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for(int i=0; i<count; i+=chunk) {
+				final int from = i;
+				final int to = Math.min(i + chunk, count);
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						diversifyRange(keys, ids, from, to);
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+
+	/**
+	 * 鍵の破棄<br>
+	 * <br>
+	 * ラウンド鍵とK1を0で埋める。以降の計算結果は正しくない。<br>
+	 */
+	public void clear() {
+		for(int i=0; i<mSubKeys.length; i++) {
+			mSubKeys[i] = 0;
+		}
+		mK1 = 0;
+	}
+
+
+	private static boolean checkParam(byte[] keys, byte[] ids, int count) {
+		int len = count * FelicaLite.SIZE_BLOCK;
+		if((keys == null) || (ids == null) || (count < 0) || (keys.length < len) || (ids.length < len)) {
+			FelicaLog.e(TAG, "diversify : param");
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * [from, to)の個別化カード鍵作成
+	 */
+	private void diversifyRange(byte[] keys, byte[] ids, int from, int to) {
+		long k1 = mK1;
+		for(int n=from; n<to; n++) {
+			int pos = n * FelicaLite.SIZE_BLOCK;
+
+			//4. Mを先頭から8byteずつに分け、M1, M2*とする
+			//5. M2* xor K1 → M2
+			//	(FeliCa Liteのバイト並び替えは、リトルエンディアンで読むことで行う)
+			long m1 = readLongReverse(ids, pos);
+			long m2 = readLongReverse(ids, pos + 8) ^ k1;
+
+			//6. M1 → C1,  7. (C1 xor M2) → T
+			long t = encrypt(encrypt(m1) ^ m2);
+			//8. M1の最上位ビットを反転→M1'
+			//9. M1' → C1',  10. (C1' xor M2) → T'
+			long t2 = encrypt(encrypt(m1 ^ 0x8000000000000000L) ^ m2);
+
+			//11. Tを上位8byte、T'を下位8byte→結果C→個別化カード鍵
+			writeLong(keys, pos, t);
+			writeLong(keys, pos + 8, t2);
+		}
+	}
+
+
+	/**
+	 * Triple-DES暗号化(EDE、1ブロック)<br>
+	 * <br>
+	 * 段の間の最終転置と初期転置は打ち消し合うので、最初と最後に1回ずつだけ行う。<br>
+	 */
+	private long encrypt(long in) {
+		int[] sk = mSubKeys;
+		long b = permute(IP_TABLE, in);
+		int l = (int)(b >>> 32);
+		int r = (int)b;
+		for(int k=0; k<48; k+=16) {
+			for(int i=k*8; i<(k+16)*8; i+=16) {
+				l ^= f(r, sk, i);
+				r ^= f(l, sk, i + 8);
+			}
+			//16ラウンド後の入れ替え
+			int t = l;
+			l = r;
+			r = t;
+		}
+		return permute(FP_TABLE, ((long)l << 32) | (r & 0xffffffffL));
+	}
+
+
+	/**
+	 * ラウンド関数<br>
+	 * <br>
+	 * 拡大転置は、Rを右に1bit回転させてから4bitずつずらした6bitを取り出すことで行う。<br>
+	 */
+	private static int f(int r, int[] sk, int pos) {
+		int x = (r >>> 1) | (r << 31);
+		int[] sp = SP_TABLE;
+		return sp[((x >>> 26) ^ sk[pos]) & 0x3f]
+				| sp[64 + (((x >>> 22) ^ sk[pos + 1]) & 0x3f)]
+				| sp[128 + (((x >>> 18) ^ sk[pos + 2]) & 0x3f)]
+				| sp[192 + (((x >>> 14) ^ sk[pos + 3]) & 0x3f)]
+				| sp[256 + (((x >>> 10) ^ sk[pos + 4]) & 0x3f)]
+				| sp[320 + (((x >>> 6) ^ sk[pos + 5]) & 0x3f)]
+				| sp[384 + (((x >>> 2) ^ sk[pos + 6]) & 0x3f)]
+				| sp[448 + ((((x << 2) | (x >>> 30)) ^ sk[pos + 7]) & 0x3f)];
+	}
+
+
+	/**
+	 * DES鍵(8byte)から16個のラウンド鍵を作る
+	 */
+	private static void keySchedule(long[] out, long key) {
+		long cd = permute(key, 64, PC1);
+		int c = (int)(cd >>> 28) & 0x0fffffff;
+		int d = (int)cd & 0x0fffffff;
+		for(int i=0; i<16; i++) {
+			int s = SHIFTS[i];
+			c = ((c << s) | (c >>> (28 - s))) & 0x0fffffff;
+			d = ((d << s) | (d >>> (28 - s))) & 0x0fffffff;
+			out[i] = permute(((long)c << 28) | d, 56, PC2);
+		}
+	}
+
+
+	/**
+	 * 転置(テーブル作成用)
+	 *
+	 * @param in		[in]入力(下位inBitsビットを使用)
+	 * @param inBits	[in]入力のビット数
+	 * @param table	[in]出力ビットごとの入力ビット番号(上位から1始まり)
+	 * @return		出力(下位table.lengthビット)
+	 */
+	private static long permute(long in, int inBits, byte[] table) {
+		long out = 0;
+		for(int i=0; i<table.length; i++) {
+			out = (out << 1) | ((in >>> (inBits - table[i])) & 1);
+		}
+		return out;
+	}
+
+
+	private static long permute(long[][] table, long in) {
+		long out = 0;
+		for(int b=0; b<8; b++) {
+			out |= table[b][(int)(in >>> (56 - 8 * b)) & 0xff];
+		}
+		return out;
+	}
+
+
+	private static long readLong(byte[] buf, int pos) {
+		long v = 0;
+		for(int i=0; i<8; i++) {
+			v = (v << 8) | (buf[pos + i] & 0xff);
+		}
+		return v;
+	}
+
+
+	private static long readLongReverse(byte[] buf, int pos) {
+		long v = 0;
+		for(int i=7; i>=0; i--) {
+			v = (v << 8) | (buf[pos + i] & 0xff);
+		}
+		return v;
+	}
+
+
+	private static void writeLong(byte[] buf, int pos, long v) {
+		for(int i=7; i>=0; i--) {
+			buf[pos + i] = (byte)v;
+			v >>>= 8;
+		}
+	}
+}
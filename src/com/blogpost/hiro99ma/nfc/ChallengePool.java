@@ -0,0 +1,248 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @class	ChallengePool
+ * @brief	ランダムチャレンジ(RC)の作り置き
+ *
+ * 1つのSecureRandomで16byteのRCを作り置きしておき、MAC確認のたびに取り出す。<br>
+ * SecureRandomの初回のシードはブロックすることがあるので、
+ * 生成はバックグラウンドのスレッドで行い、カード処理では待たない。<br>
+ * <br>
+ * - 残りがlowWater以下になったら、capacityまでバックグラウンドで補充する。<br>
+ * - 空の場合は呼び出し元のスレッドで生成する(ミスとして数える)。<br>
+ * - 取り出したRCはプールから0クリアする。<br>
+ * <br>
+ * スレッドセーフ。<br>
+ */
+public final class ChallengePool implements ChallengeSource {
+	private static final int SIZE_RC = FelicaLite.SIZE_BLOCK;
+	private static final int DEFAULT_CAPACITY = 32;
+	private static final int DEFAULT_LOW_WATER = 8;
+
+	private static ChallengePool sDefault;
+
+	private final SecureRandom mRandom = new SecureRandom();
+	private final int mCapacity;
+	private final int mLowWater;
+	private final byte[] mPool;
+	private int mHead;				//次に取り出す位置
+	private int mCount;			//残り
+	private boolean mRefilling;
+
+	private long mTakeCount;
+	private long mMissCount;
+	private long mRefillCount;
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Runnable mRefill = new Runnable() {
+		@Override
+		public void run() {
+			refill();
+		}
+	};
+
+
+	/**
+	 * @param capacity		[in]作り置きするRCの数
+	 * @param lowWater		[in]補充を始める残り数(capacity未満)
+	 */
+	public ChallengePool(int capacity, int lowWater) {
+		if((capacity < 1) || (lowWater < 0) || (lowWater >= capacity)) {
+			throw new IllegalArgumentException("ChallengePool : capacity=" + capacity + ", lowWater=" + lowWater);
+		}
+		mCapacity = capacity;
+		mLowWater = lowWater;
+		mPool = new byte[capacity * SIZE_RC];
+
+		mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "rc-refill");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mExecutor.allowCoreThreadTimeOut(true);
+
+		//シードも含めて、最初の補充を始めておく
+		synchronized(this) {
+			startRefill();
+		}
+	}
+
+
+	/**
+	 * プロセス全体で使うプール(デフォルトは32個、残り8個で補充)<br>
+	 * <br>
+	 * 最初に呼んだ時点で補充を始めるので、カードをかざす前(onCreateなど)に呼んでおくとよい。<br>
+	 * 大きさを変える場合は、先に{@link #setDefault(ChallengePool)}を呼んでおく。<br>
+	 */
+	public static synchronized ChallengePool getDefault() {
+		if(sDefault == null) {
+			sDefault = new ChallengePool(DEFAULT_CAPACITY, DEFAULT_LOW_WATER);
+		}
+		return sDefault;
+	}
+
+
+	/**
+	 * プロセス全体で使うプールの差し替え<br>
+	 * <br>
+	 * {@link FelicaLite#setChallengeSource}で指定していないセッションは、以降このプールを使う。<br>
+	 * 前のプールは{@link #shutdown()}しないので、不要なら呼び出し元で止めること。<br>
+	 *
+	 * @param pool		[in]新しいプール
+	 * @return			前のプール(まだ作っていなければnull)
+	 */
+	public static synchronized ChallengePool setDefault(ChallengePool pool) {
+		if(pool == null) {
+			throw new IllegalArgumentException("ChallengePool : null");
+		}
+		ChallengePool old = sDefault;
+		sDefault = pool;
+		return old;
+	}
+
+
+	/**
+	 * RCの取り出し
+	 *
+	 * @param rc		[out]RC(16byte)
+	 * @param offset	[in]rcへの書き込み開始位置
+	 */
+	@Override
+	public void take(byte[] rc, int offset) {
+		synchronized(this) {
+			mTakeCount++;
+			if(mCount > 0) {
+				int pos = mHead * SIZE_RC;
+				System.arraycopy(mPool, pos, rc, offset, SIZE_RC);
+				Arrays.fill(mPool, pos, pos + SIZE_RC, (byte)0);
+				mHead = (mHead + 1) % mCapacity;
+				mCount--;
+				if(mCount <= mLowWater) {
+					startRefill();
+				}
+				return;
+			}
+			mMissCount++;
+			startRefill();
+		}
+
+		//空なのでここで作る
+		byte[] tmp = new byte[SIZE_RC];
+		mRandom.nextBytes(tmp);
+		System.arraycopy(tmp, 0, rc, offset, SIZE_RC);
+		Arrays.fill(tmp, (byte)0);
+	}
+
+
+	/**
+	 * RCの取り出し
+	 *
+	 * @return		RC(16byte)
+	 */
+	public byte[] take() {
+		byte[] rc = new byte[SIZE_RC];
+		take(rc, 0);
+		return rc;
+	}
+
+
+	/** 作り置きするRCの数 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/** 補充を始める残り数 */
+	public int getLowWater() {
+		return mLowWater;
+	}
+
+	/** 現在の残り数 */
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/** 取り出した回数 */
+	public synchronized long getTakeCount() {
+		return mTakeCount;
+	}
+
+	/** 空だったので呼び出し元で生成した回数 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/** 補充した回数 */
+	public synchronized long getRefillCount() {
+		return mRefillCount;
+	}
+
+
+	/**
+	 * 補充スレッドの終了<br>
+	 * <br>
+	 * 終了後も{@link #take}は使える(毎回呼び出し元で生成する)。<br>
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+
+	private void startRefill() {
+		if(mRefilling || mExecutor.isShutdown()) {
+			return;
+		}
+		mRefilling = true;
+		try {
+			mExecutor.execute(mRefill);
+		} catch(RejectedExecutionException e) {
+			//shutdown済み
+			mRefilling = false;
+		}
+	}
+
+
+	/**
+	 * capacityまで補充(補充スレッド)<br>
+	 * <br>
+	 * 生成はロックの外で行い、取り出しを待たせない。<br>
+	 */
+	private void refill() {
+		byte[] tmp = new byte[SIZE_RC];
+		try {
+			while(true) {
+				synchronized(this) {
+					if(mCount >= mCapacity) {
+						mRefillCount++;
+						return;
+					}
+				}
+				mRandom.nextBytes(tmp);
+				synchronized(this) {
+					if(mCount < mCapacity) {
+						int pos = ((mHead + mCount) % mCapacity) * SIZE_RC;
+						System.arraycopy(tmp, 0, mPool, pos, SIZE_RC);
+						mCount++;
+					}
+				}
+			}
+		} finally {
+			Arrays.fill(tmp, (byte)0);
+			synchronized(this) {
+				mRefilling = false;
+			}
+		}
+	}
+}
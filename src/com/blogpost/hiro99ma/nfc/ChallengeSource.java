@@ -0,0 +1,19 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	ChallengeSource
+ * @brief	MAC確認で書き込むランダムチャレンジ(RC)の取得元
+ *
+ * 通常は{@link ChallengePool}を使う。
+ * トレースの再生などで決まったRCを使う場合は、{@link FelicaLite#setChallengeSource}で差し替える。<br>
+ */
+public interface ChallengeSource {
+	/**
+	 * RCの取り出し
+	 *
+	 * @param rc		[out]RC(16byte)
+	 * @param offset	[in]rcへの書き込み開始位置
+	 */
+	void take(byte[] rc, int offset);
+}
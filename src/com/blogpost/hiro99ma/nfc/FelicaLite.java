@@ -1,10 +1,10 @@
 package com.blogpost.hiro99ma.nfc;
 
 import java.io.IOException;
-
-import android.nfc.Tag;
-import android.nfc.tech.NfcF;
-import android.util.Log;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
@@ -43,146 +43,501 @@ public class FelicaLite {
 	
 	public static final int SIZE_BLOCK = 16;
 
+	/** Read Without Encryption 1回で読めるブロック数 */
+	public static final int MAX_READ_BLOCKS = 4;
+
+	// readBlocks()のフレームごとの結果
+	// (正の値はステータスフラグ (flag1 << 8) | flag2)
+	public static final int FRAME_OK = 0;				///!< 成功
+	public static final int FRAME_ERR_LENGTH = -1;		///!< レスポンス長不正
+	public static final int FRAME_ERR_NFCID = -2;		///!< IDm不一致
+	public static final int FRAME_ERR_RESPONSE = -3;	///!< レスポンスコード不正
+
+	// PMmのうち、最大応答時間を表すバイトの位置
+	public static final int PMM_READ = 5;				///!< Read Without Encryption
+	public static final int PMM_WRITE = 6;				///!< Write Without Encryption
+
+	/** Pollingの応答時間(タイムスロット0の開始まで)(us) */
+	private static final int POLLING_RESPONSE_US = 2417;
+	/** Pollingのタイムスロット1つ分の時間(us) */
+	private static final int POLLING_SLOT_US = 1208;
+	/** Pollingで指定できるタイムスロット数 */
+	public static final int MAX_TIME_SLOTS = 16;
+	/** 最大応答時間の単位T(=256*16/fc)(ns) */
+	private static final long PMM_T_NS = 302064;
+
 	private static final String TAG = "FelicaLite";
-	private static Tag mTag;
-	private static NfcF mNfcF;
+	private static final FelicaLiteStats sStats = FelicaLiteStats.get();
+	private final byte[] mIdm;
+	private FelicaTransceiver mTransceiver;
+	private FelicaLiteShadow mShadow;
+	private ChallengeSource mChallenges;
+	private int mFrameCount;
+	private byte[] mPmm;
+	private final int[] mTimeout;		//[0]transceiverに設定した応答待ち時間(セッション間で共有)
+	private final boolean mShared;
+	private int mTimeoutMargin = 10;
+	private int mMaxRetries = 2;
+	private int mBackoff = 10;
+
+	// コマンドフレーム(IDmなどの固定部分はセッション開始時に作っておく)
+	private final byte[] mPollingFrame = new byte[6];
+	private final byte[] mWriteFrame = new byte[32];
+	private final byte[][] mReadFrame = new byte[MAX_READ_BLOCKS + 1][];	//[ブロック数]
+	private final int[] mOneBlock = new int[1];
+	private int[] mMissing = new int[MAX_READ_BLOCKS];
+	private final int[] mFrameBlock = new int[MAX_READ_BLOCKS];
+	private final byte[] mFrameData = new byte[MAX_READ_BLOCKS * SIZE_BLOCK];
+
 
 	/**
-	 * 使用する場合、最初に呼び出す。
-	 * 内部で{@link NfcF#connect()}を呼び出す。
-	 * 呼び出し場合、最後に{@link FelicaLite#close()}を呼び出すこと。
-	 * 
-	 * {@link FelicaLite#close()}が呼ばれるまでtagをキャッシュする。
+	 * ポーリングに応答したカード
+	 */
+	public static final class PollingResult {
+		private final byte[] mIdm;
+		private final byte[] mPmm;
+
+		PollingResult(byte[] ret, int offset) {
+			mIdm = Arrays.copyOfRange(ret, offset + 2, offset + 10);
+			mPmm = Arrays.copyOfRange(ret, offset + 10, offset + 18);
+		}
+
+		/** IDm(8byte) */
+		public byte[] getIdm() {
+			return mIdm.clone();
+		}
+
+		/** PMm(8byte) */
+		public byte[] getPmm() {
+			return mPmm.clone();
+		}
+	}
+
+
+	private FelicaLite(FelicaTransceiver transceiver, byte[] idm) {
+		this(transceiver, idm, new int[] { -1 }, false);
+	}
+
+
+	private FelicaLite(FelicaTransceiver transceiver, byte[] idm, int[] timeout, boolean shared) {
+		mIdm = idm.clone();
+		mTransceiver = transceiver;
+		mTimeout = timeout;
+		mShared = shared;
+
+		mPollingFrame[0] = 6;						//length
+		mPollingFrame[1] = 0x00;					//Polling
+		mPollingFrame[4] = 0x00;					//request code
+		mPollingFrame[5] = 0x00;					//time slot
+
+		mWriteFrame[0] = 32;						//length
+		mWriteFrame[1] = (byte)0x08;				//Write Without Encryption
+		System.arraycopy(mIdm, 0, mWriteFrame, 2, 8);
+		mWriteFrame[10] = (byte)0x01;				//service num
+		mWriteFrame[11] = (byte)0x09;				//service code list(lower)
+		mWriteFrame[12] = (byte)0x00;				//service code list(upper)
+		mWriteFrame[13] = (byte)0x01;				//blocklist num
+		mWriteFrame[14] = (byte)0x80;				//2byte-blocklist(upper)
+
+		for(int num=1; num<=MAX_READ_BLOCKS; num++) {
+			byte[] buf = new byte[14 + num * 2];
+			buf[0] = (byte)(14 + num * 2);		//length
+			buf[1] = (byte)0x06;				//Read Without Encryption
+			System.arraycopy(mIdm, 0, buf, 2, 8);
+			buf[10] = (byte)0x01;				//service num
+			buf[11] = (byte)0x0b;				//service code list(lower)
+			buf[12] = (byte)0x00;				//service code list(upper)
+			buf[13] = (byte)num;				//blocklist num
+			for(int loop=0; loop<num; loop++) {
+				buf[14 + loop * 2] = (byte)0x80;	//2byte-blocklist(upper)
+			}
+			mReadFrame[num] = buf;
+		}
+	}
+
+
+	/**
+	 * {@link FelicaTransceiver}を指定して使用開始する。<br>
+	 * AndroidのカードはNfcFTransceiver#connect(Tag)で開始する。
+	 * 記録した送受信の再生や、実機以外での計測にも使う。<br>
+	 * 呼び出し場合、最後に{@link FelicaLite#close()}を呼び出すこと。<br>
+	 * <br>
+	 * 返したインスタンスが1枚のカードとのセッションになる。
+	 * 複数のカードを同時に扱う場合は、カードごとにconnectすること。
 	 *
-	 * @param[in]	tag		intentで取得したTag
-	 * @return		NfcF
-	 * @throws IOException
+	 * @param transceiver	[in]送受信に使うtransceiver
+	 * @param idm			[in]対象カードのIDm(8byte)
+	 * @return		セッション
 	 * @see		{@link FelicaLite#close()}
 	 */
-	public static NfcF connect(Tag tag) throws IOException {
-		mTag = tag;
-		mNfcF = NfcF.get(tag);
-		mNfcF.connect();
-		return mNfcF;
+	public static FelicaLite connect(FelicaTransceiver transceiver, byte[] idm) {
+		return new FelicaLite(transceiver, idm);
 	}
 
 	
 	/**
-	 * {@link #connect(Tag)}を呼び出したかどうかのチェック
+	 * {@link #connect}後、{@link #close()}していないかどうかのチェック
 	 * 
-	 * @return	true	呼び出している
+	 * @return	true	使用可能
 	 */
-	static boolean check() {
-		return (mTag != null) && (mNfcF != null);
+	boolean check() {
+		return mTransceiver != null;
+	}
+
+
+	/**
+	 * @return		対象カードのIDm(8byte)
+	 */
+	public byte[] getIdm() {
+		return mIdm.clone();
 	}
 	
 
 	/**
-	 * {@link FelicaLite#connect()}を呼び出したら、最後に呼び出すこと。
-	 * 内部で{@link NfcF#close()}を呼び出す。
+	 * {@link FelicaLite#connect}を呼び出したら、最後に呼び出すこと。
+	 * 内部で{@link FelicaTransceiver#close()}を呼び出す。
+	 * ({@link #select(PollingResult)}で作ったセッションの場合は、このセッションだけを終了する)
 	 *
 	 * @throws IOException
-	 * @see		{@link FelicaLite#connect(Tag)}
-	 * @note	- {@link FelicaLite#connect(Tag)}でキャッシュしたtagを解放する
+	 * @see		{@link FelicaLite#connect}
 	 */
-	public static void close() throws IOException {
-		mNfcF.close();
-		mTag = null;
-		mNfcF = null;
+	public void close() throws IOException {
+		FelicaTransceiver t = mTransceiver;
+		mTransceiver = null;
+		mShadow = null;
+		if((t != null) && !mShared) {
+			t.close();
+		}
+	}
+
+
+	/**
+	 * このセッションでカードに送ったコマンドフレーム数<br>
+	 * <br>
+	 * シャドウで省略した読み書きは含まない。<br>
+	 *
+	 * @return		フレーム数
+	 */
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+
+	/**
+	 * @return		対象カードのPMm(8byte)。不明な場合はnull。
+	 */
+	public byte[] getPmm() {
+		return (mPmm != null) ? mPmm.clone() : null;
+	}
+
+
+	/**
+	 * PMmの設定<br>
+	 * <br>
+	 * コマンドごとの応答待ち時間をPMmから決める。<br>
+	 * {@link #connect}と{@link #polling(int)}で自動的に設定するので、
+	 * 通常は呼ばなくてよい。<br>
+	 *
+	 * @param pmm		[in]PMm(8byte)。nullの場合はtransceiverの設定のままにする。
+	 */
+	public void setPmm(byte[] pmm) {
+		if((pmm != null) && (pmm.length != 8)) {
+			FelicaLog.w(TAG, "setPmm : length");
+			return;
+		}
+		mPmm = (pmm != null) ? pmm.clone() : null;
+	}
+
+
+	/**
+	 * 応答待ち時間の余裕の設定<br>
+	 * <br>
+	 * PMmから求めた最大応答時間にこの時間を足して、応答待ち時間にする。<br>
+	 *
+	 * @param margin		[in]余裕(ms)。デフォルトは10ms。
+	 */
+	public void setTimeoutMargin(int margin) {
+		mTimeoutMargin = margin;
+	}
+
+
+	/**
+	 * IOException時の再送の設定<br>
+	 * <br>
+	 * 再送するのはポーリング、読み込み、REG以外の書込みだけ
+	 * (REGは書き込むと値が加減算されるので再送しない)。<br>
+	 * n回目の再送の前にbackoff * 2^(n-1) ms待つ。
+	 * TagLostExceptionの場合は再送しない。<br>
+	 *
+	 * @param maxRetries	[in]最大再送回数(0で再送しない)。デフォルトは2。
+	 * @param backoff		[in]最初の再送までの待ち時間(ms)。デフォルトは10ms。
+	 */
+	public void setRetryPolicy(int maxRetries, int backoff) {
+		mMaxRetries = maxRetries;
+		mBackoff = backoff;
+	}
+
+
+	/**
+	 * PMmのパラメータからの最大応答時間の計算<br>
+	 * <br>
+	 * T × ((B + 1) × n + (A + 1)) × 4^E<br>
+	 * (パラメータはbit7-6がE, bit5-3がB, bit2-0がA)<br>
+	 *
+	 * @param param		[in]PMmのバイト({@link #PMM_READ}など)
+	 * @param blocks		[in]ブロック数n
+	 * @return				最大応答時間(us)
+	 */
+	public static long getResponseTime(int param, int blocks) {
+		int a = param & 0x07;
+		int b = (param >> 3) & 0x07;
+		int e = (param >> 6) & 0x03;
+		return ((PMM_T_NS * ((b + 1) * blocks + (a + 1))) << (2 * e)) / 1000;
+	}
+
+
+	/**
+	 * ブロック内容のキャッシュ(シャドウ)を使うかどうか<br>
+	 * <br>
+	 * 有効にすると、同じブロックの読み込みと同じ内容の書き込みでカードにアクセスしなくなる。<br>
+	 * キャッシュは{@link FelicaLite#close()}で破棄する。<br>
+	 * {@link FelicaLite#connect}を呼び出した後で呼ぶこと。
+	 *
+	 * @param enable		[in]true:使う / false:使わない(デフォルト)
+	 * @see		{@link FelicaLiteShadow}
+	 */
+	public void setShadowEnabled(boolean enable) {
+		if(enable) {
+			if(mShadow == null) {
+				mShadow = new FelicaLiteShadow();
+			}
+		} else {
+			mShadow = null;
+		}
+	}
+
+
+	/**
+	 * @return		使用中のシャドウ(無効な場合はnull)
+	 */
+	public FelicaLiteShadow getShadow() {
+		return mShadow;
+	}
+
+
+	/**
+	 * このセッションのMAC確認で使うRCの取得元<br>
+	 * <br>
+	 * トレースの再生で記録時と同じRCを使う場合などに指定する。<br>
+	 *
+	 * @param source		[in]RCの取得元。nullの場合は{@link ChallengePool#getDefault()}(デフォルト)
+	 */
+	public void setChallengeSource(ChallengeSource source) {
+		mChallenges = source;
+	}
+
+
+	/**
+	 * @return		このセッションで使うRCの取得元
+	 */
+	public ChallengeSource getChallengeSource() {
+		return (mChallenges != null) ? mChallenges : ChallengePool.getDefault();
 	}
 
 
 	/**
 	 * ポーリング
 	 * 
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。
+	 * {@link FelicaLite#connect}を呼び出しておくこと。
 	 *
 	 * @param sc			[in]サービスコード
 	 * @return				true	ポーリング成功
 	 * @throws IOException
 	 */
-	public static boolean polling(int sc) throws IOException {
-		byte[] buf = new byte[6];
-		buf[0] = 6;
-		buf[1] = 0x00;
+	public boolean polling(int sc) throws IOException {
+		byte[] buf = mPollingFrame;
 		buf[2] = (byte)((sc & 0xff00) >> 8);
 		buf[3] = (byte)(sc & 0xff);
-		buf[4] = 0x00;
-		buf[5] = 0x00;
+		buf[5] = 0x00;					//time slot
 
-		byte[] ret = mNfcF.transceive(buf);
+		byte[] ret = transceive(buf, FelicaLiteStats.Op.POLLING, 1, true);
 
 		//length check
 		if(ret.length != 18) {
-			Log.e(TAG, "polling : length");
+			FelicaLog.e(TAG, "polling : length");
+			sStats.fail(FelicaLiteStats.Failure.LENGTH);
 			return false;
 		}
 		//IDm check
-		byte[] idm = mTag.getId();
-		for(int i=0; i<8; i++) {
-			if(ret[i+2] != idm[i]) {
-				Log.e(TAG, "polling : nfcid");
-				return false;
-			}
+		if(!equalsIdm(ret)) {
+			FelicaLog.e(TAG, "polling : nfcid");
+			sStats.fail(FelicaLiteStats.Failure.NFCID);
+			return false;
 		}
 		//response code check
 		if(ret[1] != 0x01) {
-			Log.e(TAG, "polling : response code");
+			FelicaLog.e(TAG, "polling : response code");
+			sStats.fail(FelicaLiteStats.Failure.STATUS);
 			return false;
 		}
+		if(mPmm == null) {
+			mPmm = new byte[8];
+		}
+		System.arraycopy(ret, 10, mPmm, 0, 8);
 
 		return true;
 	}
 
 
+	/**
+	 * タイムスロットを指定したポーリング<br>
+	 * <br>
+	 * 応答したカードのIDmとPMmを全て返す(同じIDmは1つにまとめる)。<br>
+	 * transceiverが複数のレスポンスを連結して返す場合は、それを全て取り出す。<br>
+	 * 注意：Android(NfcF)は最初のレスポンスしか返さないので、
+	 *       実機では見つかるカードは1枚までになる。<br>
+	 *
+	 * @param sc			[in]システムコード
+	 * @param slots		[in]タイムスロット数(1, 2, 4, 8, 16)
+	 * @return				応答したカード(応答がなければ空)
+	 * @throws IOException
+	 * @see		{@link #select(PollingResult)}
+	 */
+	public List<PollingResult> polling(int sc, int slots) throws IOException {
+		if((slots < 1) || (slots > MAX_TIME_SLOTS) || ((slots & (slots - 1)) != 0)) {
+			throw new IllegalArgumentException("FelicaLite : slots=" + slots);
+		}
+		byte[] buf = mPollingFrame;
+		buf[2] = (byte)((sc & 0xff00) >> 8);
+		buf[3] = (byte)(sc & 0xff);
+		buf[5] = (byte)(slots - 1);		//time slot
+
+		byte[] ret = transceive(buf, FelicaLiteStats.Op.POLLING, slots, true);
+
+		List<PollingResult> list = new ArrayList<PollingResult>();
+		int pos = 0;
+		while(pos + 18 <= ret.length) {
+			//length, response code check
+			if(((ret[pos] & 0xff) != 18) || (ret[pos + 1] != 0x01)) {
+				FelicaLog.e(TAG, "polling : response");
+				sStats.fail(FelicaLiteStats.Failure.LENGTH);
+				break;
+			}
+			PollingResult res = new PollingResult(ret, pos);
+			boolean dup = false;
+			for(PollingResult r : list) {
+				if(Arrays.equals(r.mIdm, res.mIdm)) {
+					dup = true;
+					break;
+				}
+			}
+			if(!dup) {
+				list.add(res);
+			}
+			pos += 18;
+		}
+		for(PollingResult r : list) {
+			if(Arrays.equals(r.mIdm, mIdm)) {
+				setPmm(r.mPmm);
+			}
+		}
+		return list;
+	}
+
+
+	/**
+	 * ポーリングで見つけたカードとのセッション<br>
+	 * <br>
+	 * このセッションと同じtransceiverを使い、コマンドの宛先を指定したカードにする。<br>
+	 * 返したセッションの{@link #close()}はtransceiverを閉じないので、
+	 * 最後にこのセッションを{@link #close()}すること。<br>
+	 * セッション同士は同時に使えない(同じスレッドから順に使うこと)。<br>
+	 *
+	 * @param card		[in]{@link #polling(int, int)}の結果
+	 * @return			指定したカードとのセッション
+	 * @throws IOException	このセッションがclose済み
+	 */
+	public FelicaLite select(PollingResult card) throws IOException {
+		if(mTransceiver == null) {
+			throw new IOException("FelicaLite : closed");
+		}
+		FelicaLite felica = new FelicaLite(mTransceiver, card.mIdm, mTimeout, true);
+		felica.setPmm(card.mPmm);
+		felica.setTimeoutMargin(mTimeoutMargin);
+		felica.setRetryPolicy(mMaxRetries, mBackoff);
+		return felica;
+	}
+
+
 	/**
 	 * 1ブロック書込み
 	 * 
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。
+	 * {@link FelicaLite#connect}を呼び出しておくこと。
 	 *
 	 * @param blockNo		[in]書込対象のブロック番号
 	 * @param data			[in]書き込みデータ(先頭の16byteを使用)
 	 * @return		true	書込成功
 	 * @throws IOException
 	 */
-	public static boolean writeBlock(int blockNo, byte[] data) throws IOException {
-		if((data == null) || (data.length < 16)) {
+	public boolean writeBlock(int blockNo, byte[] data) throws IOException {
+		return writeBlock(blockNo, data, 0);
+	}
+
+
+	/**
+	 * 1ブロック書込み(呼び出し元バッファから)
+	 * 
+	 * {@link FelicaLite#connect}を呼び出しておくこと。
+	 *
+	 * @param blockNo		[in]書込対象のブロック番号
+	 * @param data			[in]書き込みデータ
+	 * @param offset		[in]dataの使用開始位置(ここから16byteを使用)
+	 * @return		true	書込成功
+	 * @throws IOException
+	 */
+	public boolean writeBlock(int blockNo, byte[] data, int offset) throws IOException {
+		if((data == null) || (offset < 0) || (data.length < offset + SIZE_BLOCK)) {
 			//データ不正
-			Log.e(TAG, "writeBlock : param");
+			FelicaLog.e(TAG, "writeBlock : param");
 			return false;
 		}
+		if((mShadow != null) && mShadow.skipWrite(blockNo, data, offset)) {
+			//同じ内容なので書かない
+			return true;
+		}
 
-		byte[] buf = new byte[32];
-		buf[0] = 32;					//length
-		buf[1] = (byte)0x08;			//Write Without Encryption
-		System.arraycopy(mTag.getId(), 0, buf, 2, 8);
-		buf[10] = (byte)0x01;			//service num
-		buf[11] = (byte)0x09;			//service code list(lower)
-		buf[12] = (byte)0x00;			//service code list(upper)
-		buf[13] = (byte)0x01;			//blocklist num
-		buf[14] = (byte)0x80;			//2byte-blocklist(upper)
+		byte[] buf = mWriteFrame;
 		buf[15] = (byte)blockNo;		//2byte-blocklist(lower)
-		System.arraycopy(data, 0, buf, 16, SIZE_BLOCK);
+		System.arraycopy(data, offset, buf, 16, SIZE_BLOCK);
 
-		byte[] ret = mNfcF.transceive(buf);
+		if(mShadow != null) {
+			//失敗した場合にカードの内容がわからなくなるので、先に無効にしておく
+			mShadow.invalidate(blockNo);
+		}
+		byte[] ret = transceive(buf, FelicaLiteStats.Op.WRITE, 1, blockNo != REG);
 
 		//length check
 		if(ret.length != 12) {
-			Log.e(TAG, "writeBlock : length");
+			FelicaLog.e(TAG, "writeBlock : length");
+			sStats.fail(FelicaLiteStats.Failure.LENGTH);
 			return false;
 		}
 		//IDm check
-		for(int i=2+0; i<2+8; i++) {
-			if(ret[i] != buf[i]) {
-				Log.e(TAG, "writeBlock : nfcid");
-				return false;
-			}
+		if(!equalsIdm(ret)) {
+			FelicaLog.e(TAG, "writeBlock : nfcid");
+			sStats.fail(FelicaLiteStats.Failure.NFCID);
+			return false;
 		}
 		//status flag check
 		if((ret[1] != 0x09) || (ret[10] != 0x00) || (ret[11] != 0x00)) {
-			Log.e(TAG, "writeBlock : status");
+			FelicaLog.e(TAG, "writeBlock : status");
+			sStats.fail(FelicaLiteStats.Failure.STATUS);
 			return false;
 		}
+		if(mShadow != null) {
+			//RCを書くとMACが変わる(MACはキャッシュしないので、ここでは何もしない)
+			mShadow.put(blockNo, data, offset);
+		}
 		return true;
 	}
 
@@ -190,103 +545,460 @@ public class FelicaLite {
 	/**
 	 * 1ブロック読み込み<br>
 	 * <br>
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。
+	 * {@link FelicaLite#connect}を呼び出しておくこと。
 	 *
 	 * @param blockNo		[in]読込対象のブロック番号
 	 * @return				(!=null)読み込んだ1ブロックデータ / (==null)エラー
 	 * @throws IOException
 	 */
-	public static byte[] readBlock(int blockNo) throws IOException {
-		byte[] buf = new byte[16];
-		buf[0] = 16;					//length
-		buf[1] = (byte)0x06;			//Read Without Encryption
-		System.arraycopy(mTag.getId(), 0, buf, 2, 8);
-		buf[10] = (byte)0x01;			//service num
-		buf[11] = (byte)0x0b;			//service code list(lower)
-		buf[12] = (byte)0x00;			//service code list(upper)
-		buf[13] = (byte)0x01;			//blocklist num
-		buf[14] = (byte)0x80;			//2byte-blocklist(upper)
-		buf[15] = (byte)blockNo;		//2byte-blocklist(lower)
-
-		byte[] ret = mNfcF.transceive(buf);
-
-		//length check
-		if(ret.length != 29) {
-			Log.e(TAG, "readBlock : length");
+	public byte[] readBlock(int blockNo) throws IOException {
+		byte[] buf = new byte[SIZE_BLOCK];
+		if(!readBlock(blockNo, buf, 0)) {
 			return null;
 		}
-		//IDm check
-		for(int i=2+0; i<2+8; i++) {
-			if(ret[i] != buf[i]) {
-				Log.e(TAG, "readBlock : nfcid");
-				return null;
-			}
+		return buf;
+	}
+
+
+	/**
+	 * 1ブロック読み込み(呼び出し元バッファへの書込み)<br>
+	 * <br>
+	 * {@link FelicaLite#connect}を呼び出しておくこと。<br>
+	 * 送信フレームは使い回すので、繰り返し読み込んでもメモリ確保しない
+	 * (受信フレームは{@link FelicaTransceiver}が確保する)。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @param out			[out]読み込んだ1ブロックデータ。エラー時は書き換えない。
+	 * @param outOffset	[in]outへの書き込み開始位置(ここから16byte書く)
+	 * @return		true	読込成功
+	 * @throws IOException
+	 */
+	public boolean readBlock(int blockNo, byte[] out, int outOffset) throws IOException {
+		if((out == null) || (outOffset < 0) || (out.length < outOffset + SIZE_BLOCK)) {
+			FelicaLog.e(TAG, "readBlock : param");
+			return false;
 		}
-		//status flag check
-		if((ret[1] != 0x07) || (ret[10] != 0x00) || (ret[11] != 0x00)) {
-			Log.e(TAG, "readBlock : status");
-			return null;
+		if((mShadow != null) && mShadow.get(blockNo, out, outOffset)) {
+			return true;
 		}
-
-		//read data copy
-		//(buf.lengthが16なので、使い回ししている)
-		System.arraycopy(ret, 13, buf, 0, SIZE_BLOCK);
-		return buf;
+		mOneBlock[0] = blockNo;
+		return readFrame(mOneBlock, 0, 1, out, outOffset) == FRAME_OK;
 	}
 
 	/**
 	 * nブロック読み込み<br>
 	 * <br>
-	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * - {@link FelicaLite#connect}を呼び出しておくこと。<br>
 	 * - blockNo.lengthが4より大きい場合、先頭の4つを使用する。<br>
+	 * - blockNoが空の場合はエラーにする。<br>
 	 *
 	 * @param blockNo		[in]読込対象のブロック番号(4つまで)
 	 * @return				(!=null)読み込んだブロックデータ(blockNoの順) / (==null)エラー
 	 * @throws IOException
+	 * @see		{@link #readBlocks(int[])}
 	 */
-	public static byte[] readBlock(int[] blockNo) throws IOException {
+	public byte[] readBlock(int[] blockNo) throws IOException {
 		int num = blockNo.length;
-		if(num > 4) {
+		if(num == 0) {
+			FelicaLog.e(TAG, "readBlock : no block");
+			return null;
+		}
+		if(num > MAX_READ_BLOCKS) {
 			//FeliCa Lite limit
-			Log.w(TAG, "readBlocks : 4blocks limit");
-			num = 4;
-		}
-		byte[] buf = new byte[14 + num * 2];
-		buf[0] = (byte)(14 + num * 2);	//length
-		buf[1] = (byte)0x06;			//Read Without Encryption
-		System.arraycopy(mTag.getId(), 0, buf, 2, 8);
-		buf[10] = (byte)0x01;			//service num
-		buf[11] = (byte)0x0b;			//service code list(lower)
-		buf[12] = (byte)0x00;			//service code list(upper)
-		buf[13] = (byte)num;			//blocklist num
-		for(int loop=0; loop<num; loop++) {
-			buf[14 + loop * 2]     = (byte)0x80;			//2byte-blocklist(upper)
-			buf[14 + loop * 2 + 1] = (byte)blockNo[loop];	//2byte-blocklist(lower)
+			FelicaLog.w(TAG, "readBlocks : 4blocks limit");
+			num = MAX_READ_BLOCKS;
+		}
+		byte[] res = new byte[num * SIZE_BLOCK];
+		if(readFromShadow(blockNo, 0, num, res, 0)) {
+			return res;
 		}
+		if(readFrame(blockNo, 0, num, res, 0) != FRAME_OK) {
+			return null;
+		}
+		return res;
+	}
 
-		byte[] ret = mNfcF.transceive(buf);
 
-		//length check
-		if(ret.length != 13 + num * SIZE_BLOCK) {
-			Log.e(TAG, "readBlocks : length");
+	/**
+	 * 連続したブロックの読み込み<br>
+	 * <br>
+	 * {@link #readBlocks(int[])}のブロック番号をstartBlockから順に並べたもの。<br>
+	 *
+	 * @param startBlock	[in]先頭ブロック番号
+	 * @param num			[in]ブロック数
+	 * @return				(!=null)読み込んだブロックデータ / (==null)エラー
+	 * @throws IOException
+	 */
+	public byte[] readBlocks(int startBlock, int num) throws IOException {
+		if(num < 1) {
+			FelicaLog.e(TAG, "readBlocks : no block");
 			return null;
 		}
-		//IDm check
-		for(int i=2+0; i<2+8; i++) {
-			if(ret[i] != buf[i]) {
-				Log.e(TAG, "readBlocks : nfcid");
-				return null;
+		int[] blockNo = new int[num];
+		for(int i=0; i<num; i++) {
+			blockNo[i] = startBlock + i;
+		}
+		return readBlocks(blockNo);
+	}
+
+
+	/**
+	 * 任意個数のブロック読み込み<br>
+	 * <br>
+	 * 4ブロックずつのRead Without Encryptionに分けて読み込む。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @return				(!=null)読み込んだブロックデータ(blockNoの順) / (==null)エラー
+	 * @throws IOException
+	 */
+	public byte[] readBlocks(int[] blockNo) throws IOException {
+		byte[] res = new byte[blockNo.length * SIZE_BLOCK];
+		if(!readBlocks(blockNo, res, 0, null)) {
+			return null;
+		}
+		return res;
+	}
+
+
+	/**
+	 * 任意個数のブロック読み込み(呼び出し元バッファへの書込み)<br>
+	 * <br>
+	 * - {@link FelicaLite#connect}を呼び出しておくこと。<br>
+	 * - blockNoを先頭から4ブロックずつのRead Without Encryptionに分けて読み込む。
+	 *   フレーム数は{@link #getFrameNum(int)}。<br>
+	 * - あるフレームがエラーになっても、残りのフレームは読み込む。
+	 *   エラーになったフレームのブロックは書き換えない。<br>
+	 * - シャドウ有効時は、キャッシュにないブロックだけを詰めて読み込む。
+	 *   そのため実際のフレーム数は少なくなることがある。
+	 *   ただしMACを含む場合は、MACの計算対象が変わらないようにそのまま読み込む。<br>
+	 * - frameStatus[n]は、シャドウ有効時もblockNo[4n]～blockNo[4n+3]の結果を表す
+	 *   (どれかが失敗した場合は最初の失敗、全部キャッシュから読めた場合はFRAME_OK)。<br>
+	 * - blockNoが空の場合はエラーにする。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @param out			[out]読み込んだブロックデータ(blockNoの順)
+	 * @param outOffset	[in]outへの書き込み開始位置(ここからblockNo.length * 16byte書く)
+	 * @param frameStatus	[out]フレームごとの結果(FRAME_OK, FRAME_ERR_xx, ステータスフラグ)。不要ならnull。
+	 * @return		true	全フレーム読込成功
+	 * @throws IOException
+	 * @see		{@link #readBlocks(int[], byte[], int, int[], int[])}
+	 */
+	public boolean readBlocks(int[] blockNo, byte[] out, int outOffset, int[] frameStatus) throws IOException {
+		return readBlocks(blockNo, out, outOffset, frameStatus, null);
+	}
+
+
+	/**
+	 * 任意個数のブロック読み込み(ブロックごとの結果付き)<br>
+	 * <br>
+	 * {@link #readBlocks(int[], byte[], int, int[])}に加え、ブロックごとの結果を返す。
+	 * blockStatus[i]は、blockNo[i]を読んだフレームの結果(キャッシュから読んだ場合はFRAME_OK)。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @param out			[out]読み込んだブロックデータ(blockNoの順)
+	 * @param outOffset	[in]outへの書き込み開始位置(ここからblockNo.length * 16byte書く)
+	 * @param frameStatus	[out]フレームごとの結果(FRAME_OK, FRAME_ERR_xx, ステータスフラグ)。不要ならnull。
+	 * @param blockStatus	[out]ブロックごとの結果(FRAME_OK, FRAME_ERR_xx, ステータスフラグ)。不要ならnull。
+	 * @return		true	全フレーム読込成功
+	 * @throws IOException
+	 */
+	public boolean readBlocks(int[] blockNo, byte[] out, int outOffset, int[] frameStatus, int[] blockStatus) throws IOException {
+		int frames = getFrameNum(blockNo.length);
+		if(frames == 0) {
+			FelicaLog.e(TAG, "readBlocks : no block");
+			return false;
+		}
+		if((out == null) || (out.length < outOffset + blockNo.length * SIZE_BLOCK)
+		  || ((frameStatus != null) && (frameStatus.length < frames))
+		  || ((blockStatus != null) && (blockStatus.length < blockNo.length))) {
+			FelicaLog.e(TAG, "readBlocks : param");
+			return false;
+		}
+
+		if(frameStatus != null) {
+			for(int i=0; i<frames; i++) {
+				frameStatus[i] = FRAME_OK;
+			}
+		}
+		if(blockStatus != null) {
+			for(int i=0; i<blockNo.length; i++) {
+				blockStatus[i] = FRAME_OK;
+			}
+		}
+		if((mShadow != null) && !contains(blockNo, MAC)) {
+			return readBlocksShadow(blockNo, out, outOffset, frameStatus, blockStatus);
+		}
+
+		boolean ok = true;
+		for(int frame=0; frame<frames; frame++) {
+			int idx = frame * MAX_READ_BLOCKS;
+			int num = Math.min(MAX_READ_BLOCKS, blockNo.length - idx);
+			int st = readFrame(blockNo, idx, num, out, outOffset + idx * SIZE_BLOCK);
+			if(frameStatus != null) {
+				frameStatus[frame] = st;
+			}
+			if(blockStatus != null) {
+				for(int i=0; i<num; i++) {
+					blockStatus[idx + i] = st;
+				}
+			}
+			if(st != FRAME_OK) {
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+
+	/**
+	 * シャドウ有効時の{@link #readBlocks(int[], byte[], int, int[], int[])}<br>
+	 * <br>
+	 * キャッシュにないブロックだけを4ブロックずつ読み込み、outに並べる。<br>
+	 * 実際に送ったフレームの結果は、そのフレームで読んだブロックの元の位置に割り当てる。<br>
+	 */
+	private boolean readBlocksShadow(int[] blockNo, byte[] out, int outOffset, int[] frameStatus, int[] blockStatus) throws IOException {
+		//キャッシュにないブロックを集める
+		if(mMissing.length < blockNo.length) {
+			mMissing = new int[blockNo.length];
+		}
+		int[] missing = mMissing;
+		int missNum = 0;
+		for(int i=0; i<blockNo.length; i++) {
+			if(!mShadow.get(blockNo[i], out, outOffset + i * SIZE_BLOCK)) {
+				missing[missNum++] = i;
+			}
+		}
+
+		boolean ok = true;
+		int[] frameBlock = mFrameBlock;
+		byte[] frameData = mFrameData;
+		for(int frame=0; frame<getFrameNum(missNum); frame++) {
+			int idx = frame * MAX_READ_BLOCKS;
+			int num = Math.min(MAX_READ_BLOCKS, missNum - idx);
+			for(int i=0; i<num; i++) {
+				frameBlock[i] = blockNo[missing[idx + i]];
+			}
+			int st = readFrame(frameBlock, 0, num, frameData, 0);
+			if(st != FRAME_OK) {
+				ok = false;
+				for(int i=0; i<num; i++) {
+					int pos = missing[idx + i];
+					if(blockStatus != null) {
+						blockStatus[pos] = st;
+					}
+					if((frameStatus != null) && (frameStatus[pos / MAX_READ_BLOCKS] == FRAME_OK)) {
+						frameStatus[pos / MAX_READ_BLOCKS] = st;
+					}
+				}
+				continue;
+			}
+			for(int i=0; i<num; i++) {
+				System.arraycopy(frameData, i * SIZE_BLOCK, out, outOffset + missing[idx + i] * SIZE_BLOCK, SIZE_BLOCK);
+			}
+		}
+		return ok;
+	}
+
+
+	/**
+	 * 全ブロックがキャッシュにある場合、キャッシュから読み込む<br>
+	 * <br>
+	 * MACを含む場合は必ずfalseを返す。<br>
+	 *
+	 * @return		true	キャッシュから読み込んだ
+	 */
+	private boolean readFromShadow(int[] blockNo, int idx, int num, byte[] out, int outOffset) {
+		if(mShadow == null) {
+			return false;
+		}
+		for(int i=0; i<num; i++) {
+			if(!mShadow.contains(blockNo[idx + i])) {
+				return false;
+			}
+		}
+		for(int i=0; i<num; i++) {
+			mShadow.get(blockNo[idx + i], out, outOffset + i * SIZE_BLOCK);
+		}
+		return true;
+	}
+
+
+	/**
+	 * 1フレームの送受信<br>
+	 * <br>
+	 * PMmがわかっていれば応答待ち時間を設定し、IOExceptionなら再送する。<br>
+	 * 往復時間を{@link FelicaLiteStats}に記録する。<br>
+	 *
+	 * @param buf		[in]コマンドフレーム
+	 * @param op		[in]計測対象
+	 * @param blocks	[in]ブロック数(ポーリングの場合はタイムスロット数)
+	 * @param retry		[in]true:再送してよい
+	 * @return			レスポンスフレーム
+	 * @throws IOException
+	 */
+	private byte[] transceive(byte[] buf, FelicaLiteStats.Op op, int blocks, boolean retry) throws IOException {
+		applyTimeout(op, blocks);
+		for(int attempt=0; ; attempt++) {
+			FelicaTransceiver t = mTransceiver;
+			if(t == null) {
+				throw new IOException("FelicaLite : closed");
+			}
+			mFrameCount++;
+			long start = System.nanoTime();
+			try {
+				return t.transceive(buf);
+			} catch(IOException e) {
+				sStats.fail(FelicaLiteStats.Failure.IO);
+				if(!retry || (attempt >= mMaxRetries) || isTagLost(e)) {
+					//TagLostExceptionはカードが離れたので再送しても無駄
+					throw e;
+				}
+				FelicaLog.w(TAG, "transceive : retry " + (attempt + 1));
+			} finally {
+				sStats.record(op, System.nanoTime() - start);
+			}
+
+			try {
+				Thread.sleep(mBackoff << attempt);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("FelicaLite : interrupted");
+			}
+		}
+	}
+
+
+	/**
+	 * コマンドに合わせた応答待ち時間の設定<br>
+	 * <br>
+	 * 前回と同じ場合はtransceiverを呼ばない。<br>
+	 */
+	private void applyTimeout(FelicaLiteStats.Op op, int blocks) {
+		long us;
+		if(op == FelicaLiteStats.Op.POLLING) {
+			us = POLLING_RESPONSE_US + POLLING_SLOT_US * blocks;
+		} else if(mPmm == null) {
+			return;
+		} else if(op == FelicaLiteStats.Op.WRITE) {
+			us = getResponseTime(mPmm[PMM_WRITE] & 0xff, blocks);
+		} else {
+			us = getResponseTime(mPmm[PMM_READ] & 0xff, blocks);
+		}
+		int timeout = (int)((us + 999) / 1000) + mTimeoutMargin;
+		if((timeout != mTimeout[0]) && (mTransceiver != null)) {
+			mTransceiver.setTimeout(timeout);
+			mTimeout[0] = timeout;
+		}
+	}
+
+
+	/**
+	 * カードを見失った例外(android.nfc.TagLostExceptionなど)かどうか<br>
+	 * <br>
+	 * Androidに依存しないように、クラス名で判断する。<br>
+	 */
+	private static boolean isTagLost(IOException e) {
+		for(Class<?> c = e.getClass(); c != IOException.class; c = c.getSuperclass()) {
+			if(c.getSimpleName().equals("TagLostException")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * レスポンスのIDm(2byte目から8byte)がセッションのIDmと一致するか
+	 */
+	private boolean equalsIdm(byte[] ret) {
+		for(int i=0; i<8; i++) {
+			if(ret[2 + i] != mIdm[i]) {
+				return false;
 			}
 		}
+		return true;
+	}
+
+
+	private static boolean contains(int[] blockNo, int blk) {
+		for(int i=0; i<blockNo.length; i++) {
+			if(blockNo[i] == blk) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * nブロック読み込みに必要なフレーム数
+	 *
+	 * @param blocks		[in]ブロック数
+	 * @return				フレーム数
+	 */
+	public static int getFrameNum(int blocks) {
+		return (blocks + MAX_READ_BLOCKS - 1) / MAX_READ_BLOCKS;
+	}
+
+
+	/**
+	 * 1フレーム(4ブロックまで)の読み込み
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @param idx			[in]blockNoの使用開始位置
+	 * @param num			[in]ブロック数(4まで)
+	 * @param out			[out]読み込んだブロックデータ
+	 * @param outOffset	[in]outへの書き込み開始位置
+	 * @return				FRAME_OK, FRAME_ERR_xx, ステータスフラグ
+	 * @throws IOException
+	 */
+	private int readFrame(int[] blockNo, int idx, int num, byte[] out, int outOffset) throws IOException {
+		byte[] buf = mReadFrame[num];
+		for(int loop=0; loop<num; loop++) {
+			buf[14 + loop * 2 + 1] = (byte)blockNo[idx + loop];	//2byte-blocklist(lower)
+		}
+
+		byte[] ret = transceive(buf, (num == 1) ? FelicaLiteStats.Op.READ_SINGLE : FelicaLiteStats.Op.READ_MULTI, num, true);
+
+		//length check(ステータスフラグまで)
+		if(ret.length < 12) {
+			FelicaLog.e(TAG, "readBlocks : length");
+			sStats.fail(FelicaLiteStats.Failure.LENGTH);
+			return FRAME_ERR_LENGTH;
+		}
+		//IDm check
+		if(!equalsIdm(ret)) {
+			FelicaLog.e(TAG, "readBlocks : nfcid");
+			sStats.fail(FelicaLiteStats.Failure.NFCID);
+			return FRAME_ERR_NFCID;
+		}
+		//response code check
+		if(ret[1] != 0x07) {
+			FelicaLog.e(TAG, "readBlocks : status");
+			sStats.fail(FelicaLiteStats.Failure.STATUS);
+			return FRAME_ERR_RESPONSE;
+		}
 		//status flag check
-		if((ret[1] != 0x07) || (ret[10] != 0x00) || (ret[11] != 0x00) || (ret[12] != num)) {
-			Log.e(TAG, "readBlocks : status");
-			return null;
+		//(エラーの場合はブロックデータが付かないので、全体の長さより先に見る)
+		if((ret[10] != 0x00) || (ret[11] != 0x00)) {
+			FelicaLog.e(TAG, "readBlocks : status");
+			sStats.fail(FelicaLiteStats.Failure.STATUS);
+			return ((ret[10] & 0xff) << 8) | (ret[11] & 0xff);
+		}
+		//length check(ブロックデータ)
+		if((ret.length != 13 + num * SIZE_BLOCK) || (ret[12] != num)) {
+			FelicaLog.e(TAG, "readBlocks : length");
+			sStats.fail(FelicaLiteStats.Failure.LENGTH);
+			return FRAME_ERR_LENGTH;
 		}
 
 		//read data copy
-		byte[] res = new byte[num * SIZE_BLOCK];
-		System.arraycopy(ret, 13, res, 0, num * SIZE_BLOCK);
-		return res;
+		System.arraycopy(ret, 13, out, outOffset, num * SIZE_BLOCK);
+		if(mShadow != null) {
+			for(int i=0; i<num; i++) {
+				mShadow.put(blockNo[idx + i], out, outOffset + i * SIZE_BLOCK);
+			}
+		}
+		return FRAME_OK;
 	}
 }
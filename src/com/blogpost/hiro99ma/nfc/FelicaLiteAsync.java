@@ -0,0 +1,191 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.nfc.Tag;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+
+/**
+ * @class	FelicaLiteAsync
+ * @brief	カード処理をUIスレッド外で実行する
+ *
+ * カード処理はNFC専用のスレッドで1つずつ実行し、結果だけをUIスレッドに通知する。<br>
+ * connectとcloseもNFCスレッドで行う。<br>
+ * <br>
+ * {@link Operation#cancel(boolean)}でキャンセルするとセッションをcloseするので、
+ * 実行中のtransceiveはIOExceptionで終わる。
+ * タグを見失った場合(TagLostException)は{@link Callback#onFailure(Exception)}で通知する。<br>
+ */
+public class FelicaLiteAsync {
+
+	/**
+	 * 処理結果の通知(UIスレッドで呼ばれる)<br>
+	 * <br>
+	 * キャンセルした場合はどちらも呼ばれない。<br>
+	 */
+	public interface Callback<T> {
+		/**
+		 * @param result	[in]処理結果
+		 */
+		void onSuccess(T result);
+
+		/**
+		 * @param e		[in]発生した例外(IOExceptionなど)
+		 */
+		void onFailure(Exception e);
+	}
+
+
+	/**
+	 * NFCスレッドで実行する内容(connect → task → close)
+	 */
+	private static final class CardCall<T> implements Callable<T> {
+		private final Tag mTag;
+		private final FelicaLiteScheduler.Task<T> mTask;
+		private volatile FelicaLite mFelica;
+
+		CardCall(Tag tag, FelicaLiteScheduler.Task<T> task) {
+			mTag = tag;
+			mTask = task;
+		}
+
+		@Override
+		public T call() throws IOException {
+			FelicaLite felica = NfcFTransceiver.connect(mTag);
+			mFelica = felica;
+			try {
+				return mTask.run(felica);
+			} finally {
+				mFelica = null;
+				felica.close();
+			}
+		}
+	}
+
+
+	/**
+	 * 実行中・実行待ちのカード処理
+	 */
+	public final class Operation<T> extends FutureTask<T> {
+		private final CardCall<T> mCall;
+		private final Callback<T> mCallback;
+
+		private Operation(CardCall<T> call, Callback<T> callback) {
+			super(call);
+			mCall = call;
+			mCallback = callback;
+		}
+
+		/**
+		 * キャンセル<br>
+		 * <br>
+		 * 実行中の場合はセッションをcloseして、transceiveを止める。<br>
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean ret = super.cancel(mayInterruptIfRunning);
+			FelicaLite felica = mCall.mFelica;
+			if(ret && (felica != null)) {
+				try {
+					felica.close();
+				} catch(IOException e) {
+					Log.v(TAG, "cancel : close fail");
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		protected void done() {
+			if(isCancelled() || (mCallback == null)) {
+				return;
+			}
+			T result = null;
+			Exception err = null;
+			try {
+				result = get();
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				err = (cause instanceof Exception) ? (Exception)cause : e;
+			} catch(InterruptedException e) {
+				err = e;
+			} catch(CancellationException e) {
+				return;
+			}
+			final T r = result;
+			final Exception ex = err;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(isCancelled()) {
+						return;
+					}
+					if(ex == null) {
+						mCallback.onSuccess(r);
+					} else {
+						mCallback.onFailure(ex);
+					}
+				}
+			});
+		}
+	}
+
+
+	private static final String TAG = "FelicaLiteAsync";
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler;
+
+
+	/**
+	 * UIスレッドで生成すること
+	 */
+	public FelicaLiteAsync() {
+		mHandler = new Handler(Looper.getMainLooper());
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "nfc");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+
+	/**
+	 * カード処理の登録<br>
+	 * <br>
+	 * NFCスレッドでconnectし、taskを実行してからcloseする。<br>
+	 *
+	 * @param tag			[in]intentで取得したTag
+	 * @param task			[in]カード処理
+	 * @param callback		[in]結果の通知先(UIスレッドで呼ばれる)。不要ならnull。
+	 * @return				キャンセル用
+	 */
+	public <T> Operation<T> submit(Tag tag, FelicaLiteScheduler.Task<T> task, Callback<T> callback) {
+		Operation<T> op = new Operation<T>(new CardCall<T>(tag, task), callback);
+		mExecutor.execute(op);
+		return op;
+	}
+
+
+	/**
+	 * 終了<br>
+	 * <br>
+	 * 実行待ちの処理は破棄し、実行中の処理にはスレッド割り込みをかける。<br>
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+}
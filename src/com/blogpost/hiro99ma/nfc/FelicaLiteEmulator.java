@@ -0,0 +1,593 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+
+/**
+ * @class	FelicaLiteEmulator
+ * @brief	ソフトウェアで動くFeliCa Lite
+ *
+ * {@link FelicaTransceiver}として{@link FelicaLite#connect(FelicaTransceiver, byte[])}に渡せば、
+ * カードや端末なしで発行やMAC確認を試せる。<br>
+ * <br>
+ * 対応コマンドは Polling, Read Without Encryption, Write Without Encryption。<br>
+ * ブロックの扱いは次のとおり。<br>
+ * - RC, CK : 書込専用(読むと0)<br>
+ * - MAC : 同じReadでMACより前に読んだブロックに対し、RCとCKから計算する(MACだけは読めない)<br>
+ * - D_ID, SER_C : 読込専用<br>
+ * - S_PAD0～13, REG : MC_SPのビットが1なら書ける(REGはbit14)<br>
+ * - ID, SYS_C, CKV, CK, MC : MC_ALLが0xffなら書ける。
+ *   MC_ALLが0x00の場合、MCはMC_SPのbit15が1ならMC_SPだけ書ける。<br>
+ * - REG : REG-A(0～3)は書いた値を引き、REG-B(4～7)は足し、REG-C(8～15)は上書きする(リトルエンディアン)。
+ *   REG-Aが負になる場合はエラー。<br>
+ * <br>
+ * IDmが違うコマンドや、Pollingのシステムコードが合わない場合は応答しない(IOException)。<br>
+ * 応答時間({@link #setLatency(int, int)})が{@link #setTimeout(int)}を超えた場合も応答しない。<br>
+ * 故障は{@link #failNext(Fault, int)}, {@link #setFaultRate(Fault, double)}で起こす。<br>
+ * <br>
+ * transceiveは同期化しているので、複数スレッドから使ってもよい。<br>
+ */
+public class FelicaLiteEmulator implements FelicaTransceiver {
+
+	/**
+	 * 故障の種類
+	 */
+	public enum Fault {
+		NO_RESPONSE,		///!< コマンドを実行せず、応答しない
+		LOST_RESPONSE,		///!< コマンドは実行するが、応答が届かない
+	}
+
+	/** ステータスフラグ2 : ブロック番号不正、またはアクセス権がない */
+	public static final int STATUS_BLOCK = 0xa8;
+	/** ステータスフラグ2 : サービス数・サービスコード不正 */
+	public static final int STATUS_SERVICE = 0xa1;
+	/** ステータスフラグ2 : ブロック数不正 */
+	public static final int STATUS_BLOCK_NUM = 0xa2;
+	/** ステータスフラグ2 : REGの演算エラー */
+	public static final int STATUS_REG = 0x70;
+
+	private static final byte[] DEFAULT_IDM = { 0x01, 0x2e, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01 };
+	private static final byte[] DEFAULT_PMM = { 0x00, (byte)0xf0, 0x00, 0x00, 0x00, 0x01, 0x43, 0x00 };
+
+	private static final int SERVICE_READ = 0x000b;
+	private static final int SERVICE_WRITE = 0x0009;
+
+	// S_PAD0～REG(0x00～0x0e)、RC～MC(0x80～0x88)の順に持つ
+	private static final int NUM_USER = FelicaLite.REG + 1;
+	private static final int NUM_SYSTEM = FelicaLite.MC - FelicaLite.RC + 1;
+
+	private final byte[] mIdm;
+	private final byte[] mPmm;
+	private final byte[][] mBlock = new byte[NUM_USER + NUM_SYSTEM][FelicaLite.SIZE_BLOCK];
+	private final MemoryConfig mMc = new MemoryConfig();
+	private final MemoryConfig mMcWrite = new MemoryConfig();
+
+	private int mTimeout;
+	private int mCommandMicros;
+	private int mBlockMicros;
+
+	private Fault mNextFault;
+	private int mNextFaultCount;
+	private Fault mRateFault;
+	private double mFaultRate;
+	private final Random mRandom = new Random();
+
+	private long mCommands;
+	private long mFaults;
+
+	// MAC計算用
+	private TripleDes mDes;
+	private final byte[] mKey = new byte[24];
+	private final byte[] mRc1 = new byte[8];
+	private final byte[] mHalf = new byte[8];
+	private final byte[] mMac = new byte[8];
+
+
+	/**
+	 * 工場出荷状態のカード(IDm 01 2e 00 00 00 00 00 01)
+	 */
+	public FelicaLiteEmulator() {
+		this(DEFAULT_IDM);
+	}
+
+
+	/**
+	 * 工場出荷状態のカード
+	 *
+	 * @param idm		[in]IDm(8byte)
+	 */
+	public FelicaLiteEmulator(byte[] idm) {
+		mIdm = idm.clone();
+		mPmm = DEFAULT_PMM.clone();
+
+		byte[] blk = block(FelicaLite.ID);
+		System.arraycopy(mIdm, 0, blk, 0, 8);
+		blk = block(FelicaLite.D_ID);
+		System.arraycopy(mIdm, 0, blk, 0, 8);
+		System.arraycopy(mPmm, 0, blk, 8, 8);
+		blk = block(FelicaLite.SER_C);
+		blk[0] = (byte)(SERVICE_READ & 0xff);
+		blk[1] = (byte)(SERVICE_READ >> 8);
+		blk = block(FelicaLite.SYS_C);
+		blk[0] = (byte)(FelicaLite.SC_FELICALITE >> 8);
+		blk[1] = (byte)(FelicaLite.SC_FELICALITE & 0xff);
+		MemoryConfig mc = mMc.wrap(block(FelicaLite.MC), 0);
+		mc.setMcSp(0xffff);
+		mc.setMcAll(MemoryConfig.MC_ALL_READ_WRITE);
+	}
+
+
+	/**
+	 * @return		IDm(8byte)
+	 */
+	public byte[] getIdm() {
+		return mIdm.clone();
+	}
+
+
+	/**
+	 * ブロックの内容を直接取得する(試験用。CK, RCも読める)
+	 *
+	 * @param blockNo	[in]ブロック番号
+	 * @return			ブロックデータのコピー。ブロック番号不正の場合はnull。
+	 */
+	public synchronized byte[] getBlock(int blockNo) {
+		byte[] blk = block(blockNo);
+		return (blk == null) ? null : blk.clone();
+	}
+
+
+	/**
+	 * ブロックの内容を直接設定する(試験用。書き込み禁止を無視する)
+	 *
+	 * @param blockNo	[in]ブロック番号
+	 * @param data		[in]ブロックデータ(16byte)
+	 * @return	true	設定した
+	 */
+	public synchronized boolean setBlock(int blockNo, byte[] data) {
+		byte[] blk = block(blockNo);
+		if((blk == null) || (data == null) || (data.length < FelicaLite.SIZE_BLOCK)) {
+			return false;
+		}
+		System.arraycopy(data, 0, blk, 0, FelicaLite.SIZE_BLOCK);
+		return true;
+	}
+
+
+	/**
+	 * 応答時間の設定
+	 *
+	 * @param commandMicros	[in]1コマンドあたりの時間(us)
+	 * @param blockMicros		[in]Read/Writeの1ブロックあたりの追加時間(us)
+	 */
+	public synchronized void setLatency(int commandMicros, int blockMicros) {
+		mCommandMicros = commandMicros;
+		mBlockMicros = blockMicros;
+	}
+
+
+	/**
+	 * 次のcount回のコマンドを故障させる
+	 *
+	 * @param fault	[in]故障の種類
+	 * @param count	[in]回数
+	 */
+	public synchronized void failNext(Fault fault, int count) {
+		mNextFault = fault;
+		mNextFaultCount = count;
+	}
+
+
+	/**
+	 * コマンドを一定の確率で故障させる
+	 *
+	 * @param fault	[in]故障の種類(nullなら故障させない)
+	 * @param rate		[in]確率(0.0～1.0)
+	 */
+	public synchronized void setFaultRate(Fault fault, double rate) {
+		mRateFault = fault;
+		mFaultRate = rate;
+	}
+
+
+	/**
+	 * 故障を起こす乱数の種
+	 *
+	 * @param seed		[in]種
+	 */
+	public synchronized void setSeed(long seed) {
+		mRandom.setSeed(seed);
+	}
+
+
+	/**
+	 * @return		受け取ったコマンド数
+	 */
+	public synchronized long getCommandCount() {
+		return mCommands;
+	}
+
+
+	/**
+	 * @return		故障させたコマンド数
+	 */
+	public synchronized long getFaultCount() {
+		return mFaults;
+	}
+
+
+	@Override
+	public synchronized byte[] transceive(byte[] data) throws IOException {
+		mCommands++;
+		Fault fault = nextFault();
+		if(fault == Fault.NO_RESPONSE) {
+			mFaults++;
+			throw new IOException("FelicaLiteEmulator : no response");
+		}
+
+		byte[] ret;
+		int blocks = 0;
+		switch((data.length >= 2) ? data[1] : -1) {
+		case 0x00:
+			ret = polling(data);
+			break;
+		case 0x06:
+			ret = read(data);
+			blocks = data[13];
+			break;
+		case 0x08:
+			ret = write(data);
+			blocks = 1;
+			break;
+		default:
+			ret = null;
+			break;
+		}
+		if(ret == null) {
+			throw new IOException("FelicaLiteEmulator : no response");
+		}
+
+		long micros = mCommandMicros + (long)mBlockMicros * blocks;
+		if((mTimeout > 0) && (micros > mTimeout * 1000L)) {
+			sleep(mTimeout * 1000L);
+			throw new IOException("FelicaLiteEmulator : timeout");
+		}
+		sleep(micros);
+
+		if(fault == Fault.LOST_RESPONSE) {
+			mFaults++;
+			throw new IOException("FelicaLiteEmulator : response lost");
+		}
+		return ret;
+	}
+
+
+	@Override
+	public synchronized void setTimeout(int timeout) {
+		mTimeout = timeout;
+	}
+
+
+	@Override
+	public void close() {
+	}
+
+
+	private Fault nextFault() {
+		if(mNextFaultCount > 0) {
+			mNextFaultCount--;
+			return mNextFault;
+		}
+		if((mRateFault != null) && (mRandom.nextDouble() < mFaultRate)) {
+			return mRateFault;
+		}
+		return null;
+	}
+
+
+	private static void sleep(long micros) {
+		if(micros <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(micros / 1000, (int)(micros % 1000) * 1000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Polling
+	 *
+	 * @return		レスポンス。応答しない場合はnull。
+	 */
+	private byte[] polling(byte[] data) {
+		if(data.length < 6) {
+			return null;
+		}
+		byte[] sysc = block(FelicaLite.SYS_C);
+		//0xffはワイルドカード
+		if(((data[2] != (byte)0xff) && (data[2] != sysc[0]))
+		  || ((data[3] != (byte)0xff) && (data[3] != sysc[1]))) {
+			return null;
+		}
+		byte[] ret = new byte[(data[4] == 0x01) ? 20 : 18];
+		ret[0] = (byte)ret.length;
+		ret[1] = 0x01;
+		System.arraycopy(mIdm, 0, ret, 2, 8);
+		System.arraycopy(mPmm, 0, ret, 10, 8);
+		if(data[4] == 0x01) {
+			//システムコード要求
+			ret[18] = sysc[0];
+			ret[19] = sysc[1];
+		}
+		return ret;
+	}
+
+
+	/**
+	 * Read Without Encryption
+	 *
+	 * @return		レスポンス。応答しない場合はnull。
+	 */
+	private byte[] read(byte[] data) {
+		if((data.length < 14) || !equalsIdm(data)) {
+			return null;
+		}
+		int status = checkService(data, SERVICE_READ);
+		int num = data[13];
+		if((status == 0) && ((num < 1) || (num > FelicaLite.MAX_READ_BLOCKS) || (data.length < 14 + num * 2))) {
+			status = STATUS_BLOCK_NUM;
+		}
+		if(status != 0) {
+			return status(0x07, status);
+		}
+
+		byte[] ret = new byte[13 + num * FelicaLite.SIZE_BLOCK];
+		ret[0] = (byte)ret.length;
+		ret[1] = 0x07;
+		System.arraycopy(mIdm, 0, ret, 2, 8);
+		ret[12] = (byte)num;
+		for(int i=0; i<num; i++) {
+			int blkNo = blockNo(data, 14 + i * 2);
+			byte[] blk = block(blkNo);
+			int pos = 13 + i * FelicaLite.SIZE_BLOCK;
+			if((blk == null) || ((blkNo == FelicaLite.MAC) && (i == 0))) {
+				return status(0x07, STATUS_BLOCK);
+			}
+			if(blkNo == FelicaLite.MAC) {
+				if(!calcMac(ret, 13, i)) {
+					return status(0x07, STATUS_BLOCK);
+				}
+				System.arraycopy(mMac, 0, ret, pos, 8);
+			} else if((blkNo != FelicaLite.RC) && (blkNo != FelicaLite.CK)) {
+				System.arraycopy(blk, 0, ret, pos, FelicaLite.SIZE_BLOCK);
+			}
+		}
+		return ret;
+	}
+
+
+	/**
+	 * Write Without Encryption
+	 *
+	 * @return		レスポンス。応答しない場合はnull。
+	 */
+	private byte[] write(byte[] data) {
+		if((data.length < 14) || !equalsIdm(data)) {
+			return null;
+		}
+		int status = checkService(data, SERVICE_WRITE);
+		if((status == 0) && ((data[13] != 1) || (data.length < 16 + FelicaLite.SIZE_BLOCK))) {
+			status = STATUS_BLOCK_NUM;
+		}
+		if(status == 0) {
+			status = writeBlock(blockNo(data, 14), data, 16);
+		}
+		return status(0x09, status);
+	}
+
+
+	/**
+	 * 1ブロック書込み(アクセス権の確認つき)
+	 *
+	 * @return		ステータスフラグ2
+	 */
+	private int writeBlock(int blkNo, byte[] data, int offset) {
+		byte[] blk = block(blkNo);
+		if(blk == null) {
+			return STATUS_BLOCK;
+		}
+		MemoryConfig mc = mMc.wrap(block(FelicaLite.MC), 0);
+		boolean all = mc.isSystemWritable();
+
+		switch(blkNo) {
+		case FelicaLite.RC:
+			break;
+		case FelicaLite.MAC:
+		case FelicaLite.D_ID:
+		case FelicaLite.SER_C:
+			return STATUS_BLOCK;
+		case FelicaLite.ID:
+		case FelicaLite.SYS_C:
+		case FelicaLite.CKV:
+		case FelicaLite.CK:
+			if(!all) {
+				return STATUS_BLOCK;
+			}
+			break;
+		case FelicaLite.MC:
+			if(!all) {
+				//MC_SPだけ書き換えられる
+				if(mc.isSecondIssued()) {
+					return STATUS_BLOCK;
+				}
+				mc.setMcSp(mMcWrite.wrap(data, offset).getMcSp());
+				return 0;
+			}
+			break;
+		case FelicaLite.REG:
+			if(!mc.isUserBlockWritable(blkNo)) {
+				return STATUS_BLOCK;
+			}
+			return writeReg(blk, data, offset);
+		default:
+			//S_PAD
+			if(!mc.isUserBlockWritable(blkNo)) {
+				return STATUS_BLOCK;
+			}
+			break;
+		}
+		System.arraycopy(data, offset, blk, 0, FelicaLite.SIZE_BLOCK);
+		return 0;
+	}
+
+
+	/**
+	 * REGへの書込み
+	 *
+	 * @return		ステータスフラグ2
+	 */
+	private static int writeReg(byte[] reg, byte[] data, int offset) {
+		long a = readLe32(reg, 0) - readLe32(data, offset);
+		long b = readLe32(reg, 4) + readLe32(data, offset + 4);
+		if((a < 0) || (b > 0xffffffffL)) {
+			return STATUS_REG;
+		}
+		writeLe32(reg, 0, a);
+		writeLe32(reg, 4, b);
+		System.arraycopy(data, offset + 8, reg, 8, 8);
+		return 0;
+	}
+
+
+	/**
+	 * MAC計算(カード側)<br>
+	 * <br>
+	 * buf[offset]からのblocksブロックに対するMACをmMacに書く。<br>
+	 * 8byteごとにバイト順を逆にして3DES(CBC)する。<br>
+	 * 鍵はRCをCKで暗号化したセッション鍵、初期ベクタはRCの前半。<br>
+	 */
+	private boolean calcMac(byte[] buf, int offset, int blocks) {
+		byte[] ck = block(FelicaLite.CK);
+		byte[] rc = block(FelicaLite.RC);
+		try {
+			if(mDes == null) {
+				mDes = new TripleDes();
+			}
+
+			//CK1, CK2, CK1
+			reverse(mKey, 0, ck, 0);
+			reverse(mKey, 8, ck, 8);
+			reverse(mKey, 16, ck, 0);
+			mDes.setKey(mKey);
+
+			//SK1 = 3DES(RC1), SK2 = 3DES(RC2 xor SK1)
+			reverse(mRc1, 0, rc, 0);
+			reverse(mHalf, 0, rc, 8);
+			mDes.enc83(mKey, 0, mRc1, 0, null, 0);
+			mDes.enc83(mKey, 8, mHalf, 0, mKey, 0);
+			System.arraycopy(mKey, 0, mKey, 16, 8);
+			mDes.setKey(mKey);
+
+			System.arraycopy(mRc1, 0, mMac, 0, 8);
+			for(int h=0; h<blocks * 2; h++) {
+				reverse(mHalf, 0, buf, offset + h * 8);
+				mDes.enc83(mMac, 0, mHalf, 0, mMac, 0);
+			}
+			reverse(mHalf, 0, mMac, 0);
+			System.arraycopy(mHalf, 0, mMac, 0, 8);
+			return true;
+
+		} catch(GeneralSecurityException e) {
+			FelicaLog.e("FelicaLiteEmulator", "calcMac exception");
+			return false;
+		} finally {
+			for(int i=0; i<mKey.length; i++) {
+				mKey[i] = 0;
+			}
+			if(mDes != null) {
+				mDes.clear();
+			}
+		}
+	}
+
+
+	/**
+	 * @return		ステータスフラグ2(サービスが正しければ0)
+	 */
+	private static int checkService(byte[] data, int service) {
+		if((data[10] != 1) || (((data[11] & 0xff) | ((data[12] & 0xff) << 8)) != service)) {
+			return STATUS_SERVICE;
+		}
+		return 0;
+	}
+
+
+	/**
+	 * 2byteブロックリストエレメントのブロック番号
+	 *
+	 * @return		ブロック番号(2byteでない場合は-1)
+	 */
+	private static int blockNo(byte[] data, int pos) {
+		if((data[pos] & 0x80) == 0) {
+			return -1;
+		}
+		return data[pos + 1] & 0xff;
+	}
+
+
+	private byte[] block(int blockNo) {
+		if((blockNo >= 0) && (blockNo < NUM_USER)) {
+			return mBlock[blockNo];
+		}
+		if((blockNo >= FelicaLite.RC) && (blockNo <= FelicaLite.MC)) {
+			return mBlock[NUM_USER + blockNo - FelicaLite.RC];
+		}
+		return null;
+	}
+
+
+	private byte[] status(int code, int status2) {
+		byte[] ret = new byte[12];
+		ret[0] = 12;
+		ret[1] = (byte)code;
+		System.arraycopy(mIdm, 0, ret, 2, 8);
+		ret[10] = (byte)((status2 == 0) ? 0x00 : 0xff);
+		ret[11] = (byte)status2;
+		return ret;
+	}
+
+
+	private boolean equalsIdm(byte[] data) {
+		for(int i=0; i<8; i++) {
+			if(data[2 + i] != mIdm[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	private static void reverse(byte[] dst, int dstOffset, byte[] src, int srcOffset) {
+		for(int i=0; i<8; i++) {
+			dst[dstOffset + i] = src[srcOffset + 7 - i];
+		}
+	}
+
+
+	private static long readLe32(byte[] buf, int pos) {
+		return (buf[pos] & 0xffL) | ((buf[pos + 1] & 0xffL) << 8)
+				| ((buf[pos + 2] & 0xffL) << 16) | ((buf[pos + 3] & 0xffL) << 24);
+	}
+
+
+	private static void writeLe32(byte[] buf, int pos, long v) {
+		for(int i=0; i<4; i++) {
+			buf[pos + i] = (byte)(v >> (8 * i));
+		}
+	}
+}
@@ -1,16 +1,6 @@
 package com.blogpost.hiro99ma.nfc;
 
 import java.io.IOException;
-import java.security.SecureRandom;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.DESedeKeySpec;
-import javax.crypto.spec.IvParameterSpec;
-
-
-import android.util.Log;
 
 public final class FelicaLiteIssuance {
 
@@ -27,6 +17,9 @@ public final class FelicaLiteIssuance {
 		ERROR,					///!< よくわからないがエラー
 	}
 
+	/** {@link #readWithMac}で1回に読めるブロック数(MACブロックの分だけ少ない) */
+	public static final int MAX_MAC_READ_BLOCKS = FelicaLite.MAX_READ_BLOCKS - 1;
+
 
 	///////////////////////////
 	// private fields
@@ -34,6 +27,40 @@ public final class FelicaLiteIssuance {
 
 	private static final String TAG = "FelicaLiteIssuance";
 
+	/** IDブロックの任意領域に書く値 */
+	private static final byte[] ID_FREE = { 'h', 'i', 'r', 'o', '9', '9' };
+
+	// enc83()で使うTripleDesの用途(鍵ごとに分けて、鍵が変わるまで鍵スケジュールを使い回す)
+	// 鍵が変わるとTripleDesが新しい鍵で上書きする。使い終わったらclearKeys()で消す
+	private static final int DES_MASTER = 0;		///!< 個別化マスター鍵
+	private static final int DES_CK = 1;			///!< カード鍵
+	private static final int DES_SK = 2;			///!< セッション鍵
+	private static final int DES_NUM = 3;
+
+	// Cipherはスレッドセーフではないので、スレッドごとに持つ
+	private static final ThreadLocal<TripleDes[]> sDes = new ThreadLocal<TripleDes[]>() {
+		@Override
+		protected TripleDes[] initialValue() {
+			return new TripleDes[DES_NUM];
+		}
+	};
+
+	/** システムブロックのビュー(wrap()で使い回す) */
+	private static final class BlockViews {
+		final SystemCode mSystemCode = new SystemCode();
+		final MemoryConfig mMemoryConfig = new MemoryConfig();
+		final IdBlock mIdBlock = new IdBlock();
+		final KeyVersion mKeyVersion = new KeyVersion();
+	}
+
+	// ビューもスレッドセーフではないので、スレッドごとに持つ
+	private static final ThreadLocal<BlockViews> sViews = new ThreadLocal<BlockViews>() {
+		@Override
+		protected BlockViews initialValue() {
+			return new BlockViews();
+		}
+	};
+
 
 	///////////////////////////
 	// methods
@@ -42,61 +69,62 @@ public final class FelicaLiteIssuance {
 	/**
 	 * １次発行(システムブロックの書き換え禁止設定は行わない)<br>
 	 * <br>
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。
+	 * {@link FelicaLite#connect}を呼び出しておくこと。
 	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
 	 * @param dfd			[in]DFD
 	 * @param masterKey	[in]個別化マスター鍵(24byte)
 	 * @param keyVersion	[in]鍵バージョン
 	 * @return			true	１次発行成功
 	 * @throws IOException 
 	 */
-	public static Result issuance1(short dfd, byte[] masterKey, short keyVersion) throws IOException {
+	public static Result issuance1(FelicaLite felica, short dfd, byte[] masterKey, short keyVersion) throws IOException {
 
-		if(FelicaLite.check() != true) {
-			Log.e(TAG, "no FelicaLite.connect()");
+		if(felica.check() != true) {
+			FelicaLog.e(TAG, "closed FelicaLite");
 			return Result.ERROR;
 		}
 
 		// 7.3.1 Pollingレスポンスの確認
-		boolean ret = FelicaLite.polling(FelicaLite.SC_BROADCAST);
+		boolean ret = felica.polling(FelicaLite.SC_BROADCAST);
 		if(!ret) {
-			Log.e(TAG, "card not found.");
+			FelicaLog.e(TAG, "card not found.");
 			return Result.ENOTCARD;
 		}
 
 		// 7.3.2 システムコードの確認
-		ret = checkSystemCode();
+		ret = checkSystemCode(felica);
 		if(!ret) {
-			Log.e(TAG, "bad system code.");
+			FelicaLog.e(TAG, "bad system code.");
 			return Result.EBADSYSCODE;
 		}
 
 		// 発行済みチェック
-		ret = checkNotIssuance();
+		ret = checkNotIssuance(felica);
 		if(!ret) {
-			Log.e(TAG, "issuanced card.");
+			FelicaLog.e(TAG, "issuanced card.");
 			return Result.EISSUED;
 		}
 
 		// 7.3.3 IDの設定
-		ret = writeID(dfd);
+		ret = writeID(felica, dfd);
 		if(!ret) {
-			Log.e(TAG, "write ID fail.");
+			FelicaLog.e(TAG, "write ID fail.");
 			return Result.ERROR;
 		}
 
 		// 7.3.4 カード鍵の書き込み
 		// 7.3.5 カード鍵の確認
-		ret = writeCardKey(masterKey);
+		ret = writeCardKey(felica, masterKey);
 		if(!ret) {
-			Log.e(TAG, "write Card Key fail.");
+			FelicaLog.e(TAG, "write Card Key fail.");
 			return Result.ERROR;
 		}
 
 		// 7.3.6 カード鍵バージョンの書き込み
-		ret = writeKeyVersion(keyVersion);
+		ret = writeKeyVersion(felica, keyVersion);
 		if(!ret) {
-			Log.e(TAG, "write Key Version fail.");
+			FelicaLog.e(TAG, "write Key Version fail.");
 			return Result.ERROR;
 		}
 
@@ -105,9 +133,9 @@ public final class FelicaLiteIssuance {
 
 		// 7.3.8 システムブロックの書き換え禁止設定
 		//これを行うと元に戻れなくなるので、コメントアウトしておく
-//		ret = writeIssuance1();
+//		ret = writeIssuance1(felica);
 //		if(!ret) {
-//			Log.e(TAG, "write Issuance sign fail.");
+//			FelicaLog.e(TAG, "write Issuance sign fail.");
 //			return Result.ERROR;
 //		}
 
@@ -115,18 +143,167 @@ public final class FelicaLiteIssuance {
 		return Result.SUCCESS;
 	}
 
+
+	/**
+	 * １次発行(フレーム数削減版)<br>
+	 * <br>
+	 * {@link #issuance1(FelicaLite, short, byte[], short)}と同じチェックを行い、同じ結果を返すが、
+	 * 読み込みをまとめ、書き込み後の確認を最後の1回にまとめる。<br>
+	 * - Polling<br>
+	 * - SYS_C, MC, D_IDを1フレームで読み込み → システムコード確認・未発行確認<br>
+	 * - ID, CK, CKVの書き込み(CKは書き込んだIDから計算する)<br>
+	 * - RCの書き込み<br>
+	 * - ID, MAC, CKVを1フレームで読み込み → ID, CKVの書き込み確認とMACによるCKの確認<br>
+	 * <br>
+	 * issuance1()が12フレームなのに対し、7フレームで済む。<br>
+	 * CKの確認より先にCKVを書き込む点がissuance1()と異なる。<br>
+ * SYS_C, MC, D_IDの読み込みに失敗した場合は、issuance1()で最初に読むSYS_Cが読めなかった場合と同じく
+ * EBADSYSCODEを返す(1フレームなので、どのブロックが原因かは区別しない)。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param dfd			[in]DFD
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param keyVersion	[in]鍵バージョン
+	 * @param frames		[out]frames[0]に使用したフレーム数を書く。不要ならnull。
+	 * @return			SUCCESS	１次発行成功
+	 * @throws IOException 
+	 */
+	public static Result issuance1Fast(FelicaLite felica, short dfd, byte[] masterKey, short keyVersion, int[] frames) throws IOException {
+		int startFrame = felica.getFrameCount();
+		Result res = issuance1FastInternal(felica, dfd, masterKey, keyVersion);
+		if(frames != null) {
+			frames[0] = felica.getFrameCount() - startFrame;
+		}
+		return res;
+	}
+
+
+	private static Result issuance1FastInternal(FelicaLite felica, short dfd, byte[] masterKey, short keyVersion) throws IOException {
+		if(felica.check() != true) {
+			FelicaLog.e(TAG, "closed FelicaLite");
+			return Result.ERROR;
+		}
+
+		// 7.3.1 Pollingレスポンスの確認
+		boolean ret = felica.polling(FelicaLite.SC_BROADCAST);
+		if(!ret) {
+			FelicaLog.e(TAG, "card not found.");
+			return Result.ENOTCARD;
+		}
+
+		// 7.3.2 システムコードの確認 + 発行済みチェック + IDの元になるD_ID
+		byte[] sys = felica.readBlock(new int[] { FelicaLite.SYS_C, FelicaLite.MC, FelicaLite.D_ID });
+		if(sys == null) {
+			//issuance1()はSYS_Cを最初に読み、読めなければEBADSYSCODEになるので合わせる
+			FelicaLog.e(TAG, "read system blocks fail.");
+			return Result.EBADSYSCODE;
+		}
+		if(!isFelicaLiteSystemCode(sys, 0)) {
+			FelicaLog.e(TAG, "bad system code.");
+			return Result.EBADSYSCODE;
+		}
+		if(!isNotIssuance(sys, FelicaLite.SIZE_BLOCK)) {
+			FelicaLog.e(TAG, "issuanced card.");
+			return Result.EISSUED;
+		}
+
+		// 7.3.3 IDの設定(確認は最後にまとめて行う)
+		byte[] id = new byte[FelicaLite.SIZE_BLOCK];
+		System.arraycopy(sys, FelicaLite.SIZE_BLOCK * 2, id, 0, FelicaLite.SIZE_BLOCK);
+		makeID(id, dfd);
+		ret = felica.writeBlock(FelicaLite.ID, id);
+		if(!ret) {
+			FelicaLog.e(TAG, "write ID fail.");
+			return Result.ERROR;
+		}
+
+		// 7.3.4 カード鍵の書き込み(書き込んだIDから計算する)
+		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
+		ret = calcPersonalCardKey(ck, masterKey, id);
+		if(!ret) {
+			FelicaLog.e(TAG, "write Card Key fail.");
+			return Result.ERROR;
+		}
+		ret = felica.writeBlock(FelicaLite.CK, ck);
+		if(!ret) {
+			FelicaLog.e(TAG, "write Card Key fail.");
+			return Result.ERROR;
+		}
+
+		// 7.3.6 カード鍵バージョンの書き込み(確認は最後にまとめて行う)
+		byte[] ckv = new byte[FelicaLite.SIZE_BLOCK];
+		makeKeyVersion(ckv, keyVersion);
+		ret = felica.writeBlock(FelicaLite.CKV, ckv);
+		if(!ret) {
+			FelicaLog.e(TAG, "write Key Version fail.");
+			return Result.ERROR;
+		}
+
+		// 7.3.5 カード鍵の確認 + IDとCKVの書き込み確認
+		//MACはブロックリストでMACより前のブロック(ID)から計算されるので、CKVはMACの後に置く
+		byte[] rc = new byte[FelicaLite.SIZE_BLOCK];
+		felica.getChallengeSource().take(rc, 0);
+		ret = felica.writeBlock(FelicaLite.RC, rc);
+		if(!ret) {
+			FelicaLog.e(TAG, "write Card Key fail.");
+			return Result.ERROR;
+		}
+		byte[] buf = felica.readBlock(new int[] { FelicaLite.ID, FelicaLite.MAC, FelicaLite.CKV });
+		if(buf == null) {
+			FelicaLog.e(TAG, "write ID fail.");
+			return Result.ERROR;
+		}
+		if(!equalsBlock(id, buf, 0)) {
+			FelicaLog.e(TAG, "write ID fail.");
+			return Result.ERROR;
+		}
+		if(!verifyMac(ck, rc, buf, 1)) {
+			FelicaLog.e(TAG, "write Card Key fail.");
+			return Result.ERROR;
+		}
+		if(!equalsBlock(ckv, buf, FelicaLite.SIZE_BLOCK * 2)) {
+			FelicaLog.e(TAG, "write Key Version fail.");
+			return Result.ERROR;
+		}
+
+		// 7.3.7 ユーザーブロックの書き込み
+		//やらない
+
+		// 7.3.8 システムブロックの書き換え禁止設定
+		//issuance1()と同じく、行わない
+
+		return Result.SUCCESS;
+	}
+
 	
 	/**
 	 * MAC比較<br>
 	 * <br>
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * {@link FelicaLite#connect}を呼び出しておくこと。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @return		true	MAC一致
+	 * @throws IOException 
+	 */
+	public static boolean macCheck(FelicaLite felica, byte[] masterKey) throws IOException {
+		return macCheckInternal(felica, masterKey, null, null);
+	}
+
+
+	/**
+	 * MAC比較(個別化カード鍵キャッシュ付き)<br>
+	 * <br>
+	 * 同じカードを何度も確認する場合、2回目以降は個別化カード鍵の計算を省略する。<br>
 	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
 	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param cache		[in]個別化カード鍵のキャッシュ
 	 * @return		true	MAC一致
 	 * @throws IOException 
 	 */
-	public static boolean macCheck(byte[] masterKey) throws IOException {
-		return macCheckInternal(masterKey, null);
+	public static boolean macCheck(FelicaLite felica, byte[] masterKey, CardKeyCache cache) throws IOException {
+		return macCheckInternal(felica, masterKey, null, cache);
 	}
 
 
@@ -137,52 +314,94 @@ public final class FelicaLiteIssuance {
 	 * 本当に呼び出してよいかどうかは、FeliCa Liteユーザーズマニュアルを確認すること。<br>
 	 * 少なくとも、NFCの実験目的でやっているような場合は、呼び出す必要はない。<br>
 	 * <br>
-	 * {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * {@link FelicaLite#connect}を呼び出しておくこと。<br>
 	 * 
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
 	 * @return		true:書き換え禁止成功
 	 * @throws IOException
 	 * @attention	実行すると、システム領域の一部が書込禁止になり、元に戻すことはできない
 	 */
-	public static boolean writeIssuance1() throws IOException {
-		byte[] buf = FelicaLite.readBlock(FelicaLite.MC);
+	public static boolean writeIssuance1(FelicaLite felica) throws IOException {
+		byte[] buf = felica.readBlock(FelicaLite.MC);
 		if(buf == null) {
-			Log.v(TAG, "writeIssuance1 : read fail");
+			FelicaLog.v(TAG, "writeIssuance1 : read fail");
 			return false;
 		}
 		
 		// 7.3.8 システムブロックの書き換え禁止設定(不可逆)
-		buf[2] = 0x00;		//MC_ALL
-		boolean ret = FelicaLite.writeBlock(FelicaLite.MC, buf);
+		sViews.get().mMemoryConfig.wrap(buf, 0).setMcAll(MemoryConfig.MC_ALL_READ_ONLY);
+		boolean ret = felica.writeBlock(FelicaLite.MC, buf);
 		if(ret == false) {
-			Log.v(TAG, "writeIssuance1 : write fail");
+			FelicaLog.v(TAG, "writeIssuance1 : write fail");
 			return false;
 		}
 		return ret;
 	}
 	
 
+	/**
+	 * ユーザーブロックの書き込み(7.3.7)<br>
+	 * <br>
+	 * 全ブロックを書き込んだ後、4ブロックずつまとめて読み戻して確認する。<br>
+	 * n ブロックで n + ceil(n/4) フレーム(1ブロックずつ確認すると 2n フレーム)。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param blockNo		[in]書込対象のブロック番号(PAD0～PAD13)
+	 * @param data			[in]書き込みデータ(blockNoの順に16byteずつ)
+	 * @return			(!=null)実行結果(失敗したブロックは{@link FelicaLiteWriteBatch#getFailedBlocks()})
+	 * 					 / (==null)パラメータ不正
+	 * @throws IOException
+	 */
+	public static FelicaLiteWriteBatch writeUserBlocks(FelicaLite felica, int[] blockNo, byte[] data) throws IOException {
+		if((data == null) || (data.length < blockNo.length * FelicaLite.SIZE_BLOCK)) {
+			FelicaLog.e(TAG, "writeUserBlocks : param");
+			return null;
+		}
+		FelicaLiteWriteBatch batch = new FelicaLiteWriteBatch(felica);
+		for(int i=0; i<blockNo.length; i++) {
+			if((blockNo[i] < FelicaLite.PAD0) || (blockNo[i] > FelicaLite.PAD13)) {
+				FelicaLog.e(TAG, "writeUserBlocks : block " + blockNo[i]);
+				return null;
+			}
+			batch.add(blockNo[i], data, i * FelicaLite.SIZE_BLOCK);
+		}
+		batch.execute();
+		return batch;
+	}
+
+
 	/**
 	 * システムコード確認<br>
 	 *
 	 * @return	true	FeliCa Liteである
 	 * @throws IOException 
 	 */
-	private static boolean checkSystemCode() throws IOException {
-		byte[] buf = FelicaLite.readBlock(FelicaLite.SYS_C);
+	private static boolean checkSystemCode(FelicaLite felica) throws IOException {
+		byte[] buf = felica.readBlock(FelicaLite.SYS_C);
 		if(buf == null) {
-			Log.v(TAG, "checkSystemCode : read fail");
+			FelicaLog.v(TAG, "checkSystemCode : read fail");
 			return false;
 		}
-		int sc = (int)((((int)buf[0] << 8) & 0xff00) | ((int)buf[1] & 0xff));
-		if(sc != FelicaLite.SC_FELICALITE) {
-			Log.v(TAG, "checkSystemCode : invalid syscode");
+		return isFelicaLiteSystemCode(buf, 0);
+	}
+
+
+	/**
+	 * SYS_CブロックがFeliCa Liteのものかどうか
+	 *
+	 * @param buf		[in]SYS_Cブロックを含むバッファ
+	 * @param offset	[in]SYS_Cブロックの位置
+	 * @return	true	FeliCa Liteである
+	 */
+	private static boolean isFelicaLiteSystemCode(byte[] buf, int offset) {
+		SystemCode sc = sViews.get().mSystemCode.wrap(buf, offset);
+		if(sc.getSystemCode() != FelicaLite.SC_FELICALITE) {
+			FelicaLog.v(TAG, "checkSystemCode : invalid syscode");
 			return false;
 		}
-		for(int i=2; i<FelicaLite.SIZE_BLOCK; i++) {
-			if(buf[i] != 0x00) {
-				Log.v(TAG, "checkSystemCode : invalid block");
-				return false;
-			}
+		if(!sc.isReservedClear()) {
+			FelicaLog.v(TAG, "checkSystemCode : invalid block");
+			return false;
 		}
 
 		return true;
@@ -198,18 +417,31 @@ public final class FelicaLiteIssuance {
 	 * @return		true	未発行である
 	 * @throws IOException 
 	 */
-	private static boolean checkNotIssuance() throws IOException {
-		byte[] buf = FelicaLite.readBlock(FelicaLite.MC);
+	private static boolean checkNotIssuance(FelicaLite felica) throws IOException {
+		byte[] buf = felica.readBlock(FelicaLite.MC);
 		if(buf == null) {
-			Log.v(TAG, "checkNotIssuance : read fail");
+			FelicaLog.v(TAG, "checkNotIssuance : read fail");
 			return false;
 		}
-		if(buf[2] == 0x00) {
-			Log.v(TAG, "checkNotIssuance : first issuranced");
+		return isNotIssuance(buf, 0);
+	}
+
+
+	/**
+	 * MCブロックが未発行を示しているかどうか
+	 *
+	 * @param buf		[in]MCブロックを含むバッファ
+	 * @param offset	[in]MCブロックの位置
+	 * @return	true	未発行である
+	 */
+	private static boolean isNotIssuance(byte[] buf, int offset) {
+		MemoryConfig mc = sViews.get().mMemoryConfig.wrap(buf, offset);
+		if(mc.isFirstIssued()) {
+			FelicaLog.v(TAG, "checkNotIssuance : first issuranced");
 			return false;
 		}
-		if((buf[1] & 0x80) == 0) {
-			Log.v(TAG, "checkNotIssuance : second issuranced");
+		if(mc.isSecondIssued()) {
+			FelicaLog.v(TAG, "checkNotIssuance : second issuranced");
 			return false;
 		}
 		return true;
@@ -226,27 +458,17 @@ public final class FelicaLiteIssuance {
 	 * @throws IOException 
 	 *
 	 */
-	private static boolean writeID(short dfd) throws IOException {
-		byte[] buf = FelicaLite.readBlock(FelicaLite.D_ID);
+	private static boolean writeID(FelicaLite felica, short dfd) throws IOException {
+		byte[] buf = felica.readBlock(FelicaLite.D_ID);
 		if(buf == null) {
-			Log.v(TAG, "writeID : read fail");
+			FelicaLog.v(TAG, "writeID : read fail");
 			return false;
 		}
 
-		//DFD
-		buf[8] = (byte)((dfd & 0xff00) >> 8);
-		buf[9] = (byte)(dfd & 0xff);
-		
-		//any value
-		buf[10] = 'h';
-		buf[11] = 'i';
-		buf[12] = 'r';
-		buf[13] = 'o';
-		buf[14] = '9';
-		buf[15] = '9';
-		boolean ret = writeWithCheck(buf, FelicaLite.ID);
+		makeID(buf, dfd);
+		boolean ret = writeWithCheck(felica, buf, FelicaLite.ID);
 		if(ret == false) {
-			Log.v(TAG, "writeID : write fail");
+			FelicaLog.v(TAG, "writeID : write fail");
 			return false;
 		}
 
@@ -254,6 +476,19 @@ public final class FelicaLiteIssuance {
 	}
 	
 
+	/**
+	 * IDブロックの作成<br>
+	 *
+	 * @param buf		[in/out]D_IDブロック → IDブロック
+	 * @param dfd		[in]DFD
+	 */
+	private static void makeID(byte[] buf, short dfd) {
+		IdBlock id = sViews.get().mIdBlock.wrap(buf, 0);
+		id.setDfd(dfd);
+		id.setFree(ID_FREE, 0);
+	}
+	
+
 	/**
 	 * カード鍵の書き込み.<br>
 	 * <br>
@@ -263,29 +498,29 @@ public final class FelicaLiteIssuance {
 	 * @return
 	 * @throws IOException 
 	 */
-	private static boolean writeCardKey(byte[] masterKey) throws IOException {
-		byte[] id = FelicaLite.readBlock(FelicaLite.ID);
+	private static boolean writeCardKey(FelicaLite felica, byte[] masterKey) throws IOException {
+		byte[] id = felica.readBlock(FelicaLite.ID);
 		if(id == null) {
-			Log.v(TAG, "writeCardKey: read ID fail");
+			FelicaLog.v(TAG, "writeCardKey: read ID fail");
 			return false;
 		}
 		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
 		boolean ret = calcPersonalCardKey(ck, masterKey, id);
 		if(ret == false) {
-			Log.v(TAG, "writeCardKey: personal key fail");
+			FelicaLog.v(TAG, "writeCardKey: personal key fail");
 			return false;
 		}
 
 		//CKはチェックできない
-		ret = FelicaLite.writeBlock(FelicaLite.CK, ck);
+		ret = felica.writeBlock(FelicaLite.CK, ck);
 		if(ret == false) {
-			Log.v(TAG, "writeCardKey : write fail");
+			FelicaLog.v(TAG, "writeCardKey : write fail");
 			return false;
 		}
 
-		ret = macCheckInternal(null, ck);
+		ret = macCheckInternal(felica, null, ck, null);
 		if(ret == false) {
-			Log.v(TAG, "writeCardKey : mac fail");
+			FelicaLog.v(TAG, "writeCardKey : mac fail");
 			return false;
 		}
 
@@ -301,53 +536,130 @@ public final class FelicaLiteIssuance {
 	 *
 	 * @param masterKey	[in]個別化マスター鍵(24byte)
 	 * @param ck			[in]カード鍵。nullの場合、masterKeyから計算する。
+	 * @param cache		[in]ckがnullの場合に使う個別化カード鍵のキャッシュ。不要ならnull。
 	 * @return		true	MAC一致
 	 * @throws IOException 
 	 */
-	private static boolean macCheckInternal(byte[] masterKey, byte[] ck) throws IOException {
+	private static boolean macCheckInternal(FelicaLite felica, byte[] masterKey, byte[] ck, CardKeyCache cache) throws IOException {
 		//カードのMAC(IDブロック)→buf[0-15]にIDが、buf[16-31]にMACが入る
 		byte[] rc = new byte[FelicaLite.SIZE_BLOCK];			//ランダム値を入れる
-		SecureRandom random = new SecureRandom();
-		random.nextBytes(rc);
-		boolean ret = FelicaLite.writeBlock(FelicaLite.RC, rc);
+		felica.getChallengeSource().take(rc, 0);
+		boolean ret = felica.writeBlock(FelicaLite.RC, rc);
 		if(ret == false) {
-			Log.v(TAG, "macCheck : write rc fail");
+			FelicaLog.v(TAG, "macCheck : write rc fail");
 			return false;
 		}
 		int[] blkNo = new int[] { FelicaLite.ID, FelicaLite.MAC };
-		byte[] buf = FelicaLite.readBlock(blkNo);
+		byte[] buf = felica.readBlock(blkNo);
 		if(buf == null) {
-			Log.v(TAG, "macCheck : read fail");
+			FelicaLog.v(TAG, "macCheck : read fail");
 			return false;
 		}
 
 		//個別化カード鍵の計算→ck
 		if(ck == null) {
 			ck = new byte[16];
-			ret = calcPersonalCardKey(ck, masterKey, buf);
-			if(ret == false) {
-				Log.v(TAG, "macCheck: personal key fail");
+			if(!personalCardKey(ck, masterKey, buf, cache)) {
+				FelicaLog.v(TAG, "macCheck: personal key fail");
 				return false;
 			}
 		}
 
-		// MACの計算(bufはID)
-		byte[] mac = new byte[8];
-		ret = calcMac(mac, ck, buf, rc);
-		if(ret == false) {
-			Log.v(TAG, "macCheck: mac calc fail");
+		// MACの確認(bufはID)
+		if(!verifyMac(ck, rc, buf, 1)) {
+			FelicaLog.v(TAG, "macCheck: mac not match fail");
 			return false;
 		}
-		
-		//比較
-		for(int i=0; i<8; i++) {
-			if(buf[16+i] != mac[i]) {
-				Log.v(TAG, "macCheck: mac not match fail");
+
+		return true;
+	}
+
+
+	/**
+	 * MAC付き読み込み<br>
+	 * <br>
+	 * RCにランダム値を書き込んだ後、指定したブロックとMACブロックを1フレームで読み込み、
+	 * 読み込んだブロックに対するMACを確かめる。<br>
+	 * 個別化カード鍵の計算にIDブロックが必要なので、blockNoにIDが無い場合は
+	 * 同じフレームでMACの前にIDブロックも読む(outには書かない)。
+	 * そのため、IDを含めない場合は2つまでになる。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param cache		[in]個別化カード鍵のキャッシュ。不要ならnull。
+	 * @param blockNo		[in]読込対象のブロック番号(IDを含めて3つまで。MAC, RC, CKは指定できない)
+	 * @param out			[out]読み込んだブロックデータ(blockNoの順)。MAC一致の場合だけ書く。
+	 * @param outOffset	[in]outへの書き込み開始位置
+	 * @return		true	読込成功かつMAC一致
+	 * @throws IOException
+	 */
+	public static boolean readWithMac(FelicaLite felica, byte[] masterKey, CardKeyCache cache,
+					int[] blockNo, byte[] out, int outOffset) throws IOException {
+		int num = blockNo.length;
+		if((num < 1) || (num > MAX_MAC_READ_BLOCKS)
+		  || (out == null) || (out.length < outOffset + num * FelicaLite.SIZE_BLOCK)) {
+			FelicaLog.e(TAG, "readWithMac : param");
+			return false;
+		}
+		int idPos = -1;
+		for(int i=0; i<num; i++) {
+			if((blockNo[i] == FelicaLite.MAC) || (blockNo[i] == FelicaLite.RC) || (blockNo[i] == FelicaLite.CK)) {
+				FelicaLog.e(TAG, "readWithMac : block " + blockNo[i]);
 				return false;
 			}
+			if(blockNo[i] == FelicaLite.ID) {
+				idPos = i;
+			}
 		}
 
-		return ret;
+		//IDが無ければMACの前に足す(MACの対象になるので、MACより前に置く)
+		int macBlocks = num;
+		if(idPos < 0) {
+			if(num >= MAX_MAC_READ_BLOCKS) {
+				FelicaLog.e(TAG, "readWithMac : no id");
+				return false;
+			}
+			idPos = macBlocks++;
+		}
+
+		byte[] rc = new byte[FelicaLite.SIZE_BLOCK];
+		felica.getChallengeSource().take(rc, 0);
+		boolean ret = felica.writeBlock(FelicaLite.RC, rc);
+		if(ret == false) {
+			FelicaLog.v(TAG, "readWithMac : write rc fail");
+			return false;
+		}
+
+		//buf[0 - macBlocks*16-1]に指定ブロック(とID)、その後ろにMACが入る
+		int[] blkNo = new int[macBlocks + 1];
+		System.arraycopy(blockNo, 0, blkNo, 0, num);
+		if(macBlocks > num) {
+			blkNo[num] = FelicaLite.ID;
+		}
+		blkNo[macBlocks] = FelicaLite.MAC;
+		byte[] buf = felica.readBlock(blkNo);
+		if(buf == null) {
+			FelicaLog.v(TAG, "readWithMac : read fail");
+			return false;
+		}
+		byte[] id = new byte[FelicaLite.SIZE_BLOCK];
+		System.arraycopy(buf, idPos * FelicaLite.SIZE_BLOCK, id, 0, FelicaLite.SIZE_BLOCK);
+
+		//個別化カード鍵の計算→ck
+		byte[] ck = new byte[16];
+		if(!personalCardKey(ck, masterKey, id, cache)) {
+			FelicaLog.v(TAG, "readWithMac: personal key fail");
+			return false;
+		}
+
+		//MACの確認(MACより前の全ブロック)
+		if(!verifyMac(ck, rc, buf, macBlocks)) {
+			FelicaLog.v(TAG, "readWithMac: mac not match fail");
+			return false;
+		}
+
+		System.arraycopy(buf, 0, out, outOffset, num * FelicaLite.SIZE_BLOCK);
+		return true;
 	}
 
 
@@ -358,13 +670,12 @@ public final class FelicaLiteIssuance {
 	 * @return		true	書き込み成功
 	 * @throws IOException 
 	 */
-	private static boolean writeKeyVersion(short keyVersion) throws IOException {
+	private static boolean writeKeyVersion(FelicaLite felica, short keyVersion) throws IOException {
 		byte[] buf = new byte[FelicaLite.SIZE_BLOCK];
-		buf[0] = (byte)((keyVersion & 0xff00) >> 8);
-		buf[1] = (byte)(keyVersion & 0xff);
-		boolean ret = writeWithCheck(buf, FelicaLite.CKV);
+		makeKeyVersion(buf, keyVersion);
+		boolean ret = writeWithCheck(felica, buf, FelicaLite.CKV);
 		if(ret == false) {
-			Log.v(TAG, "writeKeyVersion : write fail");
+			FelicaLog.v(TAG, "writeKeyVersion : write fail");
 			return false;
 		}
 
@@ -372,6 +683,119 @@ public final class FelicaLiteIssuance {
 	}
 	
 	
+	/**
+	 * 鍵バージョンブロックの作成<br>
+	 *
+	 * @param buf			[out]CKVブロック(0クリア済みであること)
+	 * @param keyVersion	[in]鍵バージョン
+	 */
+	private static void makeKeyVersion(byte[] buf, short keyVersion) {
+		sViews.get().mKeyVersion.wrap(buf, 0).setKeyVersion(keyVersion);
+	}
+
+
+	/**
+	 * 1ブロック比較
+	 *
+	 * @param blk		[in]比較するブロック(16byte)
+	 * @param buf		[in]比較対象のバッファ
+	 * @param offset	[in]比較対象の位置
+	 * @return	true	一致
+	 */
+	private static boolean equalsBlock(byte[] blk, byte[] buf, int offset) {
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			if(blk[i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * MAC(8byte)比較
+	 *
+	 * @param mac		[in]計算したMAC(8byte)
+	 * @param buf		[in]カードから読んだMACを含むバッファ
+	 * @param offset	[in]MACの位置
+	 * @return	true	一致
+	 */
+	private static boolean equals8(byte[] mac, byte[] buf, int offset) {
+		for(int i=0; i<8; i++) {
+			if(mac[i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * 個別化カード鍵の取得<br>
+	 * <br>
+	 * cacheにあればそれを使い、無ければ計算してcacheに入れる。<br>
+	 *
+	 * @param ck			[out]個別化カード鍵(16byte)
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param id			[in]IDブロック(16byte)
+	 * @param cache		[in]個別化カード鍵のキャッシュ。不要ならnull。
+	 * @return		true	取得成功
+	 */
+	static boolean personalCardKey(byte[] ck, byte[] masterKey, byte[] id, CardKeyCache cache) {
+		if((cache != null) && cache.get(ck, masterKey, id)) {
+			return true;
+		}
+		if(!calcPersonalCardKey(ck, masterKey, id)) {
+			return false;
+		}
+		if(cache != null) {
+			cache.put(masterKey, id, ck);
+		}
+		return true;
+	}
+
+
+	/**
+	 * 読み込んだMACの確認(カード鍵)<br>
+	 * <br>
+	 * RCとカード鍵からSKを計算し、{@link #verifyMac(byte[], byte[], byte[], byte[], int)}で確かめる。<br>
+	 *
+	 * @param ck		[in]カード鍵(16byte)
+	 * @param rc		[in]書き込んだRC(16byte)
+	 * @param buf		[in]読み込んだブロック。先頭からblocks個のブロック、その後ろにMACブロック。
+	 * @param blocks	[in]MACより前のブロック数
+	 * @return		true	MAC一致
+	 */
+	private static boolean verifyMac(byte[] ck, byte[] rc, byte[] buf, int blocks) {
+		byte[] sk = new byte[16];
+		if(!calcSessionKey(sk, ck, rc)) {
+			return false;
+		}
+		return verifyMac(new byte[8], sk, rc, buf, blocks);
+	}
+
+
+	/**
+	 * 読み込んだMACの確認(セッション鍵)<br>
+	 * <br>
+	 * 同じフレームでMACより前に読んだブロックからMACを計算し、読み込んだMACと比較する。<br>
+	 *
+	 * @param mac		[out]作業用(8byte)。計算したMACが入る。
+	 * @param sk		[in]セッション鍵(16byte)
+	 * @param rc		[in]書き込んだRC(16byte)
+	 * @param buf		[in]読み込んだブロック。先頭からblocks個のブロック、その後ろにMACブロック。
+	 * @param blocks	[in]MACより前のブロック数
+	 * @return		true	MAC一致
+	 */
+	static boolean verifyMac(byte[] mac, byte[] sk, byte[] rc, byte[] buf, int blocks) {
+		if(!calcMacWithSessionKey(mac, sk, rc, buf, 0, blocks)) {
+			FelicaLog.v(TAG, "verifyMac : mac calc fail");
+			return false;
+		}
+		return equals8(mac, buf, blocks * FelicaLite.SIZE_BLOCK);
+	}
+
+
 	/**
 	 * チェック付きブロック書き込み(16byte)<br>
 	 *
@@ -380,24 +804,14 @@ public final class FelicaLiteIssuance {
 	 * @return	true	チェックOK
 	 * @throws IOException 
 	 */
-	private static boolean writeWithCheck(byte[] buf, int blk) throws IOException {
-		boolean ret = FelicaLite.writeBlock(blk, buf);
+	private static boolean writeWithCheck(FelicaLite felica, byte[] buf, int blk) throws IOException {
+		FelicaLiteWriteBatch batch = new FelicaLiteWriteBatch(felica);
+		batch.add(blk, buf);
+		boolean ret = batch.execute();
 		if(ret == false) {
-			Log.v(TAG, "checkWrite : write fail");
-			return false;
-		}
-
-		byte[] bufChk = FelicaLite.readBlock(blk);
-		if(bufChk == null) {
-			Log.v(TAG, "checkWrite : read fail");
+			FelicaLog.v(TAG, "checkWrite : status " + batch.getStatus(0));
 			return false;
 		}
-		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
-			if(buf[i] != bufChk[i]) {
-				Log.v(TAG, "checkWrite : bad read result");
-				return false;
-			}
-		}
 
 		return true;
 	}
@@ -414,10 +828,60 @@ public final class FelicaLiteIssuance {
 	 * @param rc	[in]ランダムチャレンジブロック(16byte)
 	 * @return		true	MAC計算成功
 	 */
-	private static boolean calcMac(byte[] mac, byte[] ck, byte[] id, byte[] rc) {
+	static boolean calcMac(byte[] mac, byte[] ck, byte[] id, byte[] rc) {
+		return calcMac(mac, ck, id, 0, 1, rc);
+	}
+
+
+	/**
+	 * nブロックに対するMAC計算<br>
+	 * <br>
+	 * 同じフレームでMACより前に読んだブロックを、先頭から8byteずつCBCでつなげる。<br>
+	 * 8byteごとにエンディアンをひっくり返す<br>
+	 *
+	 * @param mac		[out]MAC計算結果(先頭から8byte書く)。エラーになっても書き換える可能性あり。
+	 * @param ck		[in]カード鍵(16byte)
+	 * @param data		[in]ブロックデータ
+	 * @param offset	[in]dataの使用開始位置
+	 * @param blocks	[in]ブロック数
+	 * @param rc		[in]ランダムチャレンジブロック(16byte)
+	 * @return		true	MAC計算成功
+	 */
+	static boolean calcMac(byte[] mac, byte[] ck, byte[] data, int offset, int blocks, byte[] rc) {
+		long start = System.nanoTime();
+		boolean ret = doCalcMac(mac, ck, data, offset, blocks, rc);
+		FelicaLiteStats.get().record(FelicaLiteStats.Op.MAC, System.nanoTime() - start);
+		return ret;
+	}
+
+	private static boolean doCalcMac(byte[] mac, byte[] ck, byte[] data, int offset, int blocks, byte[] rc) {
 		byte[] sk = new byte[16];
-		IvParameterSpec ips = null;
+		if(!doCalcSessionKey(sk, ck, rc)) {
+			return false;
+		}
+		return doCalcMacWithSessionKey(mac, sk, rc, data, offset, blocks);
+	}
+
 
+	/**
+	 * セッション鍵SKの計算<br>
+	 * <br>
+	 * RCをCKで3DES(CBC)したもの。同じRCに対するMACは、SKを使い回して
+	 * {@link #calcMacWithSessionKey}で計算できる。<br>
+	 *
+	 * @param sk		[out]セッション鍵(16byte)。エンディアンはひっくり返したまま。
+	 * @param ck		[in]カード鍵(16byte)
+	 * @param rc		[in]ランダムチャレンジブロック(16byte)
+	 * @return		true	計算成功
+	 */
+	static boolean calcSessionKey(byte[] sk, byte[] ck, byte[] rc) {
+		long start = System.nanoTime();
+		boolean ret = doCalcSessionKey(sk, ck, rc);
+		FelicaLiteStats.get().record(FelicaLiteStats.Op.SESSION_KEY, System.nanoTime() - start);
+		return ret;
+	}
+
+	private static boolean doCalcSessionKey(byte[] sk, byte[] ck, byte[] rc) {
 		// 秘密鍵を準備([0-7]CK1, [8-15]CK2, [16-23]CK1
 		byte[] key = new byte[24];
 		for(int i=0; i<8; i++) {
@@ -427,53 +891,74 @@ public final class FelicaLiteIssuance {
 
 		byte[] rc1 = new byte[8];
 		byte[] rc2 = new byte[8];
-		byte[] id1 = new byte[8];
-		byte[] id2 = new byte[8];
 		for(int i=0; i<8; i++) {
 			rc1[i] = rc[7-i];
 			rc2[i] = rc[15-i];
-			id1[i] = id[7-i];
-			id2[i] = id[15-i];
 		}
 
 		// RC[1]==(CK)==>SK[1]
-		ips = new IvParameterSpec(new byte[8]);		//zero
-		int ret = enc83(sk, 0, key, rc1, 0, ips);		//RC1-->SK1
+		int ret = enc83(DES_CK, sk, 0, key, rc1, 0, null, 0);		//RC1-->SK1
 		if(ret != 8) {
-			Log.e(TAG, "calcMac: proc1");
+			FelicaLog.e(TAG, "calcMac: proc1");
 			return false;
 		}
 
 		// SK[1] =(iv)> RC[2] =(CK)=> SK[2]
-		ips = new IvParameterSpec(sk, 0, 8);	//SK1
-		ret = enc83(sk, 8, key, rc2, 0, ips);	//RC2-->SK2
+		ret = enc83(DES_CK, sk, 8, key, rc2, 0, sk, 0);	//RC2-->SK2 (iv:SK1)
 		if(ret != 8) {
-			Log.e(TAG, "calcMac: proc2");
+			FelicaLog.e(TAG, "calcMac: proc2");
 			return false;
 		}
+		return true;
+	}
+
 
-		/////////////////////////////////////////////////////////
+	/**
+	 * セッション鍵からのMAC計算<br>
+	 *
+	 * @param mac		[out]MAC計算結果(先頭から8byte書く)。エラーになっても書き換える可能性あり。
+	 * @param sk		[in]{@link #calcSessionKey}で計算したセッション鍵(16byte)
+	 * @param rc		[in]skの計算に使ったランダムチャレンジブロック(16byte)
+	 * @param data		[in]ブロックデータ
+	 * @param offset	[in]dataの使用開始位置
+	 * @param blocks	[in]ブロック数
+	 * @return		true	MAC計算成功
+	 */
+	static boolean calcMacWithSessionKey(byte[] mac, byte[] sk, byte[] rc, byte[] data, int offset, int blocks) {
+		long start = System.nanoTime();
+		boolean ret = doCalcMacWithSessionKey(mac, sk, rc, data, offset, blocks);
+		FelicaLiteStats.get().record(FelicaLiteStats.Op.MAC, System.nanoTime() - start);
+		return ret;
+	}
 
+	private static boolean doCalcMacWithSessionKey(byte[] mac, byte[] sk, byte[] rc, byte[] data, int offset, int blocks) {
 		//SKは既にエンディアンがひっくり返っている(はず)
+		byte[] key = new byte[24];
 		for(int i=0; i<8; i++) {
 			key[i] = key[16+i] = sk[i];
 			key[8+i] = sk[8+i];
 		}
 
-		// RC[1] =(iv)=> ID[1] =(SK)=> tmp
-		ips = new IvParameterSpec(rc1, 0, 8);	//RC1
-		ret = enc83(mac, 0, key, id1, 0, ips);	//ID1-->tmp
-		if(ret != 8) {
-			Log.e(TAG, "calcMac: proc3");
-			return false;
+		byte[] rc1 = new byte[8];
+		for(int i=0; i<8; i++) {
+			rc1[i] = rc[7-i];
 		}
 
-		// tmp =(iv)=> ID[2] =(SK)=> tmp
-		ips = new IvParameterSpec(mac);			//tmp
-		ret = enc83(mac, 0, key, id2, 0, ips);	//ID1-->tmp
-		if(ret != 8) {
-			Log.e(TAG, "calcMac: proc4");
-			return false;
+		// RC[1] =(iv)=> D[1] =(SK)=> tmp
+		// tmp =(iv)=> D[2] =(SK)=> tmp ...
+		byte[] half = new byte[8];
+		byte[] iv = rc1;
+		for(int h=0; h<blocks * 2; h++) {
+			int pos = offset + h * 8;
+			for(int i=0; i<8; i++) {
+				half[i] = data[pos+7-i];
+			}
+			int ret = enc83(DES_SK, mac, 0, key, half, 0, iv, 0);		//D[h]-->tmp
+			if(ret != 8) {
+				FelicaLog.e(TAG, "calcMac: proc3");
+				return false;
+			}
+			iv = mac;
 		}
 
 		for(int i=0; i<4; i++) {
@@ -494,15 +979,20 @@ public final class FelicaLiteIssuance {
 	 * @param id			[in]IDブロックM(16byte)
 	 * @return		true	作成成功
 	 */
-	static private boolean calcPersonalCardKey(byte[] personalKey, byte[] masterKey, byte[] id) {
-		IvParameterSpec ips = new IvParameterSpec(new byte[8]);
+	static boolean calcPersonalCardKey(byte[] personalKey, byte[] masterKey, byte[] id) {
+		long start = System.nanoTime();
+		boolean ret = doCalcPersonalCardKey(personalKey, masterKey, id);
+		FelicaLiteStats.get().record(FelicaLiteStats.Op.KEY_DIVERSIFICATION, System.nanoTime() - start);
+		return ret;
+	}
 
+	private static boolean doCalcPersonalCardKey(byte[] personalKey, byte[] masterKey, byte[] id) {
 		//2. 8byte分の0x00を平文、Kを鍵として3DES→結果L
 		byte[] enc1 = new byte[8];		//L
 		byte[] text = new byte[8];
-		int ret = enc83(enc1, 0, masterKey, text, 0, ips);
+		int ret = enc83(DES_MASTER, enc1, 0, masterKey, text, 0, null, 0);
 		if(ret != 8) {
-			Log.e(TAG, "calcPersonalCardKey: proc1");
+			FelicaLog.e(TAG, "calcPersonalCardKey: proc1");
 			return false;
 		}
 
@@ -540,18 +1030,17 @@ public final class FelicaLiteIssuance {
 
 		//6. M1を平文、Kを鍵として3DES→結果C1
 		byte[] c1 = new byte[8];
-		ret = enc83(c1, 0, masterKey, id1, 0, ips);	//c1
+		ret = enc83(DES_MASTER, c1, 0, masterKey, id1, 0, null, 0);	//c1
 		if(ret != 8) {
-			Log.e(TAG, "calcPersonalCardKey: proc2");
+			FelicaLog.e(TAG, "calcPersonalCardKey: proc2");
 			return false;
 		}
 
 		//7. (C1 xor M2)を平文、Kを鍵として3DES→結果T
-		ips = new IvParameterSpec(c1);
 		byte[] t = new byte[8];
-		ret = enc83(t, 0, masterKey, id2, 0, ips);	//t
+		ret = enc83(DES_MASTER, t, 0, masterKey, id2, 0, c1, 0);	//t
 		if(ret != 8) {
-			Log.e(TAG, "calcPersonalCardKey: proc3");
+			FelicaLog.e(TAG, "calcPersonalCardKey: proc3");
 			return false;
 		}
 
@@ -559,18 +1048,16 @@ public final class FelicaLiteIssuance {
 		id1[0] ^= 0x80;		//M1'
 		
 		//9. M1'を平文、Kを鍵として3DES→結果C1'
-		ips = new IvParameterSpec(new byte[8]);
-		ret = enc83(c1, 0, masterKey, id1, 0, ips);	//c1'
+		ret = enc83(DES_MASTER, c1, 0, masterKey, id1, 0, null, 0);	//c1'
 		if(ret != 8) {
-			Log.e(TAG, "calcPersonalCardKey: proc4");
+			FelicaLog.e(TAG, "calcPersonalCardKey: proc4");
 			return false;
 		}
 
 		//10. (C1' xor M2)を平文、Kを鍵として3DES→結果T'
-		ips = new IvParameterSpec(c1);	//c1'
-		ret = enc83(c1, 0, masterKey, id2, 0, ips);	//t'
+		ret = enc83(DES_MASTER, c1, 0, masterKey, id2, 0, c1, 0);	//t' (iv:c1')
 		if(ret != 8) {
-			Log.e(TAG, "calcPersonalCardKey: proc5");
+			FelicaLog.e(TAG, "calcPersonalCardKey: proc5");
 			return false;
 		}
 
@@ -589,32 +1076,52 @@ public final class FelicaLiteIssuance {
 	 * <br>
 	 * CBC(Cipher Block Chaining)を使うため、初期ベクタが必要。<br>
 	 * というよりも、「AとBとの排他的論理和を平文とし」の処理を自動でやってくれるのでCBCにした。<br>
-	 * すなわち「(inBuf xor ips)を平文とし、keyを鍵としてトリプルDES暗号化」する。<br>
+	 * すなわち「(inBuf xor iv)を平文とし、keyを鍵としてトリプルDES暗号化」する。<br>
+	 * <br>
+	 * TripleDesはスレッド・用途ごとにキャッシュしているので、Cipherの取得は最初の1回だけ。
+	 * 同じ鍵を使う間は鍵の設定も行わない(鍵は{@link #clearKeys()}で消す)。<br>
 	 *
+	 * @param use			[in]用途(DES_MASTER, DES_CK, DES_SK)
 	 * @param outBuf		[out]暗号化出力バッファ(8byte以上)
 	 * @param outOffset	[in]暗号化出力バッファへの書き込み開始位置(ここから8byte書く)
 	 * @param key			[in]秘密鍵(24byte [0-7]KEY1, [8-15]KEY2, [16-23]KEY3)
 	 * @param inBuf		[in]平文バッファ(8byte以上)
 	 * @param inOffset		[in]平文バッファの読み込み開始位置(ここから8byte読む)
-	 * @param ips			[in]初期ベクタ(8byte)
-	 * @return		true	暗号化成功
+	 * @param iv			[in]初期ベクタ(8byte)。nullの場合は0。
+	 * @param ivOffset		[in]初期ベクタの読み込み開始位置
+	 * @return		暗号化したサイズ(8) / エラー時は0
 	 */
-	private static int enc83(byte[] outBuf, int outOffset, byte[] key, byte[] inBuf, int inOffset, IvParameterSpec ips) {
+	private static int enc83(int use, byte[] outBuf, int outOffset, byte[] key, byte[] inBuf, int inOffset, byte[] iv, int ivOffset) {
 		int sz = 0;
 		try {
-			// 秘密鍵を準備
-			SecretKeyFactory skf = SecretKeyFactory.getInstance("DESede");	//3DES
-			SecretKey sk = skf.generateSecret(new DESedeKeySpec(key));
-
-			// 暗号
-			Cipher ci = Cipher.getInstance("DESede/CBC/NoPadding");		//3DES / Cipher Block Chaining / パディング無し
-			ci.init(Cipher.ENCRYPT_MODE, sk, ips);
-			sz = ci.doFinal(inBuf, inOffset, 8, outBuf, outOffset);
+			TripleDes[] des = sDes.get();
+			if(des[use] == null) {
+				des[use] = new TripleDes();
+			}
+			des[use].setKey(key);
+			sz = des[use].enc83(outBuf, outOffset, inBuf, inOffset, iv, ivOffset);
 
 		} catch (Exception e) {
-			Log.e(TAG, "enc83 exception");
+			FelicaLog.e(TAG, "enc83 exception");
 		}
 
 		return sz;
 	}
+
+
+	/**
+	 * 鍵の破棄<br>
+	 * <br>
+	 * calcMac()などは、同じ鍵で続けて呼んだときに速くなるよう鍵スケジュールを残している。
+	 * 鍵を使い終わったら、計算したスレッドで呼んでおくこと。<br>
+	 * 呼んだスレッドのTripleDesが持つ鍵だけを消す。<br>
+	 */
+	public static void clearKeys() {
+		TripleDes[] des = sDes.get();
+		for(int i=0; i<des.length; i++) {
+			if(des[i] != null) {
+				des[i].clear();
+			}
+		}
+	}
 }
@@ -0,0 +1,174 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @class	FelicaLiteScheduler
+ * @brief	複数セッションでのカード処理の並列実行
+ *
+ * 発行や認証などのカード処理({@link Task})を、セッション({@link FelicaLite})を指定して登録する。<br>
+ * - 同じセッションの処理は、登録した順に1つずつ実行する<br>
+ * - 違うセッションの処理は、最大parallelism個まで同時に実行する<br>
+ * <br>
+ * {@link FelicaLite#connect(FelicaTransceiver, byte[])}でエミュレータなどを使えば、
+ * 実機なしで複数カードの処理を確認できる。<br>
+ */
+public class FelicaLiteScheduler {
+
+	/**
+	 * 1セッションに対するカード処理
+	 *
+	 * @param <T>	処理結果の型
+	 */
+	public interface Task<T> {
+		/**
+		 * @param felica	[in]処理対象のセッション
+		 * @return			処理結果
+		 * @throws IOException
+		 */
+		T run(FelicaLite felica) throws IOException;
+	}
+
+
+	private final ExecutorService mPool;
+	private final Map<FelicaLite, SessionQueue> mQueues = new HashMap<FelicaLite, SessionQueue>();
+
+
+	/**
+	 * @param parallelism	[in]同時に実行するセッション数の上限
+	 */
+	public FelicaLiteScheduler(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("parallelism");
+		}
+		mPool = Executors.newFixedThreadPool(parallelism);
+	}
+
+
+	/**
+	 * カード処理の登録
+	 *
+	 * @param felica	[in]処理対象のセッション
+	 * @param task		[in]カード処理
+	 * @return			処理結果。IOExceptionはExecutionExceptionになる。
+	 * @throws RejectedExecutionException	shutdown済み
+	 */
+	public <T> Future<T> submit(final FelicaLite felica, final Task<T> task) {
+		FutureTask<T> ft = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws IOException {
+				return task.run(felica);
+			}
+		});
+
+		synchronized(mQueues) {
+			if(mPool.isShutdown()) {
+				throw new RejectedExecutionException("FelicaLiteScheduler : shutdown");
+			}
+			SessionQueue q = mQueues.get(felica);
+			if(q == null) {
+				q = new SessionQueue(felica);
+				mQueues.put(felica, q);
+			}
+			q.mTasks.add(ft);
+			if(!q.mRunning) {
+				q.mRunning = true;
+				mPool.execute(q);
+			}
+		}
+		return ft;
+	}
+
+
+	/**
+	 * 登録済みの処理を実行した後、終了する
+	 */
+	public void shutdown() {
+		mPool.shutdown();
+	}
+
+
+	/**
+	 * 実行中の処理を中断して終了する<br>
+	 * <br>
+	 * 未実行の処理はキャンセルする。<br>
+	 */
+	public void shutdownNow() {
+		synchronized(mQueues) {
+			for(SessionQueue q : mQueues.values()) {
+				for(FutureTask<?> ft : q.mTasks) {
+					ft.cancel(false);
+				}
+				q.mTasks.clear();
+			}
+		}
+		mPool.shutdownNow();
+	}
+
+
+	/**
+	 * {@link #shutdown()}後、終了を待つ
+	 *
+	 * @param timeout	[in]待ち時間
+	 * @param unit		[in]timeoutの単位
+	 * @return		true	終了した
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return mPool.awaitTermination(timeout, unit);
+	}
+
+
+	/**
+	 * 1セッション分の処理待ち行列<br>
+	 * <br>
+	 * プールでは1回に1つだけ処理を実行し、残りがあれば再度プールに入れる。<br>
+	 * そのため、同じセッションの処理が他のセッションを待たせ続けることはない。<br>
+	 */
+	private class SessionQueue implements Runnable {
+		private final FelicaLite mFelica;
+		private final LinkedList<FutureTask<?>> mTasks = new LinkedList<FutureTask<?>>();
+		private boolean mRunning;
+
+		SessionQueue(FelicaLite felica) {
+			mFelica = felica;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				FutureTask<?> ft;
+				synchronized(mQueues) {
+					ft = mTasks.poll();
+				}
+				if(ft != null) {
+					ft.run();
+				}
+				synchronized(mQueues) {
+					if(mTasks.isEmpty()) {
+						mRunning = false;
+						mQueues.remove(mFelica);
+						return;
+					}
+					try {
+						mPool.execute(this);
+						return;
+					} catch(RejectedExecutionException e) {
+						//shutdown後は再度プールに入れられないので、このスレッドで続ける
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	FelicaLiteShadow
+ * @brief	1セッション分のブロック内容のキャッシュ
+ *
+ * {@link FelicaLite#setShadowEnabled(boolean)}で有効にすると、
+ * 読み込み・書き込みしたブロックの内容を覚えておき、<br>
+ * - 同じブロックの読み込みはカードにアクセスせずに返す<br>
+ * - 同じ内容の書き込みはカードにアクセスせずに成功とする<br>
+ * <br>
+ * 次のブロックはキャッシュしない。<br>
+ * - RC : 書込専用。書くたびにMACが変わる。<br>
+ * - MAC : RCと同時に読んだブロックから計算されるので、毎回カードから読む。<br>
+ * - CK : 書込専用<br>
+ * - REG : 書き込み値がそのままブロックの値にならない<br>
+ * <br>
+ * 書き込み後の読み戻しもキャッシュから返すため、
+ * シャドウ有効時は書き込みのステータスフラグを信用することになる。
+ * ({@link FelicaLiteWriteBatch}の確認は、キャッシュを無効にしてカードから読む)<br>
+ */
+public class FelicaLiteShadow {
+	private static final int USER_BLOCKS = FelicaLite.REG + 1;			//PAD0～REG
+	private static final int SYSTEM_BLOCKS = FelicaLite.MC - FelicaLite.RC + 1;	//RC～MC
+	private static final int NUM = USER_BLOCKS + SYSTEM_BLOCKS;
+
+	private final byte[] mImage = new byte[NUM * FelicaLite.SIZE_BLOCK];
+	private final boolean[] mValid = new boolean[NUM];
+	private int mReadHit;
+	private int mWriteSkip;
+
+
+	/**
+	 * キャッシュ対象のブロックかどうか
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @return		true	キャッシュ対象
+	 */
+	public static boolean isCacheable(int blockNo) {
+		switch(blockNo) {
+		case FelicaLite.REG:
+		case FelicaLite.RC:
+		case FelicaLite.MAC:
+		case FelicaLite.CK:
+			return false;
+		default:
+			return index(blockNo) >= 0;
+		}
+	}
+
+
+	/**
+	 * キャッシュからの読み込み
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @param out			[out]ブロックデータ
+	 * @param outOffset	[in]outへの書き込み開始位置
+	 * @return		true	キャッシュにあった
+	 */
+	public boolean get(int blockNo, byte[] out, int outOffset) {
+		int idx = index(blockNo);
+		if((idx < 0) || !mValid[idx]) {
+			return false;
+		}
+		System.arraycopy(mImage, idx * FelicaLite.SIZE_BLOCK, out, outOffset, FelicaLite.SIZE_BLOCK);
+		mReadHit++;
+		return true;
+	}
+
+
+	/**
+	 * キャッシュ済みかどうか
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @return		true	キャッシュ済み
+	 */
+	public boolean contains(int blockNo) {
+		int idx = index(blockNo);
+		return (idx >= 0) && mValid[idx];
+	}
+
+
+	/**
+	 * カードから読み込んだ、またはカードに書き込んだ内容の登録<br>
+	 * <br>
+	 * キャッシュ対象外のブロックは無視する。<br>
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @param data			[in]ブロックデータ
+	 * @param offset		[in]dataの読み込み開始位置
+	 */
+	public void put(int blockNo, byte[] data, int offset) {
+		if(!isCacheable(blockNo)) {
+			return;
+		}
+		int idx = index(blockNo);
+		System.arraycopy(data, offset, mImage, idx * FelicaLite.SIZE_BLOCK, FelicaLite.SIZE_BLOCK);
+		mValid[idx] = true;
+	}
+
+
+	/**
+	 * 書き込みを省略できるかどうか<br>
+	 * <br>
+	 * trueを返した場合、書き込みを省略した回数としてカウントする。<br>
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 * @param data			[in]書き込みデータ
+	 * @param offset		[in]dataの読み込み開始位置
+	 * @return		true	キャッシュと同じ内容
+	 */
+	public boolean skipWrite(int blockNo, byte[] data, int offset) {
+		if(!isCacheable(blockNo)) {
+			return false;
+		}
+		int idx = index(blockNo);
+		if(!mValid[idx]) {
+			return false;
+		}
+		int base = idx * FelicaLite.SIZE_BLOCK;
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			if(mImage[base + i] != data[offset + i]) {
+				return false;
+			}
+		}
+		mWriteSkip++;
+		return true;
+	}
+
+
+	/**
+	 * ブロックのキャッシュを無効にする
+	 *
+	 * @param blockNo		[in]ブロック番号
+	 */
+	public void invalidate(int blockNo) {
+		int idx = index(blockNo);
+		if(idx >= 0) {
+			mValid[idx] = false;
+		}
+	}
+
+
+	/**
+	 * 全ブロックのキャッシュを無効にする
+	 */
+	public void clear() {
+		for(int i=0; i<NUM; i++) {
+			mValid[i] = false;
+		}
+	}
+
+
+	/** キャッシュから返した読み込みブロック数 */
+	public int getReadHitCount() {
+		return mReadHit;
+	}
+
+	/** 省略した書き込み回数 */
+	public int getWriteSkipCount() {
+		return mWriteSkip;
+	}
+
+
+	private static int index(int blockNo) {
+		if((0 <= blockNo) && (blockNo < USER_BLOCKS)) {
+			return blockNo;
+		}
+		if((FelicaLite.RC <= blockNo) && (blockNo <= FelicaLite.MC)) {
+			return USER_BLOCKS + blockNo - FelicaLite.RC;
+		}
+		return -1;
+	}
+}
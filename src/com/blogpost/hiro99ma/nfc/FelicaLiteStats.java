@@ -0,0 +1,284 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * @class	FelicaLiteStats
+ * @brief	コマンド・暗号処理ごとの処理時間ヒストグラムと失敗理由カウンタ
+ *
+ * {@link FelicaLite}と{@link FelicaLiteIssuance}が自動で記録する。<br>
+ * 記録はAtomicLongの加算だけなので、常時有効のまま使える。<br>
+ * <br>
+ * ヒストグラムは2のべき乗ごとに4分割したバケット(誤差25%以内)。<br>
+ * 値は{@link #snapshot()}で取り出す。<br>
+ */
+public final class FelicaLiteStats {
+
+	/** 計測対象 */
+	public enum Op {
+		POLLING,				///!< Polling
+		READ_SINGLE,			///!< 1ブロック読み込み
+		READ_MULTI,			///!< 複数ブロック読み込み
+		WRITE,					///!< 1ブロック書込み
+		KEY_DIVERSIFICATION,	///!< 個別化カード鍵の計算
+		MAC,					///!< MACの計算
+		SESSION_KEY,			///!< セッション鍵の計算(MacSessionでの単独計算)
+	}
+
+	/** 失敗理由 */
+	public enum Failure {
+		LENGTH,			///!< レスポンス長不正
+		NFCID,				///!< IDm不一致
+		STATUS,			///!< レスポンスコード・ステータスフラグ不正
+		IO,				///!< IOException
+	}
+
+
+	/**
+	 * ある時点の値
+	 */
+	public static final class Snapshot {
+		private final long[][] mBuckets;
+		private final long[] mCount;
+		private final long[] mTotal;
+		private final long[] mMax;
+		private final long[] mFailures;
+
+		Snapshot(long[][] buckets, long[] count, long[] total, long[] max, long[] failures) {
+			mBuckets = buckets;
+			mCount = count;
+			mTotal = total;
+			mMax = max;
+			mFailures = failures;
+		}
+
+		/** 回数 */
+		public long getCount(Op op) {
+			return mCount[op.ordinal()];
+		}
+
+		/** 平均時間(ns) */
+		public long getMeanNanos(Op op) {
+			long n = mCount[op.ordinal()];
+			return (n > 0) ? mTotal[op.ordinal()] / n : 0;
+		}
+
+		/** 最大時間(ns) */
+		public long getMaxNanos(Op op) {
+			return mMax[op.ordinal()];
+		}
+
+		/**
+		 * パーセンタイル(バケットの上限値)
+		 *
+		 * @param op			[in]計測対象
+		 * @param percentile	[in]パーセンタイル(0～100)
+		 * @return				時間(ns)
+		 */
+		public long getPercentileNanos(Op op, double percentile) {
+			long[] b = mBuckets[op.ordinal()];
+			long n = 0;
+			for(int i=0; i<b.length; i++) {
+				n += b[i];
+			}
+			if(n == 0) {
+				return 0;
+			}
+			long target = (long)Math.ceil(n * percentile / 100.0);
+			if(target < 1) {
+				target = 1;
+			}
+			long sum = 0;
+			for(int i=0; i<b.length; i++) {
+				sum += b[i];
+				if(sum >= target) {
+					return Math.min(upperBound(i), mMax[op.ordinal()]);
+				}
+			}
+			return mMax[op.ordinal()];
+		}
+
+		/** 失敗回数 */
+		public long getFailures(Failure f) {
+			return mFailures[f.ordinal()];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(Op op : Op.values()) {
+				if(getCount(op) == 0) {
+					continue;
+				}
+				sb.append(String.format("%s n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus\n",
+						op, getCount(op), getMeanNanos(op) / 1000,
+						getPercentileNanos(op, 50) / 1000, getPercentileNanos(op, 90) / 1000,
+						getPercentileNanos(op, 99) / 1000, getMaxNanos(op) / 1000));
+			}
+			sb.append("failures");
+			for(Failure f : Failure.values()) {
+				sb.append(' ').append(f).append('=').append(getFailures(f));
+			}
+			return sb.toString();
+		}
+	}
+
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+	private static final FelicaLiteStats sInstance = new FelicaLiteStats();
+	private static volatile boolean sEnabled = true;
+
+	private final AtomicLongArray[] mBuckets = new AtomicLongArray[Op.values().length];
+	private final AtomicLongArray mCount = new AtomicLongArray(Op.values().length);
+	private final AtomicLongArray mTotal = new AtomicLongArray(Op.values().length);
+	private final AtomicLongArray mMax = new AtomicLongArray(Op.values().length);
+	private final AtomicLongArray mFailures = new AtomicLongArray(Failure.values().length);
+
+
+	private FelicaLiteStats() {
+		for(int i=0; i<mBuckets.length; i++) {
+			mBuckets[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+
+	/**
+	 * @return		プロセス全体の統計
+	 */
+	public static FelicaLiteStats get() {
+		return sInstance;
+	}
+
+
+	/**
+	 * 記録するかどうか
+	 *
+	 * @param enable	[in]true:記録する(デフォルト) / false:記録しない
+	 */
+	public static void setEnabled(boolean enable) {
+		sEnabled = enable;
+	}
+
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+
+	/**
+	 * 処理時間の記録
+	 *
+	 * @param op		[in]計測対象
+	 * @param nanos	[in]処理時間(ns)
+	 */
+	public void record(Op op, long nanos) {
+		if(!sEnabled) {
+			return;
+		}
+		int i = op.ordinal();
+		mBuckets[i].incrementAndGet(bucket(nanos));
+		mCount.incrementAndGet(i);
+		mTotal.addAndGet(i, nanos);
+		long max;
+		while(nanos > (max = mMax.get(i))) {
+			if(mMax.compareAndSet(i, max, nanos)) {
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * 失敗の記録
+	 *
+	 * @param f		[in]失敗理由
+	 */
+	public void fail(Failure f) {
+		if(!sEnabled) {
+			return;
+		}
+		mFailures.incrementAndGet(f.ordinal());
+	}
+
+
+	/**
+	 * 現在の値の取得<br>
+	 * <br>
+	 * 記録中に呼んだ場合、項目間で多少ずれることがある。<br>
+	 *
+	 * @return		スナップショット
+	 */
+	public Snapshot snapshot() {
+		int ops = Op.values().length;
+		long[][] buckets = new long[ops][BUCKETS];
+		long[] count = new long[ops];
+		long[] total = new long[ops];
+		long[] max = new long[ops];
+		for(int i=0; i<ops; i++) {
+			for(int j=0; j<BUCKETS; j++) {
+				buckets[i][j] = mBuckets[i].get(j);
+			}
+			count[i] = mCount.get(i);
+			total[i] = mTotal.get(i);
+			max[i] = mMax.get(i);
+		}
+		long[] failures = new long[Failure.values().length];
+		for(int i=0; i<failures.length; i++) {
+			failures[i] = mFailures.get(i);
+		}
+		return new Snapshot(buckets, count, total, max, failures);
+	}
+
+
+	/**
+	 * 全項目を0に戻す
+	 */
+	public void reset() {
+		for(int i=0; i<mBuckets.length; i++) {
+			for(int j=0; j<BUCKETS; j++) {
+				mBuckets[i].set(j, 0);
+			}
+			mCount.set(i, 0);
+			mTotal.set(i, 0);
+			mMax.set(i, 0);
+		}
+		for(int i=0; i<mFailures.length(); i++) {
+			mFailures.set(i, 0);
+		}
+	}
+
+
+	/**
+	 * 値からバケット番号への変換<br>
+	 * <br>
+	 * 0～3はそのまま、それ以上は最上位ビットの位置と、その下の2bitで決める。<br>
+	 */
+	static int bucket(long v) {
+		if(v < SUB) {
+			return (v < 0) ? 0 : (int)v;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		return (msb - SUB_BITS + 1) * SUB + (int)((v >>> (msb - SUB_BITS)) & (SUB - 1));
+	}
+
+
+	/**
+	 * バケットの上限値
+	 */
+	static long upperBound(int idx) {
+		if(idx + 1 < SUB) {
+			return idx;
+		}
+		if(idx + 1 >= BUCKETS) {
+			return Long.MAX_VALUE;
+		}
+		int next = idx + 1;
+		int msb = next / SUB + SUB_BITS - 1;
+		long lower = ((long)(SUB + next % SUB)) << (msb - SUB_BITS);
+		return lower - 1;
+	}
+}
@@ -0,0 +1,232 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * @class	FelicaLiteWriteBatch
+ * @brief	確認付き書込みのまとめ
+ *
+ * 書込みを溜めておき、{@link #execute()}で全て書き込んだ後、
+ * 書き込んだブロックを4ブロックずつ1フレームで読み戻して確認する。<br>
+ * 書込み1回ごとに読み戻すのに比べ、n ブロックで n + ceil(n/4) フレームになる。<br>
+ * <br>
+ * - 読み戻せないブロック(RC, MAC, CK, REG)は書込みのステータスフラグだけで判断する。<br>
+ * - シャドウ有効時は、書込み成功でシャドウが更新されるため、読み戻しはシャドウから行い
+ *   フレームを使わない(書込みのステータスフラグだけで判断するのと同じ)。
+ *   カードから読み戻して確認したい場合は、シャドウを無効にしておくこと。<br>
+ * - 同じブロックを2回追加した場合は、後のデータで確認する。<br>
+ */
+public final class FelicaLiteWriteBatch {
+	private static final String TAG = "FelicaLiteWriteBatch";
+
+	// ブロックごとの結果
+	public static final int STATUS_OK = 0;					///!< 書込み・確認成功
+	public static final int STATUS_NOT_RUN = -1;			///!< 未実行
+	public static final int STATUS_WRITE_FAILED = -2;		///!< 書込み失敗
+	public static final int STATUS_MISMATCH = -3;			///!< 読み戻した内容が違う
+	public static final int STATUS_READ_FAILED = -4;		///!< 読み戻し失敗
+
+	private final FelicaLite mFelica;
+	private final List<Integer> mBlocks = new ArrayList<Integer>();
+	private final List<byte[]> mData = new ArrayList<byte[]>();
+	private int[] mStatus = new int[0];
+	private int mFrames;
+
+
+	/**
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 */
+	public FelicaLiteWriteBatch(FelicaLite felica) {
+		mFelica = felica;
+	}
+
+
+	/**
+	 * 書込みの追加(データはコピーする)
+	 *
+	 * @param blockNo		[in]書込対象のブロック番号
+	 * @param data			[in]書き込みデータ
+	 * @param offset		[in]dataの使用開始位置(ここから16byteを使用)
+	 * @return				this
+	 */
+	public FelicaLiteWriteBatch add(int blockNo, byte[] data, int offset) {
+		byte[] blk = new byte[FelicaLite.SIZE_BLOCK];
+		System.arraycopy(data, offset, blk, 0, FelicaLite.SIZE_BLOCK);
+		mBlocks.add(blockNo);
+		mData.add(blk);
+		return this;
+	}
+
+
+	/**
+	 * 書込みの追加(データはコピーする)
+	 *
+	 * @param blockNo		[in]書込対象のブロック番号
+	 * @param data			[in]書き込みデータ(先頭の16byteを使用)
+	 * @return				this
+	 */
+	public FelicaLiteWriteBatch add(int blockNo, byte[] data) {
+		return add(blockNo, data, 0);
+	}
+
+
+	/**
+	 * @return		追加した書込みの数
+	 */
+	public int size() {
+		return mBlocks.size();
+	}
+
+
+	/**
+	 * 書込みと確認<br>
+	 * <br>
+	 * 書込みに失敗したブロックがあっても、残りの書込みと確認は行う。<br>
+	 * 結果は{@link #getStatus(int)}, {@link #getFailedBlocks()}で取得する。<br>
+	 *
+	 * @return		true	全ブロック成功
+	 * @throws IOException
+	 */
+	public boolean execute() throws IOException {
+		int num = mBlocks.size();
+		mStatus = new int[num];
+		mFrames = 0;
+		int start = mFelica.getFrameCount();
+
+		//書込み
+		boolean[] verify = new boolean[num];
+		int verifyNum = 0;
+		for(int i=0; i<num; i++) {
+			int blk = mBlocks.get(i);
+			if(!mFelica.writeBlock(blk, mData.get(i))) {
+				FelicaLog.v(TAG, "execute : write fail " + blk);
+				mStatus[i] = STATUS_WRITE_FAILED;
+				continue;
+			}
+			mStatus[i] = STATUS_OK;
+			if(isVerifiable(blk) && (lastIndexOf(blk) == i)) {
+				verify[i] = true;
+				verifyNum++;
+			}
+		}
+
+		//読み戻し
+		if(verifyNum > 0) {
+			int[] blockNo = new int[verifyNum];
+			int[] index = new int[verifyNum];
+			int n = 0;
+			for(int i=0; i<num; i++) {
+				if(verify[i]) {
+					blockNo[n] = mBlocks.get(i);
+					index[n] = i;
+					n++;
+				}
+			}
+			FelicaLiteShadow shadow = mFelica.getShadow();
+			byte[] buf = new byte[verifyNum * FelicaLite.SIZE_BLOCK];
+			int[] blockStatus = new int[verifyNum];
+			Arrays.fill(blockStatus, FelicaLite.FRAME_ERR_RESPONSE);
+			mFelica.readBlocks(blockNo, buf, 0, null, blockStatus);
+			for(int i=0; i<verifyNum; i++) {
+				int idx = index[i];
+				if(blockStatus[i] != FelicaLite.FRAME_OK) {
+					mStatus[idx] = STATUS_READ_FAILED;
+				} else if(!equalsBlock(mData.get(idx), buf, i * FelicaLite.SIZE_BLOCK)) {
+					FelicaLog.v(TAG, "execute : bad read result " + blockNo[i]);
+					mStatus[idx] = STATUS_MISMATCH;
+					if(shadow != null) {
+						shadow.invalidate(blockNo[i]);
+					}
+				}
+			}
+		}
+
+		//同じブロックへの前の書込みは、後の書込みの結果に合わせる
+		for(int i=0; i<num; i++) {
+			if(mStatus[i] == STATUS_OK) {
+				int last = lastIndexOf(mBlocks.get(i));
+				if(last != i) {
+					mStatus[i] = mStatus[last];
+				}
+			}
+		}
+
+		mFrames = mFelica.getFrameCount() - start;
+		return getFailedBlocks().length == 0;
+	}
+
+
+	/**
+	 * 追加したi番目の書込みの結果
+	 *
+	 * @param i		[in]追加した順番
+	 * @return			STATUS_xx
+	 */
+	public int getStatus(int i) {
+		return (i < mStatus.length) ? mStatus[i] : STATUS_NOT_RUN;
+	}
+
+
+	/**
+	 * @return		失敗したブロック番号(追加順。成功ならば空)
+	 */
+	public int[] getFailedBlocks() {
+		int n = 0;
+		for(int i=0; i<mBlocks.size(); i++) {
+			if(getStatus(i) != STATUS_OK) {
+				n++;
+			}
+		}
+		int[] ret = new int[n];
+		n = 0;
+		for(int i=0; i<mBlocks.size(); i++) {
+			if(getStatus(i) != STATUS_OK) {
+				ret[n++] = mBlocks.get(i);
+			}
+		}
+		return ret;
+	}
+
+
+	/**
+	 * @return		直前の{@link #execute()}で送ったフレーム数
+	 */
+	public int getFrameCount() {
+		return mFrames;
+	}
+
+
+	/**
+	 * 読み戻して確認できるブロックかどうか
+	 */
+	private static boolean isVerifiable(int blockNo) {
+		switch(blockNo) {
+		case FelicaLite.REG:
+		case FelicaLite.RC:
+		case FelicaLite.MAC:
+		case FelicaLite.CK:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+
+	private int lastIndexOf(int blockNo) {
+		return mBlocks.lastIndexOf(blockNo);
+	}
+
+
+	private static boolean equalsBlock(byte[] blk, byte[] buf, int offset) {
+		for(int i=0; i<FelicaLite.SIZE_BLOCK; i++) {
+			if(blk[i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,110 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.lang.reflect.Method;
+
+
+/**
+ * @class	FelicaLog
+ * @brief	ログ出力
+ *
+ * カード処理・暗号処理のクラスはandroid.util.Logを直接使わず、これを使う。
+ * Android以外(サーバーでの計測など)でも同じコードを動かすため。<br>
+ * <br>
+ * 出力先は{@link #setSink(Sink)}で変えられる。
+ * デフォルトは、android.util.Logがあればそれに出力し、なければ捨てる。<br>
+ */
+public final class FelicaLog {
+	// 優先度(android.util.Logと同じ値)
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	/**
+	 * ログの出力先
+	 */
+	public interface Sink {
+		/**
+		 * @param priority		[in]優先度(VERBOSE～ERROR)
+		 * @param tag			[in]タグ
+		 * @param msg			[in]メッセージ
+		 */
+		void println(int priority, String tag, String msg);
+	}
+
+	/** 標準エラー出力に出す */
+	public static final Sink SYSTEM_ERR = new Sink() {
+		@Override
+		public void println(int priority, String tag, String msg) {
+			System.err.println("VDIWE".charAt(priority - VERBOSE) + "/" + tag + ": " + msg);
+		}
+	};
+
+	private static volatile Sink sSink = androidSink();
+
+
+	private FelicaLog() {
+	}
+
+
+	/**
+	 * 出力先の変更
+	 *
+	 * @param sink		[in]出力先。nullの場合は出力しない。
+	 */
+	public static void setSink(Sink sink) {
+		sSink = sink;
+	}
+
+
+	public static void v(String tag, String msg) {
+		println(VERBOSE, tag, msg);
+	}
+
+	public static void d(String tag, String msg) {
+		println(DEBUG, tag, msg);
+	}
+
+	public static void i(String tag, String msg) {
+		println(INFO, tag, msg);
+	}
+
+	public static void w(String tag, String msg) {
+		println(WARN, tag, msg);
+	}
+
+	public static void e(String tag, String msg) {
+		println(ERROR, tag, msg);
+	}
+
+
+	private static void println(int priority, String tag, String msg) {
+		Sink sink = sSink;
+		if(sink != null) {
+			sink.println(priority, tag, msg);
+		}
+	}
+
+
+	/**
+	 * android.util.Log.println()に出力するSink(Android以外ではnull)
+	 */
+	private static Sink androidSink() {
+		try {
+			final Method println = Class.forName("android.util.Log").getMethod("println", int.class, String.class, String.class);
+			return new Sink() {
+				@Override
+				public void println(int priority, String tag, String msg) {
+					try {
+						println.invoke(null, priority, tag, msg);
+					} catch(Exception e) {
+						//ログが出せないだけなので無視
+					}
+				}
+			};
+		} catch(Exception e) {
+			return null;
+		}
+	}
+}
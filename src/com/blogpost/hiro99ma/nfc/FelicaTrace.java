@@ -0,0 +1,219 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * @class	FelicaTrace
+ * @brief	送受信フレームの記録
+ *
+ * {@link FelicaTraceRecorder}で記録し、{@link FelicaTraceReplayer}で再生する。<br>
+ * <br>
+ * ファイル形式(ビッグエンディアン)<br>
+ * - magic "FLTR"(4byte), version(int), IDm長(int), IDm<br>
+ * - 以降、エントリの繰り返し<br>
+ * -- 送信長(int), 送信フレーム<br>
+ * -- 受信長(int, -1はIOException), 受信フレーム または 例外のクラス名(UTF)とメッセージ(UTF)<br>
+ * -- 所要時間(long, ns)<br>
+ * <br>
+ * version 1(例外のクラス名なし)も読める。<br>
+ */
+public class FelicaTrace {
+	private static final int MAGIC = 0x464c5452;		//"FLTR"
+	private static final int VERSION = 2;
+	private static final int VERSION_NO_CLASS = 1;
+
+	/**
+	 * 1回分の送受信
+	 */
+	public static final class Entry {
+		private final byte[] mCommand;
+		private final byte[] mResponse;
+		private final String mErrorClass;
+		private final String mError;
+		private final long mNanos;
+
+		Entry(byte[] command, byte[] response, String errorClass, String error, long nanos) {
+			mCommand = command;
+			mResponse = response;
+			mErrorClass = errorClass;
+			mError = error;
+			mNanos = nanos;
+		}
+
+		/** 送信フレーム */
+		public byte[] getCommand() {
+			return mCommand;
+		}
+
+		/** 受信フレーム(IOExceptionだった場合はnull) */
+		public byte[] getResponse() {
+			return mResponse;
+		}
+
+		/** IOExceptionのクラス名(正常時、または不明な場合はnull) */
+		public String getErrorClass() {
+			return mErrorClass;
+		}
+
+		/** IOExceptionのメッセージ(正常時はnull) */
+		public String getError() {
+			return mError;
+		}
+
+		/** transceiveにかかった時間(ns) */
+		public long getNanos() {
+			return mNanos;
+		}
+	}
+
+	private final byte[] mIdm;
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+
+
+	/**
+	 * @param idm		[in]記録対象カードのIDm(8byte)
+	 */
+	public FelicaTrace(byte[] idm) {
+		mIdm = idm.clone();
+	}
+
+	public byte[] getIdm() {
+		return mIdm.clone();
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(mEntries);
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * 全エントリのtransceive時間合計
+	 *
+	 * @return		合計時間(ns)
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for(Entry e : mEntries) {
+			total += e.mNanos;
+		}
+		return total;
+	}
+
+	/**
+	 * エントリ追加
+	 *
+	 * @param command		[in]送信フレーム
+	 * @param response		[in]受信フレーム(IOException時はnull)
+	 * @param error		[in]IOException時のメッセージ
+	 * @param nanos		[in]所要時間(ns)
+	 */
+	public synchronized void add(byte[] command, byte[] response, String error, long nanos) {
+		add(command, response, null, error, nanos);
+	}
+
+
+	/**
+	 * エントリ追加(例外のクラス名つき)
+	 *
+	 * @param command		[in]送信フレーム
+	 * @param response		[in]受信フレーム(IOException時はnull)
+	 * @param errorClass	[in]IOException時の例外のクラス名
+	 * @param error		[in]IOException時のメッセージ
+	 * @param nanos		[in]所要時間(ns)
+	 */
+	public synchronized void add(byte[] command, byte[] response, String errorClass, String error, long nanos) {
+		mEntries.add(new Entry(command, response, errorClass, error, nanos));
+	}
+
+
+	/**
+	 * ストリームへの書き出し
+	 *
+	 * @param os		[in]出力先(closeはしない)
+	 * @throws IOException
+	 */
+	public synchronized void writeTo(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(mIdm.length);
+		dos.write(mIdm);
+		for(Entry e : mEntries) {
+			dos.writeInt(e.mCommand.length);
+			dos.write(e.mCommand);
+			if(e.mResponse != null) {
+				dos.writeInt(e.mResponse.length);
+				dos.write(e.mResponse);
+			} else {
+				dos.writeInt(-1);
+				dos.writeUTF((e.mErrorClass != null) ? e.mErrorClass : "");
+				dos.writeUTF((e.mError != null) ? e.mError : "");
+			}
+			dos.writeLong(e.mNanos);
+		}
+		dos.flush();
+	}
+
+
+	/**
+	 * ストリームからの読み込み
+	 *
+	 * @param is		[in]入力元(closeはしない)
+	 * @return			読み込んだトレース
+	 * @throws IOException		形式不正
+	 */
+	public static FelicaTrace readFrom(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		if(dis.readInt() != MAGIC) {
+			throw new IOException("FelicaTrace : bad magic");
+		}
+		int version = dis.readInt();
+		if((version != VERSION) && (version != VERSION_NO_CLASS)) {
+			throw new IOException("FelicaTrace : bad version");
+		}
+		byte[] idm = new byte[dis.readInt()];
+		dis.readFully(idm);
+		FelicaTrace trace = new FelicaTrace(idm);
+
+		while(true) {
+			int len;
+			try {
+				len = dis.readInt();
+			} catch(EOFException e) {
+				break;
+			}
+			byte[] cmd = new byte[len];
+			dis.readFully(cmd);
+			len = dis.readInt();
+			byte[] res = null;
+			String cls = null;
+			String err = null;
+			if(len >= 0) {
+				res = new byte[len];
+				dis.readFully(res);
+			} else {
+				if(version != VERSION_NO_CLASS) {
+					cls = dis.readUTF();
+					if(cls.length() == 0) {
+						cls = null;
+					}
+				}
+				err = dis.readUTF();
+			}
+			trace.add(cmd, res, cls, err, dis.readLong());
+		}
+		return trace;
+	}
+}
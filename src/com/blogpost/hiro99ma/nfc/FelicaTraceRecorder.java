@@ -0,0 +1,52 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+
+/**
+ * @class	FelicaTraceRecorder
+ * @brief	送受信フレームと所要時間を記録する{@link FelicaTransceiver}
+ *
+ * 実際の送受信は、コンストラクタで渡した{@link FelicaTransceiver}が行う。<br>
+ */
+public class FelicaTraceRecorder implements FelicaTransceiver {
+	private final FelicaTransceiver mTarget;
+	private final FelicaTrace mTrace;
+
+	/**
+	 * @param target	[in]実際に送受信するtransceiver
+	 * @param trace	[in]記録先
+	 */
+	public FelicaTraceRecorder(FelicaTransceiver target, FelicaTrace trace) {
+		mTarget = target;
+		mTrace = trace;
+	}
+
+	public FelicaTrace getTrace() {
+		return mTrace;
+	}
+
+	@Override
+	public byte[] transceive(byte[] data) throws IOException {
+		byte[] cmd = data.clone();
+		long start = System.nanoTime();
+		try {
+			byte[] ret = mTarget.transceive(data);
+			mTrace.add(cmd, ret.clone(), null, System.nanoTime() - start);
+			return ret;
+		} catch(IOException e) {
+			mTrace.add(cmd, null, e.getClass().getName(), e.getMessage(), System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void setTimeout(int timeout) {
+		mTarget.setTimeout(timeout);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mTarget.close();
+	}
+}
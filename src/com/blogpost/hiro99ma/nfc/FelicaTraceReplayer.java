@@ -0,0 +1,157 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * @class	FelicaTraceReplayer
+ * @brief	{@link FelicaTrace}を再生する{@link FelicaTransceiver}
+ *
+ * 送信フレームを記録と比較し、一致すれば記録した受信フレームを返す。<br>
+ * 記録時にIOExceptionだったエントリは、同じ型(TagLostExceptionなど)と同じメッセージで投げる。
+ * 型が作れない場合はIOExceptionになる。<br>
+ * 記録を最後まで使うと{@link #rewind()}するまでIOExceptionになる。<br>
+ * <br>
+ * RCは毎回値が変わるので、{@link #getChallengeSource()}を{@link FelicaLite#setChallengeSource}に
+ * 渡して記録時のRCを使わせる。
+ * 送信フレームの比較は{@link #setStrict(boolean)}で無効にもできる。<br>
+ */
+public class FelicaTraceReplayer implements FelicaTransceiver {
+	private static final String TAG = "FelicaTraceReplayer";
+
+	private final List<FelicaTrace.Entry> mEntries;
+	private int mPos;
+	private boolean mStrict = true;
+	private boolean mRealTime = false;
+
+	/**
+	 * @param trace	[in]再生するトレース
+	 */
+	public FelicaTraceReplayer(FelicaTrace trace) {
+		mEntries = trace.getEntries();
+	}
+
+	/**
+	 * 送信フレームを記録と比較するかどうか
+	 *
+	 * @param strict	[in]true:比較する(デフォルト)
+	 */
+	public void setStrict(boolean strict) {
+		mStrict = strict;
+	}
+
+	/**
+	 * 記録時の所要時間だけ待つかどうか
+	 *
+	 * @param realTime	[in]true:待つ / false:待たない(デフォルト)
+	 */
+	public void setRealTime(boolean realTime) {
+		mRealTime = realTime;
+	}
+
+	/**
+	 * 先頭から再生し直す
+	 */
+	public void rewind() {
+		mPos = 0;
+	}
+
+	/**
+	 * @return		再生済みのエントリ数
+	 */
+	public int getPosition() {
+		return mPos;
+	}
+
+	/**
+	 * 記録時のRCを返す{@link ChallengeSource}<br>
+	 * <br>
+	 * 再生位置から後ろで最初にRCブロックへ書き込んだフレームのデータを返す。
+	 * 見つからない場合は0で埋める(strictならその後の送信フレームが一致しない)。<br>
+	 *
+	 * @return		RCの取得元
+	 */
+	public ChallengeSource getChallengeSource() {
+		return new ChallengeSource() {
+			@Override
+			public void take(byte[] rc, int offset) {
+				for(int i=mPos; i<mEntries.size(); i++) {
+					byte[] cmd = mEntries.get(i).getCommand();
+					if(isWriteRc(cmd)) {
+						System.arraycopy(cmd, 16, rc, offset, FelicaLite.SIZE_BLOCK);
+						return;
+					}
+				}
+				FelicaLog.w(TAG, "getChallengeSource : no rc");
+				Arrays.fill(rc, offset, offset + FelicaLite.SIZE_BLOCK, (byte)0);
+			}
+		};
+	}
+
+	/**
+	 * RCブロックへのWrite Without Encryptionかどうか
+	 */
+	private static boolean isWriteRc(byte[] cmd) {
+		return (cmd.length == 32) && (cmd[1] == (byte)0x08)
+				&& (cmd[13] == 1) && (cmd[14] == (byte)0x80) && (cmd[15] == (byte)FelicaLite.RC);
+	}
+
+	/**
+	 * 記録した例外を作り直す
+	 *
+	 * @param e		[in]IOExceptionだったエントリ
+	 * @return		同じ型の例外(作れなければIOException)
+	 */
+	private static IOException createError(FelicaTrace.Entry e) {
+		String cls = e.getErrorClass();
+		if(cls != null) {
+			try {
+				Class<? extends IOException> type = Class.forName(cls).asSubclass(IOException.class);
+				Constructor<? extends IOException> ctor = type.getConstructor(String.class);
+				return ctor.newInstance(e.getError());
+			} catch(Exception ex) {
+				//ClassNotFoundException, ClassCastException, NoSuchMethodExceptionなど
+				FelicaLog.w(TAG, "createError : " + cls);
+			}
+		}
+		return new IOException(e.getError());
+	}
+
+	@Override
+	public byte[] transceive(byte[] data) throws IOException {
+		if(mPos >= mEntries.size()) {
+			throw new IOException("FelicaTraceReplayer : end of trace");
+		}
+		FelicaTrace.Entry e = mEntries.get(mPos);
+		if(mStrict && !Arrays.equals(e.getCommand(), data)) {
+			throw new IOException("FelicaTraceReplayer : command mismatch at " + mPos);
+		}
+		mPos++;
+
+		if(mRealTime) {
+			long nanos = e.getNanos();
+			try {
+				Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("FelicaTraceReplayer : interrupted");
+			}
+		}
+
+		if(e.getResponse() == null) {
+			throw createError(e);
+		}
+		return e.getResponse().clone();
+	}
+
+	@Override
+	public void setTimeout(int timeout) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
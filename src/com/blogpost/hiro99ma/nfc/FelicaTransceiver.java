@@ -0,0 +1,42 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+
+/**
+ * @class	FelicaTransceiver
+ * @brief	FeliCaコマンドの送受信
+ *
+ * {@link FelicaLite}はこのインターフェース経由でカードとやりとりする。<br>
+ * 実機では{@link NfcFTransceiver}を使い、記録・再生には
+ * {@link FelicaTraceRecorder}, {@link FelicaTraceReplayer}を使う。<br>
+ * カードなしで試す場合は{@link FelicaLiteEmulator}を使う。<br>
+ */
+public interface FelicaTransceiver {
+	/**
+	 * コマンド送信とレスポンス受信<br>
+	 * <br>
+	 * dataは呼び出し元が次のコマンドで使い回すので、保持する場合はコピーすること。<br>
+	 *
+	 * @param data		[in]送信フレーム(先頭は長さ)
+	 * @return			受信フレーム(先頭は長さ)
+	 * @throws IOException
+	 */
+	byte[] transceive(byte[] data) throws IOException;
+
+	/**
+	 * 応答待ち時間の設定<br>
+	 * <br>
+	 * 設定できないtransceiverでは何もしない。<br>
+	 *
+	 * @param timeout	[in]応答待ち時間(ms)
+	 */
+	void setTimeout(int timeout);
+
+	/**
+	 * 送受信の終了
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,89 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	IdBlock
+ * @brief	IDブロックのビュー
+ *
+ * [0-7]D_IDの前半8byte(IDm), [8-9]DFD(ビッグエンディアン), [10-15]任意<br>
+ */
+public final class IdBlock extends BlockView {
+	/** 任意領域の長さ */
+	public static final int SIZE_FREE = 6;
+
+	private static final int POS_DFD = 8;
+	private static final int POS_FREE = 10;
+
+
+	/**
+	 * @param buf		[in]IDブロックを含むバッファ
+	 * @param offset	[in]IDブロックの位置
+	 * @return			this
+	 */
+	public IdBlock wrap(byte[] buf, int offset) {
+		setBuffer(buf, offset);
+		return this;
+	}
+
+
+	/**
+	 * IDmの比較
+	 *
+	 * @param idm		[in]IDm(8byte)
+	 * @return	true	[0-7]がidmと一致
+	 */
+	public boolean equalsIdm(byte[] idm) {
+		for(int i=0; i<8; i++) {
+			if(mBuf[mOffset + i] != idm[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @param idm		[in]IDm(8byte)
+	 */
+	public void setIdm(byte[] idm) {
+		System.arraycopy(idm, 0, mBuf, mOffset, 8);
+	}
+
+
+	/**
+	 * @return		DFD
+	 */
+	public short getDfd() {
+		return (short)getU16(POS_DFD);
+	}
+
+
+	/**
+	 * @param dfd		[in]DFD
+	 */
+	public void setDfd(short dfd) {
+		setU16(POS_DFD, dfd);
+	}
+
+
+	/**
+	 * 任意領域の取得
+	 *
+	 * @param out		[out]任意領域(6byte)
+	 * @param offset	[in]outへの書き込み開始位置
+	 */
+	public void getFree(byte[] out, int offset) {
+		System.arraycopy(mBuf, mOffset + POS_FREE, out, offset, SIZE_FREE);
+	}
+
+
+	/**
+	 * 任意領域の設定
+	 *
+	 * @param data		[in]任意領域(6byte)
+	 * @param offset	[in]dataの使用開始位置
+	 */
+	public void setFree(byte[] data, int offset) {
+		System.arraycopy(data, offset, mBuf, mOffset + POS_FREE, SIZE_FREE);
+	}
+}
@@ -0,0 +1,304 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @class	IssuanceJournal
+ * @brief	バッチ発行の追記専用ジャーナル
+ *
+ * 1行目がジョブを表すヘッダ、2行目以降が1カード1行のレコード(タブ区切り)。<br>
+ * <pre>
+ * #job	(ジョブの内容)
+ * 連番	IDm(hex)	結果	開始時刻(ms)	所要時間(ms)	フレーム数
+ * </pre>
+ * - レコードは1件ごとにwriteするので、アプリが落ちても書いた分は残る。<br>
+ * - fsyncはsyncEvery件ごと、またはsyncIntervalMs経過ごとにまとめて行う。
+ *   追記が途切れても、最後のレコードはsyncIntervalMs後にバックグラウンドでfsyncする。<br>
+ * - 開くときに、途中で切れた最終行(改行なし)は捨てる。<br>
+ */
+public class IssuanceJournal {
+
+	/**
+	 * 1カード分のレコード
+	 */
+	public static final class Record {
+		private final int mSeq;
+		private final String mIdm;
+		private final String mResult;
+		private final long mStartMillis;
+		private final long mElapsedMillis;
+		private final int mFrames;
+
+		/**
+		 * @param seq				[in]連番
+		 * @param idm				[in]IDm(hex)
+		 * @param result			[in]結果
+		 * @param startMillis		[in]開始時刻(ms)
+		 * @param elapsedMillis	[in]所要時間(ms)
+		 * @param frames			[in]フレーム数
+		 */
+		public Record(int seq, String idm, String result, long startMillis, long elapsedMillis, int frames) {
+			mSeq = seq;
+			mIdm = idm;
+			mResult = result;
+			mStartMillis = startMillis;
+			mElapsedMillis = elapsedMillis;
+			mFrames = frames;
+		}
+
+		public int getSeq() {
+			return mSeq;
+		}
+
+		public String getIdm() {
+			return mIdm;
+		}
+
+		public String getResult() {
+			return mResult;
+		}
+
+		public long getStartMillis() {
+			return mStartMillis;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		public int getFrames() {
+			return mFrames;
+		}
+
+		String toLine() {
+			return mSeq + "\t" + mIdm + "\t" + mResult + "\t" + mStartMillis + "\t" + mElapsedMillis + "\t" + mFrames + "\n";
+		}
+
+		static Record parse(String line) {
+			String[] f = line.split("\t");
+			if(f.length != 6) {
+				return null;
+			}
+			try {
+				return new Record(Integer.parseInt(f[0]), f[1], f[2],
+						Long.parseLong(f[3]), Long.parseLong(f[4]), Integer.parseInt(f[5]));
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+
+	private static final String TAG = "IssuanceJournal";
+	private static final String HEADER_PREFIX = "#job\t";
+
+	/** 追記が途切れたときのfsync(全ジャーナルで1スレッドを共有する) */
+	private static final ScheduledExecutorService sSyncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "journal-sync");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final FileOutputStream mOut;
+	private final List<Record> mRecords;
+	private final int mSyncEvery;
+	private final long mSyncIntervalMs;
+	private int mUnsynced;
+	private long mLastSync;
+	private boolean mClosed;
+
+	private boolean mSyncScheduled;
+	private final Runnable mSyncTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(IssuanceJournal.this) {
+				mSyncScheduled = false;
+				if(mClosed || (mUnsynced == 0)) {
+					return;
+				}
+				if(System.currentTimeMillis() - mLastSync < mSyncIntervalMs) {
+					//予約した後にfsyncしていた
+					scheduleSync();
+					return;
+				}
+				try {
+					sync();
+				} catch(IOException e) {
+					FelicaLog.e(TAG, "sync : " + e.getMessage());
+				}
+			}
+		}
+	};
+
+
+	/**
+	 * ジャーナルを開く<br>
+	 * <br>
+	 * ファイルがなければ作成してヘッダを書く。
+	 * ある場合はヘッダが一致することを確認し、記録済みのレコードを読み込む。<br>
+	 *
+	 * @param file				[in]ジャーナルファイル
+	 * @param job				[in]ジョブの内容(改行を含まないこと)
+	 * @param syncEvery		[in]fsyncするレコード数
+	 * @param syncIntervalMs	[in]fsyncする間隔(ms)
+	 * @throws IOException		読み書き失敗、または別ジョブのジャーナル
+	 */
+	public IssuanceJournal(File file, String job, int syncEvery, long syncIntervalMs) throws IOException {
+		String header = HEADER_PREFIX + job + "\n";
+		mRecords = new ArrayList<Record>();
+		mSyncEvery = syncEvery;
+		mSyncIntervalMs = syncIntervalMs;
+
+		boolean hasHeader = false;
+		if(file.exists()) {
+			hasHeader = load(file, header);
+		}
+		mOut = new FileOutputStream(file, true);
+		if(!hasHeader) {
+			mOut.write(header.getBytes("US-ASCII"));
+			mOut.getFD().sync();
+		}
+		mLastSync = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * @return		開いたときに記録済みだったレコードと、その後に追記したレコード
+	 */
+	public synchronized List<Record> getRecords() {
+		return Collections.unmodifiableList(new ArrayList<Record>(mRecords));
+	}
+
+
+	/**
+	 * レコード追記<br>
+	 * <br>
+	 * fsyncの条件を満たしていればfsyncも行う。
+	 * 満たしていなければ、syncIntervalMs経過後のfsyncを予約する。<br>
+	 *
+	 * @param rec		[in]レコード
+	 * @throws IOException
+	 */
+	public synchronized void append(Record rec) throws IOException {
+		mOut.write(rec.toLine().getBytes("US-ASCII"));
+		mRecords.add(rec);
+		mUnsynced++;
+		long now = System.currentTimeMillis();
+		if((mUnsynced >= mSyncEvery) || (now - mLastSync >= mSyncIntervalMs)) {
+			sync();
+		} else {
+			scheduleSync();
+		}
+	}
+
+
+	/**
+	 * @return		まだfsyncしていないレコード数
+	 */
+	synchronized int getUnsyncedCount() {
+		return mUnsynced;
+	}
+
+
+	/**
+	 * 未fsyncのレコードをfsyncする
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if(mUnsynced == 0) {
+			return;
+		}
+		mOut.getFD().sync();
+		mUnsynced = 0;
+		mLastSync = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * fsyncしてから閉じる
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			mClosed = true;
+			mOut.close();
+		}
+	}
+
+
+	/**
+	 * 前回のfsyncからsyncIntervalMs後にfsyncを予約する(lock中に呼ぶ)
+	 */
+	private void scheduleSync() {
+		if(mSyncScheduled) {
+			return;
+		}
+		long delay = mLastSync + mSyncIntervalMs - System.currentTimeMillis();
+		sSyncer.schedule(mSyncTask, (delay > 0) ? delay : 0, TimeUnit.MILLISECONDS);
+		mSyncScheduled = true;
+	}
+
+
+	/**
+	 * 既存ジャーナルの読み込み<br>
+	 * <br>
+	 * 改行で終わっていない最終行は書き込み途中で落ちたものなので、切り捨てる。<br>
+	 *
+	 * @return		true	ヘッダあり / false	空のファイル
+	 */
+	private boolean load(File file, String header) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] data = new byte[(int)raf.length()];
+			raf.readFully(data);
+			int end = data.length;
+			while((end > 0) && (data[end - 1] != '\n')) {
+				end--;
+			}
+			if(end != data.length) {
+				raf.setLength(end);
+				raf.getFD().sync();
+			}
+
+			if(end == 0) {
+				return false;
+			}
+			String text = new String(data, 0, end, "US-ASCII");
+			if(!text.startsWith(header)) {
+				throw new IOException("IssuanceJournal : job mismatch");
+			}
+			String[] lines = text.substring(header.length()).split("\n");
+			for(String line : lines) {
+				if(line.length() == 0) {
+					continue;
+				}
+				Record rec = Record.parse(line);
+				if(rec == null) {
+					throw new IOException("IssuanceJournal : bad record");
+				}
+				mRecords.add(rec);
+			}
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	KeyVersion
+ * @brief	CKVブロックのビュー
+ *
+ * [0-1]鍵バージョン(ビッグエンディアン), [2-15]0<br>
+ */
+public final class KeyVersion extends BlockView {
+
+	/**
+	 * @param buf		[in]CKVブロックを含むバッファ
+	 * @param offset	[in]CKVブロックの位置
+	 * @return			this
+	 */
+	public KeyVersion wrap(byte[] buf, int offset) {
+		setBuffer(buf, offset);
+		return this;
+	}
+
+
+	/**
+	 * @return		鍵バージョン
+	 */
+	public short getKeyVersion() {
+		return (short)getU16(0);
+	}
+
+
+	/**
+	 * @param keyVersion	[in]鍵バージョン
+	 */
+	public void setKeyVersion(short keyVersion) {
+		setU16(0, keyVersion);
+	}
+}
@@ -0,0 +1,287 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * @class	MacAuditor
+ * @brief	端末で収集したMACのオフライン一括検証
+ *
+ * 入力は1行1レコードのテキスト(空白またはカンマ区切り、#以降はコメント)。<br>
+ * <pre>
+ * ID(16byte hex)  RC(16byte hex)  MAC(8byte hex)
+ * </pre>
+ * 個別化マスター鍵から個別化カード鍵を計算し({@link CardKeyDiversifier})、RCとIDから計算したMACと比較する。<br>
+ * 一致しなかったレコードと形式不正のレコードだけを、行番号付きで出力する。<br>
+ * <pre>
+ * 行番号	NG	ID	RC	MAC	計算したMAC
+ * 行番号	BAD	(元の行)
+ * </pre>
+ * <br>
+ * - 読み込みは1スレッドで行い、chunkSize行ずつワーカースレッドで検証する。<br>
+ * - 処理中のchunkは(スレッド数 × 2)までなので、入力が大きくてもメモリは増えない。<br>
+ * - 出力はchunkの検証が終わった順なので、行番号順になるとは限らない。<br>
+ */
+public class MacAuditor {
+
+	/**
+	 * 検証結果の集計
+	 */
+	public static final class Summary {
+		private final long mRecords;
+		private final long mMismatches;
+		private final long mMalformed;
+
+		Summary(long records, long mismatches, long malformed) {
+			mRecords = records;
+			mMismatches = mismatches;
+			mMalformed = malformed;
+		}
+
+		/** 検証したレコード数(形式不正を含む) */
+		public long getRecords() {
+			return mRecords;
+		}
+
+		/** MAC不一致のレコード数 */
+		public long getMismatches() {
+			return mMismatches;
+		}
+
+		/** 形式不正のレコード数 */
+		public long getMalformed() {
+			return mMalformed;
+		}
+
+		@Override
+		public String toString() {
+			return "records=" + mRecords + " mismatch=" + mMismatches + " malformed=" + mMalformed;
+		}
+	}
+
+
+	private final CardKeyDiversifier mDiversifier;
+	private final int mThreads;
+	private final int mChunkSize;
+
+	private final AtomicLong mRecords = new AtomicLong();
+	private final AtomicLong mMismatches = new AtomicLong();
+	private final AtomicLong mMalformed = new AtomicLong();
+
+
+	/**
+	 * 全コアを使い、4096行ずつ検証する
+	 *
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 */
+	public MacAuditor(byte[] masterKey) {
+		this(masterKey, Runtime.getRuntime().availableProcessors(), 4096);
+	}
+
+
+	/**
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param threads		[in]ワーカースレッド数
+	 * @param chunkSize	[in]1回にワーカーへ渡す行数
+	 */
+	public MacAuditor(byte[] masterKey, int threads, int chunkSize) {
+		mDiversifier = new CardKeyDiversifier(masterKey);
+		mThreads = threads;
+		mChunkSize = chunkSize;
+	}
+
+
+	/**
+	 * 一括検証
+	 *
+	 * @param in		[in]入力(closeはしない)
+	 * @param out		[in]不一致・形式不正レコードの出力先(closeはしない)
+	 * @return			集計
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Summary audit(Reader in, final Writer out) throws IOException, InterruptedException {
+		mRecords.set(0);
+		mMismatches.set(0);
+		mMalformed.set(0);
+
+		BufferedReader br = new BufferedReader(in, 1 << 16);
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+		final Semaphore inFlight = new Semaphore(mThreads * 2);
+		final IOException[] writeError = new IOException[1];
+		try {
+			long lineNo = 0;
+			while(true) {
+				final List<String> lines = new ArrayList<String>(mChunkSize);
+				final long firstLine = lineNo + 1;
+				String line;
+				while((lines.size() < mChunkSize) && ((line = br.readLine()) != null)) {
+					lines.add(line);
+				}
+				if(lines.isEmpty()) {
+					break;
+				}
+				lineNo += lines.size();
+
+				inFlight.acquire();
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							String res = verify(lines, firstLine);
+							if(res.length() > 0) {
+								synchronized(out) {
+									out.write(res);
+								}
+							}
+						} catch(IOException e) {
+							synchronized(writeError) {
+								writeError[0] = e;
+							}
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+				synchronized(writeError) {
+					if(writeError[0] != null) {
+						throw writeError[0];
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		if(writeError[0] != null) {
+			throw writeError[0];
+		}
+		out.flush();
+		return new Summary(mRecords.get(), mMismatches.get(), mMalformed.get());
+	}
+
+
+	/**
+	 * 1chunk分の検証
+	 *
+	 * @return		出力する行(なければ空文字)
+	 */
+	private String verify(List<String> lines, long firstLine) {
+		StringBuilder sb = new StringBuilder();
+		byte[] id = new byte[FelicaLite.SIZE_BLOCK];
+		byte[] rc = new byte[FelicaLite.SIZE_BLOCK];
+		byte[] mac = new byte[8];
+		byte[] ck = new byte[FelicaLite.SIZE_BLOCK];
+		byte[] calc = new byte[8];
+
+		for(int i=0; i<lines.size(); i++) {
+			String line = lines.get(i);
+			int hash = line.indexOf('#');
+			String body = ((hash >= 0) ? line.substring(0, hash) : line).trim();
+			if(body.length() == 0) {
+				continue;
+			}
+			mRecords.incrementAndGet();
+
+			String[] f = body.split("[\\s,]+");
+			if((f.length != 3) || !parseHex(f[0], id) || !parseHex(f[1], rc) || !parseHex(f[2], mac)) {
+				mMalformed.incrementAndGet();
+				sb.append(firstLine + i).append("\tBAD\t").append(line).append('\n');
+				continue;
+			}
+
+			boolean ok = mDiversifier.diversify(ck, id)
+					&& FelicaLiteIssuance.calcMac(calc, ck, id, rc);
+			for(int j=0; ok && (j<8); j++) {
+				ok = (calc[j] == mac[j]);
+			}
+			if(!ok) {
+				mMismatches.incrementAndGet();
+				sb.append(firstLine + i).append("\tNG\t").append(f[0]).append('\t').append(f[1])
+					.append('\t').append(f[2]).append('\t');
+				for(int j=0; j<8; j++) {
+					sb.append(String.format("%02x", calc[j]));
+				}
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * hex文字列の変換
+	 *
+	 * @param hex		[in]hex文字列(長さがout.length * 2であること)
+	 * @param out		[out]変換結果
+	 * @return	true	変換成功
+	 */
+	private static boolean parseHex(String hex, byte[] out) {
+		if(hex.length() != out.length * 2) {
+			return false;
+		}
+		for(int i=0; i<out.length; i++) {
+			int hi = Character.digit(hex.charAt(i * 2), 16);
+			int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if((hi < 0) || (lo < 0)) {
+				return false;
+			}
+			out[i] = (byte)((hi << 4) | lo);
+		}
+		return true;
+	}
+
+
+	/**
+	 * コマンドライン実行<br>
+	 * <br>
+	 * MacAuditor (マスター鍵ファイル) (入力ファイル) (出力ファイル)<br>
+	 * マスター鍵ファイルには24byteのhexを1行で書いておく。<br>
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length != 3) {
+			System.err.println("usage: MacAuditor <master key file> <input> <output>");
+			System.exit(2);
+		}
+		BufferedReader kr = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "US-ASCII"));
+		byte[] masterKey = new byte[24];
+		try {
+			String line = kr.readLine();
+			if((line == null) || !parseHex(line.trim(), masterKey)) {
+				System.err.println("bad master key file");
+				System.exit(2);
+			}
+		} finally {
+			kr.close();
+		}
+
+		Reader in = new InputStreamReader(new FileInputStream(args[1]), "US-ASCII");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[2]), "US-ASCII"), 1 << 16);
+		Summary sum;
+		try {
+			long start = System.currentTimeMillis();
+			sum = new MacAuditor(masterKey).audit(in, out);
+			long ms = System.currentTimeMillis() - start;
+			System.out.println(sum + " " + ms + "ms");
+		} finally {
+			in.close();
+			out.close();
+		}
+		System.exit((sum.getMismatches() == 0) && (sum.getMalformed() == 0) ? 0 : 1);
+	}
+}
@@ -0,0 +1,237 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * @class	MacSession
+ * @brief	1つのRCでのMAC付き読み込みの繰り返し
+ *
+ * RCを書き込んでセッション鍵SKを計算したら、次にRCを更新するまでSKを使い回し、
+ * MAC付き読み込みのたびにRCの書込みと3DES 2回を省く。<br>
+ * <br>
+ * RCを更新するのは、最初の読み込み、{@link #refresh()}、
+ * 更新条件({@link #setRefreshPolicy(int, long)})を満たした時だけ。
+ * 更新条件のデフォルトは{@link #DEFAULT_MAX_USES}回・{@link #DEFAULT_MAX_AGE}msで、
+ * 無制限に使い回す場合は明示的に指定すること。<br>
+ * 同じセッションで{@link FelicaLiteIssuance#macCheck}などを呼ぶとRCが変わるので、
+ * その後は{@link #refresh()}を呼ぶこと。<br>
+ * <br>
+ * スレッドセーフではない。<br>
+ */
+public final class MacSession {
+	private static final String TAG = "MacSession";
+
+	/** 1つのRCで確かめるMACの数(デフォルト) */
+	public static final int DEFAULT_MAX_USES = 16;
+	/** RCを書き込んでから使い回す時間(ms)(デフォルト) */
+	public static final long DEFAULT_MAX_AGE = 5 * 1000;
+
+	private final FelicaLite mFelica;
+	private final byte[] mCardKey = new byte[16];
+	private final byte[] mId = new byte[FelicaLite.SIZE_BLOCK];
+
+	private final byte[] mRc = new byte[FelicaLite.SIZE_BLOCK];
+	private final byte[] mSk = new byte[16];
+	private boolean mValid;
+	private int mUses;
+	private long mWritten;
+
+	private int mMaxUses = DEFAULT_MAX_USES;
+	private long mMaxAge = DEFAULT_MAX_AGE;
+	private int mRefreshCount;
+
+	private final byte[] mBuf = new byte[FelicaLite.MAX_READ_BLOCKS * FelicaLite.SIZE_BLOCK];
+	private final byte[] mMac = new byte[8];
+
+
+	private MacSession(FelicaLite felica) {
+		mFelica = felica;
+	}
+
+
+	/**
+	 * 個別化マスター鍵を指定して開始<br>
+	 * <br>
+	 * IDブロックを読み込み(シャドウにあれば使う)、個別化カード鍵を計算する。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param masterKey	[in]個別化マスター鍵(24byte)
+	 * @param cache		[in]個別化カード鍵のキャッシュ。不要ならnull。
+	 * @return			(!=null)セッション / (==null)エラー
+	 * @throws IOException
+	 */
+	public static MacSession open(FelicaLite felica, byte[] masterKey, CardKeyCache cache) throws IOException {
+		MacSession session = new MacSession(felica);
+		if(!felica.readBlock(FelicaLite.ID, session.mId, 0)) {
+			FelicaLog.v(TAG, "open : read id fail");
+			return null;
+		}
+		if(!FelicaLiteIssuance.personalCardKey(session.mCardKey, masterKey, session.mId, cache)) {
+			FelicaLog.v(TAG, "open : personal key fail");
+			return null;
+		}
+		return session;
+	}
+
+
+	/**
+	 * カード鍵を指定して開始
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param ck			[in]カード鍵(16byte)
+	 * @return			セッション
+	 */
+	public static MacSession open(FelicaLite felica, byte[] ck) {
+		MacSession session = new MacSession(felica);
+		System.arraycopy(ck, 0, session.mCardKey, 0, session.mCardKey.length);
+		return session;
+	}
+
+
+	/**
+	 * RCの更新条件<br>
+	 * <br>
+	 * どちらかを満たすと、次の読み込みの前にRCを書き換える。<br>
+	 * 両方0にすると、{@link #refresh()}を呼ぶまで同じRCを使い続ける。<br>
+	 *
+	 * @param maxUses		[in]1つのRCで確かめるMACの数(0は無制限。デフォルトは{@link #DEFAULT_MAX_USES})
+	 * @param maxAgeMillis	[in]RCを書き込んでからの時間(ms)(0は無制限。デフォルトは{@link #DEFAULT_MAX_AGE})
+	 */
+	public void setRefreshPolicy(int maxUses, long maxAgeMillis) {
+		mMaxUses = maxUses;
+		mMaxAge = maxAgeMillis;
+	}
+
+
+	/**
+	 * 次の読み込みでRCを書き換える
+	 */
+	public void refresh() {
+		mValid = false;
+	}
+
+
+	/**
+	 * @return		RCを書き込んだ回数
+	 */
+	public int getRefreshCount() {
+		return mRefreshCount;
+	}
+
+
+	/**
+	 * IDブロックのMAC確認<br>
+	 * <br>
+	 * {@link FelicaLiteIssuance#macCheck}と同じ確認を、SKを使い回して行う。<br>
+	 *
+	 * @return		true	MAC一致
+	 * @throws IOException
+	 */
+	public boolean check() throws IOException {
+		return read(new int[] { FelicaLite.ID }, mBuf, 0);
+	}
+
+
+	/**
+	 * MAC付き読み込み<br>
+	 * <br>
+	 * 指定したブロックとMACブロックを1フレームで読み込み、MACを確かめる。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号(3つまで。MAC, RC, CKは指定できない)
+	 * @param out			[out]読み込んだブロックデータ(blockNoの順)。MAC一致の場合だけ書く。
+	 * @param outOffset	[in]outへの書き込み開始位置
+	 * @return		true	読込成功かつMAC一致
+	 * @throws IOException
+	 */
+	public boolean read(int[] blockNo, byte[] out, int outOffset) throws IOException {
+		int num = blockNo.length;
+		if((num < 1) || (num > FelicaLiteIssuance.MAX_MAC_READ_BLOCKS)
+		  || (out == null) || (out.length < outOffset + num * FelicaLite.SIZE_BLOCK)) {
+			FelicaLog.e(TAG, "read : param");
+			return false;
+		}
+		for(int i=0; i<num; i++) {
+			if((blockNo[i] == FelicaLite.MAC) || (blockNo[i] == FelicaLite.RC) || (blockNo[i] == FelicaLite.CK)) {
+				FelicaLog.e(TAG, "read : block " + blockNo[i]);
+				return false;
+			}
+		}
+
+		if(needRefresh() && !writeChallenge()) {
+			return false;
+		}
+		mUses++;
+
+		//mBuf[0 - num*16-1]に指定ブロック、その後ろにMACが入る
+		int[] blkNo = new int[num + 1];
+		System.arraycopy(blockNo, 0, blkNo, 0, num);
+		blkNo[num] = FelicaLite.MAC;
+		if(!mFelica.readBlocks(blkNo, mBuf, 0, null)) {
+			FelicaLog.v(TAG, "read : read fail");
+			return false;
+		}
+
+		if(!FelicaLiteIssuance.verifyMac(mMac, mSk, mRc, mBuf, num)) {
+			FelicaLog.v(TAG, "read : mac not match fail");
+			return false;
+		}
+
+		if(out != mBuf) {
+			System.arraycopy(mBuf, 0, out, outOffset, num * FelicaLite.SIZE_BLOCK);
+		}
+		return true;
+	}
+
+
+	/**
+	 * 鍵の破棄<br>
+	 * <br>
+	 * カード鍵とセッション鍵を0クリアし、このスレッドの鍵スケジュールも消す。
+	 * {@link FelicaLite}はcloseしない。<br>
+	 */
+	public void close() {
+		FelicaLiteIssuance.clearKeys();
+		Arrays.fill(mCardKey, (byte)0);
+		Arrays.fill(mSk, (byte)0);
+		Arrays.fill(mRc, (byte)0);
+		mValid = false;
+	}
+
+
+	private boolean needRefresh() {
+		if(!mValid) {
+			return true;
+		}
+		if((mMaxUses > 0) && (mUses >= mMaxUses)) {
+			return true;
+		}
+		if((mMaxAge > 0) && (System.currentTimeMillis() - mWritten >= mMaxAge)) {
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * RCの書込みとSKの計算
+	 */
+	private boolean writeChallenge() throws IOException {
+		mValid = false;
+		mFelica.getChallengeSource().take(mRc, 0);
+		if(!mFelica.writeBlock(FelicaLite.RC, mRc)) {
+			FelicaLog.v(TAG, "read : write rc fail");
+			return false;
+		}
+		mRefreshCount++;
+		if(!FelicaLiteIssuance.calcSessionKey(mSk, mCardKey, mRc)) {
+			FelicaLog.v(TAG, "read : session key fail");
+			return false;
+		}
+		mWritten = System.currentTimeMillis();
+		mUses = 0;
+		mValid = true;
+		return true;
+	}
+}
@@ -1,5 +1,6 @@
 package com.blogpost.hiro99ma.nfc;
 
+import java.io.File;
 import java.io.IOException;
 
 import com.blogpost.hiro99ma.nfc.FelicaLiteIssuance.Result;
@@ -23,6 +24,10 @@ public class MainActivity extends Activity {
 	private IntentFilter[] mFilters;
 	private String[][] mTechLists;
 	private Tag mTag;
+	private FelicaLiteAsync mAsync;
+	private FelicaLiteAsync.Operation<?> mOperation;
+	private BatchIssuance mBatch;
+	private final CardKeyCache mKeyCache = new CardKeyCache(64, 10 * 60 * 1000);
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -40,8 +45,20 @@ public class MainActivity extends Activity {
 		mTechLists = new String[][] {
 						new String[] { NfcF.class.getName() }
 		};
+
+		mAsync = new FelicaLiteAsync();
+		//カードをかざす前にRCの作り置きを始めておく
+		ChallengePool.getDefault();
     }
 
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		stopBatch();
+		mAsync.shutdown();
+		mKeyCache.clear();
+	}
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.activity_main, menu);
@@ -67,129 +84,230 @@ public class MainActivity extends Activity {
 	@Override
 	public void onNewIntent(Intent intent) {
 		mTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+		//前のカードの処理は続けられないので止める
+		if (mOperation != null) {
+			mOperation.cancel(true);
+			mOperation = null;
+		}
+		if (mBatch != null) {
+			issueBatch();
+		}
 	}
 
 	public void onClickRead(View v) {
-		if (mTag == null) {
-			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
-			return;
-		}
-		try {
-			FelicaLite.connect(mTag);
-			byte[] rd = FelicaLite.readBlock(0);
-			if(rd != null) {
-				TextView tv = (TextView)findViewById(R.id.textRead);
-				String s = "";
-				for(int i=0; i<rd.length; i++) {
-					s += String.format("%02x-", rd[i]);
-				}
-				tv.setText(s);
+		start(new FelicaLiteScheduler.Task<byte[]>() {
+			@Override
+			public byte[] run(FelicaLite felica) throws IOException {
+				return felica.readBlock(0);
 			}
-			FelicaLite.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		}, new ReadCallback());
 	}
 	
 	public void onClickReadDid(View v) {
-		if (mTag == null) {
-			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
-			return;
-		}
-		try {
-			FelicaLite.connect(mTag);
-			byte[] rd = FelicaLite.readBlock(0x83);
-			if(rd != null) {
-				TextView tv = (TextView)findViewById(R.id.textRead);
-				String s = "";
-				for(int i=0; i<rd.length; i++) {
-					s += String.format("%02x-", rd[i]);
-				}
-				tv.setText(s);
+		start(new FelicaLiteScheduler.Task<byte[]>() {
+			@Override
+			public byte[] run(FelicaLite felica) throws IOException {
+				return felica.readBlock(0x83);
 			}
-			FelicaLite.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		}, new ReadCallback());
 	}
 	
 	public void onClickWrite(View v) {
-		if (mTag == null) {
-			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
-			return;
-		}
-		try {
-			FelicaLite.connect(mTag);
-			byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
-			boolean ret = FelicaLite.writeBlock(10, wr);
-			if(ret) {
-				Toast.makeText(this, "success", Toast.LENGTH_SHORT).show();
-			} else {
-				Toast.makeText(this, "fail", Toast.LENGTH_SHORT).show();
+		start(new FelicaLiteScheduler.Task<Boolean>() {
+			@Override
+			public Boolean run(FelicaLite felica) throws IOException {
+				byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+				return felica.writeBlock(10, wr);
 			}
-			FelicaLite.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		}, new ResultCallback());
 	}
 	
 	public void onClickIssue(View v) {
-		if (mTag == null) {
-			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
+		start(new FelicaLiteScheduler.Task<Boolean>() {
+			@Override
+			public Boolean run(FelicaLite felica) throws IOException {
+				felica.setShadowEnabled(true);
+				byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
+				try {
+					FelicaLiteIssuance.Result ret = FelicaLiteIssuance.issuance1(felica, (short)0x1234, wr, (short)1);
+					return ret == Result.SUCCESS;
+				} finally {
+					FelicaLiteIssuance.clearKeys();
+				}
+			}
+		}, new ResultCallback());
+	}
+	
+	
+	public void onClickCheck1(View v) {
+		start(new FelicaLiteScheduler.Task<Boolean>() {
+			@Override
+			public Boolean run(FelicaLite felica) throws IOException {
+				byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
+				try {
+					return FelicaLiteIssuance.macCheck(felica, wr, mKeyCache);
+				} finally {
+					FelicaLiteIssuance.clearKeys();
+				}
+			}
+		}, new ResultCallback());
+	}
+	
+	public void onClickCheck2(View v) {
+		start(new FelicaLiteScheduler.Task<Boolean>() {
+			@Override
+			public Boolean run(FelicaLite felica) throws IOException {
+				byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 25 };
+				try {
+					return FelicaLiteIssuance.macCheck(felica, wr, mKeyCache);
+				} finally {
+					FelicaLiteIssuance.clearKeys();
+				}
+			}
+		}, new ResultCallback());
+	}
+
+
+	/**
+	 * バッチ発行の開始・終了<br>
+	 * <br>
+	 * 開始すると、かざしたカードを順に１次発行する。
+	 * 前回のジャーナルが残っていれば続きから再開する。<br>
+	 */
+	public void onClickBatch(View v) {
+		if (mBatch != null) {
+			stopBatch();
+			Toast.makeText(this, "batch stop", Toast.LENGTH_SHORT).show();
 			return;
 		}
-		try {
-			FelicaLite.connect(mTag);
-			byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
-			FelicaLiteIssuance.Result ret = FelicaLiteIssuance.issuance1((short)0x1234, wr, (short)1);
-			if(ret == Result.SUCCESS) {
-				Toast.makeText(this, "success", Toast.LENGTH_SHORT).show();
-			} else {
-				Toast.makeText(this, "fail", Toast.LENGTH_SHORT).show();
+		BatchIssuance.Job job = new BatchIssuance.Job((short)0x1234, "test", (short)1, 100);
+		BatchIssuance.MasterKeyProvider keys = new BatchIssuance.MasterKeyProvider() {
+			@Override
+			public byte[] getMasterKey(String ref) {
+				return new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
 			}
-			FelicaLite.close();
+		};
+		try {
+			mBatch = new BatchIssuance(job, keys, new File(getFilesDir(), "batch.journal"));
+			Toast.makeText(this, "batch start", Toast.LENGTH_SHORT).show();
 		} catch (IOException e) {
 			e.printStackTrace();
+			Toast.makeText(this, "fail", Toast.LENGTH_SHORT).show();
 		}
 	}
-	
-	
-	public void onClickCheck1(View v) {
-		if (mTag == null) {
-			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
+
+	private void issueBatch() {
+		final BatchIssuance batch = mBatch;
+		start(new FelicaLiteScheduler.Task<BatchIssuance.Stats>() {
+			@Override
+			public BatchIssuance.Stats run(FelicaLite felica) throws IOException {
+				batch.issue(felica);
+				return batch.getStats();
+			}
+		}, new FelicaLiteAsync.Callback<BatchIssuance.Stats>() {
+			@Override
+			public void onSuccess(BatchIssuance.Stats stats) {
+				TextView tv = (TextView)findViewById(R.id.textRead);
+				tv.setText(stats.toString());
+				if (batch.isFinished() && (batch == mBatch)) {
+					stopBatch();
+					Toast.makeText(MainActivity.this, "batch finished", Toast.LENGTH_SHORT).show();
+				}
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				e.printStackTrace();
+				TextView tv = (TextView)findViewById(R.id.textRead);
+				tv.setText(batch.getStats().toString());
+			}
+		});
+	}
+
+	private void stopBatch() {
+		if (mBatch == null) {
 			return;
 		}
 		try {
-			FelicaLite.connect(mTag);
-			byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
-			boolean ret = FelicaLiteIssuance.macCheck(wr);
-			if(ret == true) {
-				Toast.makeText(this, "success", Toast.LENGTH_SHORT).show();
-			} else {
-				Toast.makeText(this, "fail", Toast.LENGTH_SHORT).show();
-			}
-			FelicaLite.close();
+			mBatch.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		mBatch = null;
 	}
-	
-	public void onClickCheck2(View v) {
+
+
+	/**
+	 * カード処理をNFCスレッドで開始する<br>
+	 * <br>
+	 * 前の処理が終わっていない場合は開始しない。<br>
+	 *
+	 * @param task		[in]カード処理
+	 * @param callback	[in]結果の通知先
+	 */
+	private <T> void start(FelicaLiteScheduler.Task<T> task, final FelicaLiteAsync.Callback<T> callback) {
 		if (mTag == null) {
 			Toast.makeText(this, "no card", Toast.LENGTH_SHORT).show();
 			return;
 		}
-		try {
-			FelicaLite.connect(mTag);
-			byte[] wr = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 25 };
-			boolean ret = FelicaLiteIssuance.macCheck(wr);
-			if(ret == true) {
-				Toast.makeText(this, "success", Toast.LENGTH_SHORT).show();
+		if ((mOperation != null) && !mOperation.isDone()) {
+			Toast.makeText(this, "busy", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		mOperation = mAsync.submit(mTag, task, new FelicaLiteAsync.Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				mOperation = null;
+				callback.onSuccess(result);
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				mOperation = null;
+				callback.onFailure(e);
+			}
+		});
+	}
+
+
+	/**
+	 * 読み込んだブロックの表示
+	 */
+	private class ReadCallback implements FelicaLiteAsync.Callback<byte[]> {
+		@Override
+		public void onSuccess(byte[] rd) {
+			if(rd != null) {
+				TextView tv = (TextView)findViewById(R.id.textRead);
+				String s = "";
+				for(int i=0; i<rd.length; i++) {
+					s += String.format("%02x-", rd[i]);
+				}
+				tv.setText(s);
+			}
+		}
+
+		@Override
+		public void onFailure(Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * 成否の表示
+	 */
+	private class ResultCallback implements FelicaLiteAsync.Callback<Boolean> {
+		@Override
+		public void onSuccess(Boolean ret) {
+			if(ret) {
+				Toast.makeText(MainActivity.this, "success", Toast.LENGTH_SHORT).show();
 			} else {
-				Toast.makeText(this, "fail", Toast.LENGTH_SHORT).show();
+				Toast.makeText(MainActivity.this, "fail", Toast.LENGTH_SHORT).show();
 			}
-			FelicaLite.close();
-		} catch (IOException e) {
+		}
+
+		@Override
+		public void onFailure(Exception e) {
 			e.printStackTrace();
 		}
 	}
@@ -0,0 +1,112 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	MemoryConfig
+ * @brief	MCブロックのビュー
+ *
+ * [0-1]MC_SP(リトルエンディアン), [2]MC_ALL, [3]SYS_OP, [4-15]RFU<br>
+ * <br>
+ * - MC_SP : bit0～13がS_PAD0～13、bit14がREGの書込許可(1で書ける)。
+ *   bit15が0ならMC_SPも書き換えられない(2次発行済み)。<br>
+ * - MC_ALL : 0xffならシステムブロックを書ける。0x00なら書けない(1次発行済み)。<br>
+ */
+public final class MemoryConfig extends BlockView {
+	public static final int MC_ALL_READ_WRITE = 0xff;
+	public static final int MC_ALL_READ_ONLY = 0x00;
+
+	/** MC_SPのうち、MC_SP自身の書込許可 */
+	public static final int MC_SP_SELF = 0x8000;
+
+	private static final int POS_MC_SP = 0;
+	private static final int POS_MC_ALL = 2;
+	private static final int POS_SYS_OP = 3;
+
+
+	/**
+	 * @param buf		[in]MCブロックを含むバッファ
+	 * @param offset	[in]MCブロックの位置
+	 * @return			this
+	 */
+	public MemoryConfig wrap(byte[] buf, int offset) {
+		setBuffer(buf, offset);
+		return this;
+	}
+
+
+	/**
+	 * @return		MC_SP(16bit)
+	 */
+	public int getMcSp() {
+		return (mBuf[mOffset + POS_MC_SP] & 0xff) | ((mBuf[mOffset + POS_MC_SP + 1] & 0xff) << 8);
+	}
+
+
+	/**
+	 * @param sp		[in]MC_SP(16bit)
+	 */
+	public void setMcSp(int sp) {
+		mBuf[mOffset + POS_MC_SP] = (byte)sp;
+		mBuf[mOffset + POS_MC_SP + 1] = (byte)(sp >> 8);
+	}
+
+
+	/**
+	 * @param blockNo	[in]ブロック番号(S_PAD0～13, REG)
+	 * @return	true	MC_SPで書込許可されている
+	 */
+	public boolean isUserBlockWritable(int blockNo) {
+		if((blockNo < FelicaLite.PAD0) || (blockNo > FelicaLite.REG)) {
+			return false;
+		}
+		return (getMcSp() & (1 << blockNo)) != 0;
+	}
+
+
+	/**
+	 * @return		MC_ALL
+	 */
+	public int getMcAll() {
+		return mBuf[mOffset + POS_MC_ALL] & 0xff;
+	}
+
+
+	/**
+	 * @param mcAll	[in]MC_ALL({@link #MC_ALL_READ_WRITE}, {@link #MC_ALL_READ_ONLY})
+	 */
+	public void setMcAll(int mcAll) {
+		mBuf[mOffset + POS_MC_ALL] = (byte)mcAll;
+	}
+
+
+	/**
+	 * @return		SYS_OP
+	 */
+	public int getSysOp() {
+		return mBuf[mOffset + POS_SYS_OP] & 0xff;
+	}
+
+
+	/**
+	 * @return	true	システムブロックを書ける(MC_ALLが0xff)
+	 */
+	public boolean isSystemWritable() {
+		return getMcAll() == MC_ALL_READ_WRITE;
+	}
+
+
+	/**
+	 * @return	true	1次発行済み(MC_ALLが0x00)
+	 */
+	public boolean isFirstIssued() {
+		return getMcAll() == MC_ALL_READ_ONLY;
+	}
+
+
+	/**
+	 * @return	true	2次発行済み(MC_SPのbit15が0)
+	 */
+	public boolean isSecondIssued() {
+		return (getMcSp() & MC_SP_SELF) == 0;
+	}
+}
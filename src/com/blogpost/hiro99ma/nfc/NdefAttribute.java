@@ -0,0 +1,173 @@
+package com.blogpost.hiro99ma.nfc;
+
+import android.nfc.FormatException;
+
+
+/**
+ * @class	NdefAttribute
+ * @brief	NFC Forum Type 3 Tagの属性情報ブロック(ブロック0)
+ *
+ * [0]Ver, [1]Nbr, [2]Nbw, [3-4]Nmaxb, [5-8]未使用, [9]WriteF, [10]RW Flag,
+ * [11-13]Ln, [14-15]Checksum([0]～[13]の和)<br>
+ */
+public final class NdefAttribute {
+	public static final int VERSION_1_0 = 0x10;
+
+	public static final int WRITEF_DONE = 0x00;			///!< 書込み完了
+	public static final int WRITEF_IN_PROGRESS = 0x0f;		///!< 書込み中
+
+	public static final int RW_READ_ONLY = 0x00;
+	public static final int RW_READ_WRITE = 0x01;
+
+	/** 属性情報ブロック */
+	public static final int ATTRIBUTE_BLOCK = 0;
+	/** NDEFデータの先頭ブロック */
+	public static final int DATA_BLOCK = 1;
+
+	private int mVersion;
+	private int mNbr;
+	private int mNbw;
+	private int mNmaxb;
+	private int mWriteF;
+	private int mRwFlag;
+	private int mLength;
+
+
+	/**
+	 * @param nbr		[in]1回で読めるブロック数
+	 * @param nbw		[in]1回で書けるブロック数
+	 * @param nmaxb	[in]NDEFに使えるブロック数
+	 */
+	public NdefAttribute(int nbr, int nbw, int nmaxb) {
+		mVersion = VERSION_1_0;
+		mNbr = nbr;
+		mNbw = nbw;
+		mNmaxb = nmaxb;
+		mWriteF = WRITEF_DONE;
+		mRwFlag = RW_READ_WRITE;
+	}
+
+
+	private NdefAttribute() {
+	}
+
+
+	/**
+	 * 属性情報ブロックの解析
+	 *
+	 * @param buf		[in]ブロック0のデータ
+	 * @param offset	[in]bufの使用開始位置(ここから16byte)
+	 * @return			属性情報
+	 * @throws FormatException		チェックサム不一致、バージョン不正
+	 */
+	public static NdefAttribute parse(byte[] buf, int offset) throws FormatException {
+		int sum = ((buf[offset + 14] & 0xff) << 8) | (buf[offset + 15] & 0xff);
+		if(sum != checksum(buf, offset)) {
+			throw new FormatException("NdefAttribute : checksum");
+		}
+		NdefAttribute attr = new NdefAttribute();
+		attr.mVersion = buf[offset] & 0xff;
+		if((attr.mVersion >> 4) != (VERSION_1_0 >> 4)) {
+			//メジャーバージョンが違うものは読めない
+			throw new FormatException("NdefAttribute : version " + Integer.toHexString(attr.mVersion));
+		}
+		attr.mNbr = buf[offset + 1] & 0xff;
+		attr.mNbw = buf[offset + 2] & 0xff;
+		attr.mNmaxb = ((buf[offset + 3] & 0xff) << 8) | (buf[offset + 4] & 0xff);
+		attr.mWriteF = buf[offset + 9] & 0xff;
+		attr.mRwFlag = buf[offset + 10] & 0xff;
+		attr.mLength = ((buf[offset + 11] & 0xff) << 16) | ((buf[offset + 12] & 0xff) << 8) | (buf[offset + 13] & 0xff);
+		if(attr.mNbr == 0) {
+			throw new FormatException("NdefAttribute : Nbr");
+		}
+		if(attr.mLength > attr.mNmaxb * FelicaLite.SIZE_BLOCK) {
+			throw new FormatException("NdefAttribute : Ln");
+		}
+		return attr;
+	}
+
+
+	/**
+	 * 属性情報ブロックの作成(チェックサムも書く)
+	 *
+	 * @param buf		[out]ブロック0のデータ
+	 * @param offset	[in]bufへの書き込み開始位置(ここから16byte)
+	 */
+	public void encode(byte[] buf, int offset) {
+		buf[offset] = (byte)mVersion;
+		buf[offset + 1] = (byte)mNbr;
+		buf[offset + 2] = (byte)mNbw;
+		buf[offset + 3] = (byte)(mNmaxb >> 8);
+		buf[offset + 4] = (byte)mNmaxb;
+		for(int i=5; i<9; i++) {
+			buf[offset + i] = 0;
+		}
+		buf[offset + 9] = (byte)mWriteF;
+		buf[offset + 10] = (byte)mRwFlag;
+		buf[offset + 11] = (byte)(mLength >> 16);
+		buf[offset + 12] = (byte)(mLength >> 8);
+		buf[offset + 13] = (byte)mLength;
+		int sum = checksum(buf, offset);
+		buf[offset + 14] = (byte)(sum >> 8);
+		buf[offset + 15] = (byte)sum;
+	}
+
+
+	/**
+	 * [0]～[13]の和
+	 */
+	private static int checksum(byte[] buf, int offset) {
+		int sum = 0;
+		for(int i=0; i<14; i++) {
+			sum += buf[offset + i] & 0xff;
+		}
+		return sum;
+	}
+
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/** 1回で読めるブロック数 */
+	public int getNbr() {
+		return mNbr;
+	}
+
+	/** 1回で書けるブロック数 */
+	public int getNbw() {
+		return mNbw;
+	}
+
+	/** NDEFに使えるブロック数 */
+	public int getNmaxb() {
+		return mNmaxb;
+	}
+
+	/** 書込み中かどうか */
+	public boolean isWriting() {
+		return mWriteF != WRITEF_DONE;
+	}
+
+	public void setWriting(boolean writing) {
+		mWriteF = writing ? WRITEF_IN_PROGRESS : WRITEF_DONE;
+	}
+
+	public boolean isReadOnly() {
+		return mRwFlag == RW_READ_ONLY;
+	}
+
+	/** NDEFメッセージの長さ(byte) */
+	public int getLength() {
+		return mLength;
+	}
+
+	public void setLength(int length) {
+		mLength = length;
+	}
+
+	/** NDEFメッセージが使うブロック数 */
+	public int getBlocks() {
+		return (mLength + FelicaLite.SIZE_BLOCK - 1) / FelicaLite.SIZE_BLOCK;
+	}
+}
@@ -0,0 +1,238 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+
+/**
+ * @class	NdefReader
+ * @brief	NFC Forum Type 3 TagとしてフォーマットしたFeliCa LiteのNDEF読み込み
+ *
+ * ブロックは必要になった分だけ、1フレームで読めるだけまとめて読み込み、
+ * 読み込んだところまでのレコードを順に返す。<br>
+ * 先頭のレコードだけが欲しい場合は、メッセージ全体を読まずに終われる。<br>
+ * <br>
+ * 最初のフレームでは、属性情報ブロックと一緒にブロック1～3も読み込む
+ * (FeliCa Liteはブロック0～13が必ずあるので、Nbrを見る前に4ブロック読める)。<br>
+ */
+public final class NdefReader {
+	private static final String TAG = "NdefReader";
+
+	// レコードヘッダ
+	private static final int FLAG_MB = 0x80;
+	private static final int FLAG_ME = 0x40;
+	private static final int FLAG_CF = 0x20;
+	private static final int FLAG_SR = 0x10;
+	private static final int FLAG_IL = 0x08;
+	private static final int MASK_TNF = 0x07;
+	private static final int TNF_UNCHANGED = 0x06;
+
+	private final FelicaLite mFelica;
+	private final NdefAttribute mAttr;
+	private final byte[] mData;		//NDEFメッセージ(Ln byte)
+	private int mAvail;				//読み込み済みのbyte数
+	private int mPos;					//次のレコードの位置
+	private boolean mEnd;
+	private int mFrames;
+
+
+	private NdefReader(FelicaLite felica, NdefAttribute attr) {
+		mFelica = felica;
+		mAttr = attr;
+		mData = new byte[attr.getLength()];
+	}
+
+
+	/**
+	 * 読み込み開始<br>
+	 * <br>
+	 * 属性情報ブロックを読み込み、チェックサムを確かめる。<br>
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @return			(!=null)NDEF読み込み / (==null)読み込み失敗
+	 * @throws IOException
+	 * @throws FormatException		属性情報が不正、または書込み中
+	 */
+	public static NdefReader open(FelicaLite felica) throws IOException, FormatException {
+		int[] blockNo = new int[FelicaLite.MAX_READ_BLOCKS];
+		for(int i=0; i<blockNo.length; i++) {
+			blockNo[i] = i;
+		}
+		byte[] buf = felica.readBlock(blockNo);
+		if(buf == null) {
+			FelicaLog.v(TAG, "open : read fail");
+			return null;
+		}
+		NdefAttribute attr = NdefAttribute.parse(buf, 0);
+		if(attr.isWriting()) {
+			throw new FormatException("NdefReader : WriteF");
+		}
+
+		NdefReader reader = new NdefReader(felica, attr);
+		reader.mFrames = 1;
+		reader.append(buf, FelicaLite.SIZE_BLOCK, buf.length - FelicaLite.SIZE_BLOCK);
+		return reader;
+	}
+
+
+	/**
+	 * @return		属性情報
+	 */
+	public NdefAttribute getAttribute() {
+		return mAttr;
+	}
+
+
+	/**
+	 * @return		これまでに読み込んだフレーム数
+	 */
+	public int getFrameCount() {
+		return mFrames;
+	}
+
+
+	/**
+	 * 次のレコード<br>
+	 * <br>
+	 * 足りないブロックだけを読み込む。<br>
+	 *
+	 * @return			(!=null)レコード / (==null)メッセージの終わり
+	 * @throws IOException		読み込み失敗
+	 * @throws FormatException		レコードが不正(チャンクは扱わない)
+	 */
+	public NdefRecord next() throws IOException, FormatException {
+		if(mEnd || (mPos >= mData.length)) {
+			return null;
+		}
+		int pos = mPos;
+		ensure(pos + 2);
+		int header = mData[pos] & 0xff;
+		int typeLen = mData[pos + 1] & 0xff;
+		pos += 2;
+		if(((header & FLAG_CF) != 0) || ((header & MASK_TNF) == TNF_UNCHANGED)) {
+			throw new FormatException("NdefReader : chunked record");
+		}
+		if((mPos == 0) && ((header & FLAG_MB) == 0)) {
+			throw new FormatException("NdefReader : MB");
+		}
+
+		long payloadLen;
+		if((header & FLAG_SR) != 0) {
+			ensure(pos + 1);
+			payloadLen = mData[pos] & 0xff;
+			pos += 1;
+		} else {
+			ensure(pos + 4);
+			payloadLen = ((mData[pos] & 0xffL) << 24) | ((mData[pos + 1] & 0xff) << 16)
+						| ((mData[pos + 2] & 0xff) << 8) | (mData[pos + 3] & 0xff);
+			pos += 4;
+		}
+		int idLen = 0;
+		if((header & FLAG_IL) != 0) {
+			ensure(pos + 1);
+			idLen = mData[pos] & 0xff;
+			pos += 1;
+		}
+		if(pos + typeLen + idLen + payloadLen > mData.length) {
+			throw new FormatException("NdefReader : record length");
+		}
+		int end = pos + typeLen + idLen + (int)payloadLen;
+		ensure(end);
+
+		byte[] type = Arrays.copyOfRange(mData, pos, pos + typeLen);
+		pos += typeLen;
+		byte[] id = Arrays.copyOfRange(mData, pos, pos + idLen);
+		pos += idLen;
+		byte[] payload = Arrays.copyOfRange(mData, pos, end);
+
+		mPos = end;
+		if((header & FLAG_ME) != 0) {
+			mEnd = true;
+		}
+		return new NdefRecord((short)(header & MASK_TNF), type, id, payload);
+	}
+
+
+	/**
+	 * TNFとタイプが一致するレコードを探す<br>
+	 * <br>
+	 * 見つかった時点で読み込みをやめる。<br>
+	 *
+	 * @param tnf		[in]TNF
+	 * @param type		[in]タイプ
+	 * @return			(!=null)見つかったレコード / (==null)見つからない
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public NdefRecord find(short tnf, byte[] type) throws IOException, FormatException {
+		NdefRecord record;
+		while((record = next()) != null) {
+			if((record.getTnf() == tnf) && Arrays.equals(record.getType(), type)) {
+				return record;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * 残りのレコードを全て読み込む
+	 *
+	 * @return			NDEFメッセージ(レコードがない場合はnull)
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public NdefMessage readMessage() throws IOException, FormatException {
+		List<NdefRecord> records = new ArrayList<NdefRecord>();
+		NdefRecord record;
+		while((record = next()) != null) {
+			records.add(record);
+		}
+		if(records.isEmpty()) {
+			return null;
+		}
+		return new NdefMessage(records.toArray(new NdefRecord[records.size()]));
+	}
+
+
+	/**
+	 * mData[0 - end-1]が揃うまで読み込む<br>
+	 * <br>
+	 * 1フレームでNbr(4まで)ブロックずつ読む。<br>
+	 */
+	private void ensure(int end) throws IOException, FormatException {
+		if(end > mData.length) {
+			throw new FormatException("NdefReader : truncated");
+		}
+		int frameBlocks = Math.min(mAttr.getNbr(), FelicaLite.MAX_READ_BLOCKS);
+		while(mAvail < end) {
+			int loaded = mAvail / FelicaLite.SIZE_BLOCK;
+			int num = Math.min(frameBlocks, mAttr.getBlocks() - loaded);
+			int[] blockNo = new int[num];
+			for(int i=0; i<num; i++) {
+				blockNo[i] = NdefAttribute.DATA_BLOCK + loaded + i;
+			}
+			byte[] buf = mFelica.readBlock(blockNo);
+			mFrames++;
+			if(buf == null) {
+				throw new IOException("NdefReader : read fail");
+			}
+			append(buf, 0, buf.length);
+		}
+	}
+
+
+	private void append(byte[] buf, int offset, int len) {
+		int n = Math.min(len, mData.length - mAvail);
+		if(n > 0) {
+			System.arraycopy(buf, offset, mData, mAvail, n);
+			mAvail += n;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+
+/**
+ * @class	NdefWriter
+ * @brief	NFC Forum Type 3 TagとしてフォーマットしたFeliCa LiteへのNDEF書込み
+ *
+ * 今のブロック内容と比べて、変わったブロックだけを書き込む。<br>
+ * <br>
+ * 書込み順序は、<br>
+ * 1. 属性情報ブロックのWriteFを0x0F(書込み中)にする<br>
+ * 2. 変わったNDEFデータブロックを書く<br>
+ * 3. 属性情報ブロックのLn, WriteF(0x00), チェックサムを書く<br>
+ * なので、途中で失敗した場合はWriteFが0x0Fのまま残り、読む側で検出できる。<br>
+ * 内容が同じ場合は何も書かない。<br>
+ */
+public final class NdefWriter {
+	private static final String TAG = "NdefWriter";
+
+
+	private NdefWriter() {
+	}
+
+
+	/**
+	 * NDEFメッセージの書込み
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param message		[in]NDEFメッセージ
+	 * @param written		[out][0]に書き込んだブロック数(属性情報ブロックも含む)。不要ならnull。
+	 * @return		true	書込み成功
+	 * @throws IOException
+	 * @throws FormatException		属性情報が不正、読み込み専用、容量不足
+	 */
+	public static boolean write(FelicaLite felica, NdefMessage message, int[] written) throws IOException, FormatException {
+		return write(felica, message.toByteArray(), written);
+	}
+
+
+	/**
+	 * NDEFメッセージの書込み
+	 *
+	 * @param felica		[in]{@link FelicaLite#connect}で取得したセッション
+	 * @param message		[in]NDEFメッセージ(バイト列)
+	 * @param written		[out][0]に書き込んだブロック数(属性情報ブロックも含む)。不要ならnull。
+	 * @return		true	書込み成功
+	 * @throws IOException
+	 * @throws FormatException		属性情報が不正、読み込み専用、容量不足
+	 */
+	public static boolean write(FelicaLite felica, byte[] message, int[] written) throws IOException, FormatException {
+		if(written != null) {
+			written[0] = 0;
+		}
+		int blocks = (message.length + FelicaLite.SIZE_BLOCK - 1) / FelicaLite.SIZE_BLOCK;
+
+		//属性情報を先に読んで、容量を確かめる
+		byte[] attrCurrent = felica.readBlock(NdefAttribute.ATTRIBUTE_BLOCK);
+		if(attrCurrent == null) {
+			FelicaLog.v(TAG, "write : read attribute fail");
+			return false;
+		}
+		NdefAttribute attr = NdefAttribute.parse(attrCurrent, 0);
+		if(attr.isReadOnly()) {
+			throw new FormatException("NdefWriter : read only");
+		}
+		if(blocks > attr.getNmaxb()) {
+			throw new FormatException("NdefWriter : too large " + message.length);
+		}
+
+		//新しいメッセージが入るブロックの今の内容
+		byte[] current = new byte[0];
+		if(blocks > 0) {
+			current = felica.readBlocks(NdefAttribute.DATA_BLOCK, blocks);
+			if(current == null) {
+				FelicaLog.v(TAG, "write : read fail");
+				return false;
+			}
+		}
+
+		//新しい内容(最後のブロックの余りは0)
+		byte[] data = new byte[blocks * FelicaLite.SIZE_BLOCK];
+		System.arraycopy(message, 0, data, 0, message.length);
+		boolean[] changed = new boolean[blocks];
+		boolean any = false;
+		for(int i=0; i<blocks; i++) {
+			int pos = i * FelicaLite.SIZE_BLOCK;
+			for(int j=0; j<FelicaLite.SIZE_BLOCK; j++) {
+				if(data[pos + j] != current[pos + j]) {
+					changed[i] = true;
+					any = true;
+					break;
+				}
+			}
+		}
+		if(!any && (attr.getLength() == message.length) && !attr.isWriting()) {
+			//同じ内容
+			return true;
+		}
+
+		byte[] attrBlock = new byte[FelicaLite.SIZE_BLOCK];
+		int count = 0;
+
+		//1. WriteF=0x0F
+		if(!attr.isWriting()) {
+			attr.setWriting(true);
+			attr.encode(attrBlock, 0);
+			if(!felica.writeBlock(NdefAttribute.ATTRIBUTE_BLOCK, attrBlock)) {
+				FelicaLog.v(TAG, "write : WriteF on fail");
+				return false;
+			}
+			count++;
+		}
+
+		//2. 変わったブロック
+		for(int i=0; i<blocks; i++) {
+			if(!changed[i]) {
+				continue;
+			}
+			if(!felica.writeBlock(NdefAttribute.DATA_BLOCK + i, data, i * FelicaLite.SIZE_BLOCK)) {
+				FelicaLog.v(TAG, "write : data fail " + (NdefAttribute.DATA_BLOCK + i));
+				if(written != null) {
+					written[0] = count;
+				}
+				return false;
+			}
+			count++;
+		}
+
+		//3. Ln, WriteF=0x00, チェックサム
+		attr.setLength(message.length);
+		attr.setWriting(false);
+		attr.encode(attrBlock, 0);
+		boolean ret = felica.writeBlock(NdefAttribute.ATTRIBUTE_BLOCK, attrBlock);
+		if(ret) {
+			count++;
+		} else {
+			FelicaLog.v(TAG, "write : attribute fail");
+		}
+		if(written != null) {
+			written[0] = count;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,71 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+import android.nfc.tech.NfcF;
+import android.os.Build;
+
+
+/**
+ * @class	NfcFTransceiver
+ * @brief	{@link NfcF}による送受信
+ *
+ * Androidに依存する部分はここに置き、{@link FelicaLite}はAndroid以外でも動くようにしている。<br>
+ */
+public class NfcFTransceiver implements FelicaTransceiver {
+	private final NfcF mNfcF;
+
+	/**
+	 * @param nfcF		[in]connect済みのNfcF
+	 */
+	public NfcFTransceiver(NfcF nfcF) {
+		mNfcF = nfcF;
+	}
+
+	/**
+	 * 使用する場合、最初に呼び出す。
+	 * 内部で{@link NfcF#connect()}を呼び出す。
+	 * 呼び出し場合、最後に{@link FelicaLite#close()}を呼び出すこと。
+	 * 
+	 * 返したインスタンスが1枚のカードとのセッションになる。
+	 * 複数のカードを同時に扱う場合は、カードごとにconnectすること。
+	 *
+	 * @param[in]	tag		intentで取得したTag
+	 * @return		セッション
+	 * @throws IOException
+	 * @see		{@link FelicaLite#close()}
+	 */
+	public static FelicaLite connect(Tag tag) throws IOException {
+		NfcF nfcF = NfcF.get(tag);
+		nfcF.connect();
+		FelicaLite felica = FelicaLite.connect(new NfcFTransceiver(nfcF), tag.getId());
+		//NfcF#getManufacturer()はPMm
+		felica.setPmm(nfcF.getManufacturer());
+		return felica;
+	}
+
+	public NfcF getNfcF() {
+		return mNfcF;
+	}
+
+	@Override
+	public byte[] transceive(byte[] data) throws IOException {
+		return mNfcF.transceive(data);
+	}
+
+	/**
+	 * {@link NfcF#setTimeout(int)}はAPI Level 14からなので、それより前では何もしない。
+	 */
+	@Override
+	public void setTimeout(int timeout) {
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			mNfcF.setTimeout(timeout);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mNfcF.close();
+	}
+}
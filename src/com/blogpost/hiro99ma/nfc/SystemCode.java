@@ -0,0 +1,53 @@
+package com.blogpost.hiro99ma.nfc;
+
+
+/**
+ * @class	SystemCode
+ * @brief	SYS_Cブロックのビュー
+ *
+ * [0-1]システムコード(ビッグエンディアン), [2-15]0<br>
+ */
+public final class SystemCode extends BlockView {
+
+	/**
+	 * @param buf		[in]SYS_Cブロックを含むバッファ
+	 * @param offset	[in]SYS_Cブロックの位置
+	 * @return			this
+	 */
+	public SystemCode wrap(byte[] buf, int offset) {
+		setBuffer(buf, offset);
+		return this;
+	}
+
+
+	/**
+	 * @return		システムコード
+	 */
+	public int getSystemCode() {
+		return getU16(0);
+	}
+
+
+	/**
+	 * @param sc		[in]システムコード
+	 */
+	public void setSystemCode(int sc) {
+		setU16(0, sc);
+	}
+
+
+	/**
+	 * @return	true	システムコード以外が全て0
+	 */
+	public boolean isReservedClear() {
+		return isZero(2, FelicaLite.SIZE_BLOCK);
+	}
+
+
+	/**
+	 * @return	true	FeliCa Liteのシステムコード(0x88b4)で、残りが全て0
+	 */
+	public boolean isFelicaLite() {
+		return (getSystemCode() == FelicaLite.SC_FELICALITE) && isReservedClear();
+	}
+}
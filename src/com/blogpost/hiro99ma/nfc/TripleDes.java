@@ -0,0 +1,115 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * @class	TripleDes
+ * @brief	再利用可能なTriple-DES(8byte 1ブロック)
+ *
+ * Cipherは生成時に1回だけ取得し、鍵が変わったときだけinitし直す。<br>
+ * CBCは1ブロックしか使わないので、(平文 xor 初期ベクタ)をECBで暗号化している。<br>
+ * そのため、同じ鍵で何度呼んでもプロバイダの検索や鍵スケジュールの再計算は起きない。<br>
+ * <br>
+ * スレッドセーフではない。スレッドごとにインスタンスを用意すること。<br>
+ */
+public final class TripleDes {
+	private final Cipher mCipher;
+	private final byte[] mKey = new byte[24];
+	private final byte[] mBlock = new byte[8];
+	private boolean mKeyValid;
+
+	/**
+	 * @throws GeneralSecurityException	DESedeが使えない
+	 */
+	public TripleDes() throws GeneralSecurityException {
+		mCipher = Cipher.getInstance("DESede/ECB/NoPadding");		//3DES / ECB / パディング無し
+	}
+
+
+	/**
+	 * 鍵の設定<br>
+	 * <br>
+	 * 現在の鍵と同じ場合は何もしない。<br>
+	 *
+	 * @param key		[in]秘密鍵(24byte [0-7]KEY1, [8-15]KEY2, [16-23]KEY3)
+	 * @throws GeneralSecurityException
+	 */
+	public void setKey(byte[] key) throws GeneralSecurityException {
+		if(mKeyValid && isSameKey(key)) {
+			return;
+		}
+		mKeyValid = false;
+		mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 24, "DESede"));
+		System.arraycopy(key, 0, mKey, 0, 24);
+		mKeyValid = true;
+	}
+
+
+	/**
+	 * 鍵の破棄<br>
+	 * <br>
+	 * 保持している鍵のコピーを0で埋め、Cipherも0の鍵でinitし直して鍵スケジュールを上書きする。
+	 * 次に使う前に{@link #setKey(byte[])}を呼ぶこと。<br>
+	 */
+	public void clear() {
+		if(!mKeyValid) {
+			return;
+		}
+		mKeyValid = false;
+		for(int i=0; i<mKey.length; i++) {
+			mKey[i] = 0;
+		}
+		for(int i=0; i<mBlock.length; i++) {
+			mBlock[i] = 0;
+		}
+		try {
+			mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mKey, 0, 24, "DESede"));
+		} catch(GeneralSecurityException e) {
+			//鍵のコピーは消えているので、ここでは何もしない
+		}
+	}
+
+
+	/**
+	 * Triple-DES暗号化(CBC 1ブロック)<br>
+	 * <br>
+	 * 「(inBuf xor iv)を平文とし、鍵でトリプルDES暗号化」する。<br>
+	 * outBufとinBuf, ivは同じ配列でもよい。<br>
+	 *
+	 * @param outBuf		[out]暗号化出力バッファ
+	 * @param outOffset	[in]暗号化出力バッファへの書き込み開始位置(ここから8byte書く)
+	 * @param inBuf		[in]平文バッファ
+	 * @param inOffset		[in]平文バッファの読み込み開始位置(ここから8byte読む)
+	 * @param iv			[in]初期ベクタ。nullの場合は0。
+	 * @param ivOffset		[in]初期ベクタの読み込み開始位置(ここから8byte読む)
+	 * @return		暗号化したサイズ(8)
+	 * @throws GeneralSecurityException
+	 */
+	public int enc83(byte[] outBuf, int outOffset, byte[] inBuf, int inOffset, byte[] iv, int ivOffset) throws GeneralSecurityException {
+		if(!mKeyValid) {
+			throw new IllegalStateException("TripleDes : no key");
+		}
+		if(iv == null) {
+			System.arraycopy(inBuf, inOffset, mBlock, 0, 8);
+		} else {
+			for(int i=0; i<8; i++) {
+				mBlock[i] = (byte)(inBuf[inOffset + i] ^ iv[ivOffset + i]);
+			}
+		}
+		return mCipher.doFinal(mBlock, 0, 8, outBuf, outOffset);
+	}
+
+
+	private boolean isSameKey(byte[] key) {
+		for(int i=0; i<24; i++) {
+			if(mKey[i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}